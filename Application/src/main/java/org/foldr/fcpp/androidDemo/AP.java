@@ -1,14 +1,17 @@
 package org.foldr.fcpp.androidDemo;
 
 import static org.foldr.fcpp.androidDemo.Constants.LOG_BT_TAG;
-import static org.foldr.fcpp.androidDemo.Constants.LOG_HTTP_TAG;
 import static org.foldr.fcpp.androidDemo.Constants.LOG_TAG;
 
 import android.app.Application;
-import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.LocationManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.ParcelFileDescriptor;
 import android.util.Base64;
 import android.util.Log;
 
@@ -16,22 +19,14 @@ import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.prefs.PreferencesFactory;
 
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
 
 public class AP extends Application {
 
@@ -43,7 +38,8 @@ public class AP extends Application {
         maybe later we'll set this for you.
      */
     public static boolean is_stopping = false;
-    private static long timeout_ms = 250;
+    /* How long the advertiser waits for a new packet before checking whether to stop. */
+    static final long TX_TIMEOUT_MS = 1000;
     public LocationManager locationManager;
 
     /* These native definitions are from ap-getters.cpp: */
@@ -60,16 +56,90 @@ public class AP extends Application {
     public static native void set_double(String attribute, double value);
 
     public static native String get_storage();
+    /* The same fields as get_storage(), in the compact layout described by get_storage_schema(). */
+    public static native byte[] get_storage_binary();
+    public static native String get_storage_schema();
 
-    /* Deque for received transmissions. Read from first, append to end. */
-    static final BlockingDeque<ScanResult> pending = new LinkedBlockingDeque<>();
-    /* Support for BT to advertise most recent data */
-    static Lock outgoing = new ReentrantLock();
-    static Condition haveNewData = outgoing.newCondition();
-    private static byte[] newData = null;
+    /* Typed access to storage fields by handle, without string lookups (see handle()). */
+    static native int attribute_handle(String attribute);
+    public static native boolean get_bool_at(int handle);
+    public static native int get_int_at(int handle);
+    public static native double get_double_at(int handle);
+    /* Reads many fields as doubles into a direct buffer (see snapshotBuffer()), all from the same round. */
+    public static native int read_snapshot(int[] handles, ByteBuffer out);
+    public static native void set_bool_at(int handle, boolean value);
+    public static native void set_int_at(int handle, int value);
+    public static native void set_double_at(int handle, double value);
+
+    /* Handles of the running experiment, by attribute name. */
+    private static final Map<String, Integer> handles = new ConcurrentHashMap<>();
+
+    /*
+     * The handle of a storage field of the running experiment, for the *_at() accessors.
+     * Resolved on first use, so only valid after fcpp_start().
+     */
+    public static int handle(String attribute) {
+        return handles.computeIfAbsent(attribute, AP::attribute_handle);
+    }
+
+    /* A buffer for read_snapshot() of a given number of fields; field i is at getDouble(i * Double.BYTES). */
+    public static ByteBuffer snapshotBuffer(int fields) {
+        return ByteBuffer.allocateDirect(fields * Double.BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /* Subscriptions to fields by handle, checked after every round (see FieldWatcher). */
+    static native int subscribe_fields(int[] handles);
+    static native void unsubscribe_fields(int id);
+    static native long take_changes(int id, ByteBuffer out);
+    static native int change_event_fd();
+    static native void drain_change_event();
+
+    /* Event readable after every round (see watchRounds()). */
+    static native int round_event_fd();
+    static native void drain_round_event();
+
+    /* Flight recorder of packet events (see FlightRecorder). */
+    static native void flight_enable(boolean on);
+    static native void flight_record(int kind, int uid, int size, int depth, long stamp, long time);
+    static native long flight_dump(String path);
+    static native boolean capture_open(String path);
+    static native long capture_close();
+    static native int rx_depth();
+
+    /* Packet buffers shared with C++ (see ReceiveBuffer and getMsg()). */
+    static native int ring_slot_size();
+    static native ByteBuffer rx_ring();
+    static native int rx_reserve();
+    static native void rx_commit(int length);
+    static native long rx_coalesced();
+    static native long rx_stale();
+    static native long rx_undecodable();
+    static native long rx_incomplete();
+    static native ByteBuffer tx_box();
+    static native int tx_await(long timeout_ms);
+    /* Makes a pending tx_await() return early (or the next one). */
+    static native void tx_wake();
+    static native long tx_sequence(int slot);
+    static native long tx_overwritten();
+    static native void set_max_payload(int size);
+    static native long tx_fragmented();
+    static native long tx_dropped();
+
+    /* Received transmissions, handed to C++ through the receive ring. */
+    static final ReceiveBuffer pending = new ReceiveBuffer();
+    /* Latest outgoing transmission from C++ (a single-slot mailbox). */
+    private static ByteBuffer outgoing = null;
 
     public static OkHttpWrapper.JSONFormatter jsonhttpFormatter = null;
-    private static ThreadPoolExecutor httpLogger; // Sequential executor for http-requests
+    /* Longest wait for pending telemetry to be uploaded when quitting. */
+    static final long TELEMETRY_QUIT_TIMEOUT_MS = 3000;
+    /* Most telemetry batches waiting for upload, and which to drop beyond that (defaults of the preferences). */
+    static final int TELEMETRY_QUEUE_CAPACITY = 16;
+    static final TelemetryQueue.Policy TELEMETRY_POLICY = TelemetryQueue.Policy.DROP_OLDEST;
+    private static TelemetryQueue telemetryQueue;
+    private static TelemetryBatcher telemetry;
+    /* Kept open for as long as rounds are watched. */
+    private static ParcelFileDescriptor roundEvent;
 
     public static class OkHttpWrapper {
         public interface JSONFormatter {
@@ -78,100 +148,126 @@ public class AP extends Application {
         }
 
         static OkHttpClient okHttpClient = new OkHttpClient();
-        static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
-
-        static int failCounter = 0;
 
+        /* Adds the state of the last round to the telemetry, sent in batches (see TelemetryBatcher). */
         static void httpLog() {
             /* Needs to be initialised from the actual activity. */
-            if (jsonhttpFormatter == null) {
+            if (jsonhttpFormatter == null || telemetry == null) {
                 return;
             }
-            String jsonLogMsg = jsonhttpFormatter.getJSONHTTPFormatter();
-            RequestBody body = RequestBody.create(jsonLogMsg, JSON);
-            Request request = new Request.Builder()
-                    .url(jsonhttpFormatter.getHTTPUrl())
-                    .post(body)
-                    .build();
-            try {
-                Response response = okHttpClient.newCall(request).execute();
-                if (!response.isSuccessful()) {
-                    Log.d(LOG_HTTP_TAG, jsonLogMsg);
-                    Log.d(LOG_HTTP_TAG, response.message());
-                }
-                response.close();
-            } catch (IOException e) {
-                // Betting 0.05EUR that this will haunt me:
-                if (failCounter < 50) {
-                    failCounter++;
-                    Log.d(LOG_HTTP_TAG, "oops:" + e.getMessage(), e);
-                }
-            }
+            telemetry.add(jsonhttpFormatter.getJSONHTTPFormatter(), jsonhttpFormatter.getHTTPUrl());
         }
     }
 
-    /* Call-back for C++ */
-    public static byte[] getNextMsg() {
-        ScanResult scanResult;
+    /*
+     * Adds the state of every round to the telemetry, whether or not anything is advertised: the
+     * round thread signals an event file descriptor, watched by a thread of our own, so that it
+     * never calls into Java itself. Rounds ending while the previous record is being taken are
+     * logged once.
+     */
+    private static void watchRounds() {
         try {
-            scanResult = pending.pollFirst(timeout_ms, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            scanResult = pending.pollFirst();
-        }
-        if (scanResult == null) {
-            return null;
-        } else {
-            byte[] data = scanResult.getScanRecord().getServiceData(Constants.Service_UUID);
-            Log.d(LOG_BT_TAG, "BLE packet TO C++:" + data.length);
-            // Log.d(LOG_TAG, BaseEncoding.base16().lowerCase().encode(data));
-            // OkHttpWrapper.httpLog(data);
-            return data;
+            roundEvent = ParcelFileDescriptor.fromFd(round_event_fd());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot watch rounds, no telemetry.", e);
+            return;
         }
+        HandlerThread thread = new HandlerThread("fcpp-telemetry");
+        thread.start();
+        thread.getLooper().getQueue().addOnFileDescriptorEventListener(roundEvent.getFileDescriptor(),
+                MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT, (fd, events) -> {
+                    if ((events & MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR) != 0) {
+                        Log.e(LOG_TAG, "Round events broken, no more telemetry.");
+                        return 0;
+                    }
+                    drain_round_event();
+                    if (!is_stopping) {
+                        OkHttpWrapper.httpLog();
+                    }
+                    return MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
+                });
     }
 
-    /* Call-back for C++ */
-    public static void postMsg(byte[] data, int size){
-//        byte[] fresh = new byte[size];
-//        System.arraycopy(data, 0, fresh, 0, size);
-//        Log.d(LOG_TAG, "Data size "+size+" from C :"+BaseEncoding.base16().lowerCase().encode(fresh));
-        Log.d(LOG_TAG, "Packet size "+size+" from C++.");
-        outgoing.lock();
-        newData = data;
-        haveNewData.signalAll();
-        outgoing.unlock();
-        // Good time to update the frequency:
-        long new_timeout_ms = Math.round((AP.get_double("round_period") * 1000) / 5);
-        if (new_timeout_ms != timeout_ms) {
-            timeout_ms = new_timeout_ms;
-            Log.d(LOG_BT_TAG, "Changing BLE polling timeout to "+timeout_ms);
-        }
-        // Good time to log our state this round:
-        httpLogger.execute(OkHttpWrapper::httpLog);
+    /* Sends the telemetry collected so far, e.g. before stopping. */
+    public static void flushTelemetry() {
+        if (telemetry != null) {
+            telemetry.flush();
+        }
     }
 
-    /* For advertising: */
-     byte[] getMsg() {
+    /*
+     * Flushes the telemetry and waits a bounded time for it to be uploaded, for when the process
+     * is about to exit (the upload thread would not survive it). Not to be called on the main thread.
+     */
+    static void drainTelemetry() {
+        flushTelemetry();
+        if (telemetryQueue == null) {
+            return;
+        }
         try {
-            outgoing.lock();
-            if (newData == null) {
-                Log.d(LOG_TAG, "Waiting for data from fcpp...");
-                haveNewData.await();
-                Log.d(LOG_TAG, "Received data from fcpp!");
-            }
-            if (newData == null) {
-                Log.d(LOG_TAG, "Received null data!");
-            } else {
-                Log.d(LOG_TAG, "Received data!");
-                // Log.d(LOG_TAG, BaseEncoding.base16().lowerCase().encode(newData));
+            if (!telemetryQueue.awaitIdle(TELEMETRY_QUIT_TIMEOUT_MS)) {
+                Log.w(LOG_TAG, "Telemetry still pending after " + TELEMETRY_QUIT_TIMEOUT_MS + "ms, "
+                        + telemetryQueue.getDepth() + " batches lost.");
             }
-            return newData; /* VS: let's see if this works nicely together with the finally below. */
         } catch (InterruptedException e) {
-            Log.i(LOG_TAG, "Did not expect exception: "+e.getMessage());
-        } finally {
-            newData = null;
-            outgoing.unlock();
+            Thread.currentThread().interrupt();
         }
-        return null;
+    }
+
+    /* Flag on the length of a frame holding a bare export, as tx_legacy_frame in C++. */
+    static final int LEGACY_FRAME = 0x8000;
+
+    /* An outgoing packet from FCPP, as the frames to be advertised in turn. */
+    static final class Export {
+        final byte[][] frames;
+        /* Whether it is a bare export, for devices predating the packet codec (see Constants.Codec_UUID). */
+        final boolean legacy;
+
+        Export(byte[][] frames, boolean legacy) {
+            this.frames = frames;
+            this.legacy = legacy;
+        }
+    }
+
+    /*
+     * For advertising: waits for a packet from FCPP newer than the last one, or returns null after
+     * a timeout. A packet too large for one advertisement comes as several fragments, to be
+     * advertised in turn.
+     */
+    Export getMsg(long timeout_ms) {
+        if (outgoing == null) {
+            outgoing = tx_box().order(ByteOrder.nativeOrder());
+        }
+        int slot = tx_await(timeout_ms);
+        if (slot < 0) {
+            return null;
+        }
+        int base = slot * ring_slot_size();
+        int end = base + Short.BYTES + outgoing.getShort(base);
+        int count = 0;
+        for (int pos = base + Short.BYTES; pos < end; pos += Short.BYTES + (outgoing.getShort(pos) & (LEGACY_FRAME - 1))) {
+            count++;
+        }
+        byte[][] frames = new byte[count][];
+        boolean legacy = false;
+        outgoing.position(base + Short.BYTES);
+        for (int i = 0; i < count; i++) {
+            int length = outgoing.getShort() & 0xffff;
+            legacy = (length & LEGACY_FRAME) != 0;
+            frames[i] = new byte[length & (LEGACY_FRAME - 1)];
+            outgoing.get(frames[i]);
+        }
+        FlightRecorder.record(FlightRecorder.TX_TAKEN, uid, end - base - Short.BYTES, count, 0);
+        return new Export(frames, legacy);
+    }
+
+    /* Logs the statistics of the packet buffers shared with C++. */
+    void logBufferStatistics() {
+        Log.d(LOG_BT_TAG, "Receive buffer: " + pending.getCoalesced() + " coalesced, "
+                + pending.getStale() + " stale, " + pending.getUndecodable() + " undecodable, "
+                + rx_incomplete() + " incomplete, " + pending.getDropped() + " dropped; "
+                + tx_overwritten() + " outgoing overwritten, " + tx_fragmented() + " fragmented, "
+                + tx_dropped() + " dropped.");
     }
 
     private int setUID() {
@@ -207,12 +303,33 @@ public class AP extends Application {
             Log.e(LOG_TAG, "No location service :-(");
         }
 
-        httpLogger = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String prefs_policy = prefs.getString(getString(R.string.prefs_telemetry_policy), TELEMETRY_POLICY.name());
+        String prefs_capacity = prefs.getString(getString(R.string.prefs_telemetry_capacity), String.valueOf(TELEMETRY_QUEUE_CAPACITY));
+        TelemetryQueue.Policy the_policy;
+        try {
+            the_policy = TelemetryQueue.Policy.valueOf(prefs_policy);
+        } catch (IllegalArgumentException e) {
+            the_policy = TELEMETRY_POLICY;
+            Log.d(LOG_TAG, "Telemetry data error", e);
+        }
+        int the_capacity;
+        try {
+            the_capacity = Math.max(1, Integer.parseInt(prefs_capacity));
+        } catch (NumberFormatException e) {
+            the_capacity = TELEMETRY_QUEUE_CAPACITY;
+            Log.d(LOG_TAG, "Telemetry data error", e);
+        }
+        Log.i(LOG_TAG, "Telemetry queue: " + the_capacity + " batches, " + the_policy);
+        telemetryQueue = new TelemetryQueue(OkHttpWrapper.okHttpClient, the_policy, the_capacity);
+        telemetry = new TelemetryBatcher(telemetryQueue, new Handler(Looper.getMainLooper()));
+        watchRounds();
     }
 
     public void fcpp_start(String experiment) {
         int uid = setUID();
         Log.i(LOG_TAG, "fcpp_start: " + uid + " : "+experiment);
+        handles.clear();
         fcpp_start(uid, experiment);
 
         // TODO: proper initial values for fcpp?
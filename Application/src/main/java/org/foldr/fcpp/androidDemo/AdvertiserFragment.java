@@ -16,6 +16,7 @@
 
 package org.foldr.fcpp.androidDemo;
 
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_ADAPTIVE;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_INTERVAL;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_POWER_LEVEL;
 
@@ -36,6 +37,9 @@ import android.widget.Toast;
 import androidx.appcompat.widget.SwitchCompat;
 import androidx.fragment.app.Fragment;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Allows user to start & stop Bluetooth LE Advertising of their device.
  */
@@ -59,8 +63,28 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
     private boolean isDisable;
     private int ble_power_level = AdvertisingSetParameters.TX_POWER_MEDIUM;
     private int ble_interval;
+    private boolean ble_adaptive;
     private TextView tv;
 
+    /**
+     * Shortest time between refreshes of the storage view.
+     */
+    private static final long STORAGE_REFRESH_MS = 500;
+
+    /**
+     * Storage fields as last received from the {@code StorageChannel}.
+     */
+    private final Map<String, String> storage = new LinkedHashMap<>();
+
+    private final StorageChannel.Subscriber storageSubscriber = changed -> {
+        storage.putAll(changed);
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> field : storage.entrySet()) {
+            text.append(field.getKey()).append(": ").append(field.getValue()).append('\n');
+        }
+        tv.setText(text);
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,6 +94,7 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
             isDisable = getArguments().getBoolean(ARG_DISABLE_BROADCAST_SWITCH, false);
             ble_power_level = getArguments().getInt(ARG_PARAM_BLE_POWER_LEVEL, AdvertisingSetParameters.TX_POWER_MEDIUM);
             ble_interval = getArguments().getInt(ARG_PARAM_BLE_INTERVAL, AdvertisingSetParameters.INTERVAL_HIGH);
+            ble_adaptive = getArguments().getBoolean(ARG_PARAM_BLE_ADAPTIVE, false);
         }
 
         advertisingFailureReceiver = new BroadcastReceiver() {
@@ -115,9 +140,6 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
                     }
 
                     Toast.makeText(getActivity(), errorMessage, Toast.LENGTH_LONG).show();
-                } else if (AdvertiserService.ADVERTISING_STORAGE.equals(intent.getAction())) {
-                    String storage_text = intent.getStringExtra(AdvertiserService.ADVERTISING_STORAGE_EXTRA_CODE);
-                    tv.setText(storage_text);
                 } else {
                     Log.d("vs", intent.getAction());
                 }
@@ -147,7 +169,11 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
                 getActivity().stopService(new Intent(getActivity(), AdvertiserService.class));
                 AdvertiserFragment.this.getActivity().finish();
                 AP.fcpp_stop();
-                System.exit(0);
+                // Exits once the telemetry collected so far is uploaded, off the main thread.
+                new Thread(() -> {
+                    AP.drainTelemetry();
+                    System.exit(0);
+                }, "fcpp-quit").start();
             }
         });
         return view;
@@ -175,8 +201,7 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
 
         IntentFilter failureFilter = new IntentFilter(AdvertiserService.ADVERTISING_FAILED);
         getActivity().registerReceiver(advertisingFailureReceiver, failureFilter);
-        IntentFilter storageFilter = new IntentFilter(AdvertiserService.ADVERTISING_STORAGE);
-        getActivity().registerReceiver(advertisingFailureReceiver, storageFilter);
+        StorageChannel.get().subscribe(storageSubscriber, STORAGE_REFRESH_MS);
     }
 
     /**
@@ -187,6 +212,7 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
     public void onPause() {
         super.onPause();
         getActivity().unregisterReceiver(advertisingFailureReceiver);
+        StorageChannel.get().unsubscribe(storageSubscriber);
     }
 
     /**
@@ -196,6 +222,7 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
         Intent i = new Intent(c, AdvertiserService.class);
         i.putExtra(ARG_PARAM_BLE_POWER_LEVEL, ble_power_level);
         i.putExtra(ARG_PARAM_BLE_INTERVAL, ble_interval);
+        i.putExtra(ARG_PARAM_BLE_ADAPTIVE, ble_adaptive);
         return i;
     }
 
@@ -1,5 +1,6 @@
 package org.foldr.fcpp.androidDemo;
 
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_ADAPTIVE;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_INTERVAL;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_POWER_LEVEL;
 import static org.foldr.fcpp.androidDemo.Constants.LOG_BT_TAG;
@@ -22,9 +23,11 @@ import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -33,6 +36,7 @@ import androidx.preference.PreferenceManager;
 
 import com.google.common.io.BaseEncoding;
 
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -60,12 +64,23 @@ public class AdvertiserService extends Service {
     public static final String ADVERTISING_FAILED_EXTRA_CODE = "failureCode";
     public static final String ADVERTISING_FAILED_EXTRA_MSG = "failureMsg";
 
-    public static final String ADVERTISING_STORAGE =
-            "org.foldr.fcpp.androidDemo.advertising_storage";
-    public static final String ADVERTISING_STORAGE_EXTRA_CODE = "storageCode";
-
     public static final int ADVERTISING_TIMED_OUT = 6;
 
+    /**
+     * Bytes of the flags field, which stacks may add to legacy advertisements.
+     */
+    private static final int FLAGS_LENGTH = 3;
+
+    /**
+     * The Bluetooth base UUID, on which UUIDs can be shortened to 16 or 32 bits.
+     */
+    private static final UUID BASE_UUID = UUID.fromString("00000000-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * How often the adaptive policy revisits power and interval.
+     */
+    private static final long ADAPT_PERIOD_MS = 5000;
+
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
 
     private AdvertisingSetCallback mAdvertiseCallback;
@@ -82,9 +97,15 @@ public class AdvertiserService extends Service {
     private AP mAp;
     private AdvertisingSetParameters parameters;
     private AdvertisingSet currentSet;
+    private volatile AdvertisingUpdater mUpdater;
+    private AdvertiserWorker mWorker;
     private boolean ble_toast_only_once = true;
     private int power_level = AdvertisingSetParameters.TX_POWER_MEDIUM;
     private int ble_interval = AdvertisingSetParameters.INTERVAL_LOW;
+    private boolean ble_adaptive = false;
+    private volatile AdvertisingPolicy mPolicy;
+    private AdvertisingPolicy.Decision mDecision;
+    private long mLastAdapt = 0;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -92,6 +113,23 @@ public class AdvertiserService extends Service {
         Log.d(LOG_BT_TAG, "BLE power level (effective): "+power_level);
         ble_interval = intent.getIntExtra(ARG_PARAM_BLE_INTERVAL, AdvertisingSetParameters.INTERVAL_LOW);
         Log.d(LOG_BT_TAG, "BLE interval (effective): "+ble_interval);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int denseFrom;
+        double flakyAbove;
+        try {
+            denseFrom = Integer.parseInt(prefs.getString(getString(R.string.prefs_ble_dense_from),
+                    String.valueOf(AdvertisingPolicy.DEFAULT_DENSE_FROM)));
+            flakyAbove = Double.parseDouble(prefs.getString(getString(R.string.prefs_ble_flaky_above),
+                    String.valueOf(AdvertisingPolicy.DEFAULT_FLAKY_ABOVE)));
+        } catch (NumberFormatException e) {
+            denseFrom = AdvertisingPolicy.DEFAULT_DENSE_FROM;
+            flakyAbove = AdvertisingPolicy.DEFAULT_FLAKY_ABOVE;
+            Log.d(LOG_BT_TAG, "BLE adaptive thresholds error", e);
+        }
+        mPolicy = new AdvertisingPolicy(power_level, ble_interval, denseFrom, flakyAbove);
+        ble_adaptive = intent.getBooleanExtra(ARG_PARAM_BLE_ADAPTIVE, false);
+        Log.d(LOG_BT_TAG, "BLE adaptive: " + ble_adaptive + " (dense from " + denseFrom
+                + " neighbours, unstable above flakiness " + flakyAbove + ")");
         return START_STICKY;
     }
     @Override
@@ -139,6 +177,11 @@ public class AdvertiserService extends Service {
                 BluetoothAdapter mBluetoothAdapter = mBluetoothManager.getAdapter();
                 if (mBluetoothAdapter != null) {
                     mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+                    boolean legacy = PreferenceManager.getDefaultSharedPreferences(this)
+                            .getBoolean(getString(R.string.prefs_legacy), false);
+                    int maxData = legacy ? 31 : mBluetoothAdapter.getLeMaximumAdvertisingDataLength();
+                    // Larger packets are split by C++ into fragments of this size.
+                    AP.set_max_payload(maxData - advertiseDataOverhead(legacy));
                 } else {
                     Toast.makeText(this, getString(R.string.bt_null), Toast.LENGTH_LONG).show();
                 }
@@ -146,7 +189,7 @@ public class AdvertiserService extends Service {
                 Toast.makeText(this, getString(R.string.bt_null), Toast.LENGTH_LONG).show();
             }
         }
-        parameters = getAdvertisingSetParameters();
+        parameters = getAdvertisingSetParameters(ble_interval, power_level);
     }
 
     /**
@@ -170,7 +213,7 @@ public class AdvertiserService extends Service {
     private void startAdvertising() {
         // goForeground();
         byte[] nada = {}; // Cheat in first round. We only need to spin up the thread a bit below.
-        AdvertiseData data = buildAdvertiseData(nada);
+        AdvertiseData data = buildAdvertiseData(nada, false);
         if (mAdvertiseCallback == null) {
 
                 mAdvertiseCallback = new AdvertisingSetCallback() {
@@ -181,22 +224,38 @@ public class AdvertiserService extends Service {
                                     + status);
                             sendFailureIntent(status);
                         } else {
-                            assert currentSet == null;
                             currentSet = advertisingSet;
-                            /* After advertising has started, this thread will wait for FCPP updates
+                            AdvertisingUpdater updater = new AdvertisingUpdater(advertisingSet,
+                                    AdvertiserService.this::buildAdvertiseData);
+                            mUpdater = updater;
+                            /* After advertising has started, the worker will wait for FCPP updates
                                 and update the advertisement.
                              */
-                            new Thread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    while (running) {
-                                        // Blocking:
-                                        byte[] data = mAp.getMsg(); /* Blocking! */
-                                        currentSet.setAdvertisingData(buildAdvertiseData(data));
-                                        sendStorageIntent();
-                                    }
-                                }
-                            }).start();
+                            startWorker(updater);
+                        }
+                    }
+
+                    @Override
+                    public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+                        AdvertisingUpdater updater = mUpdater;
+                        if (updater != null) {
+                            updater.onAdvertisingDataSet(status);
+                        }
+                    }
+
+                    @Override
+                    public void onAdvertisingEnabled(AdvertisingSet advertisingSet, boolean enable, int status) {
+                        AdvertisingUpdater updater = mUpdater;
+                        if (updater != null) {
+                            updater.onOperationDone(status);
+                        }
+                    }
+
+                    @Override
+                    public void onAdvertisingParametersUpdated(AdvertisingSet advertisingSet, int txPower, int status) {
+                        AdvertisingUpdater updater = mUpdater;
+                        if (updater != null) {
+                            updater.onOperationDone(status);
                         }
                     }
 
@@ -224,20 +283,47 @@ public class AdvertiserService extends Service {
         }
     }
 
-    private AdvertisingSetParameters getAdvertisingSetParameters() {
+    private AdvertisingSetParameters getAdvertisingSetParameters(int interval, int power) {
         AdvertisingSetParameters parameters = (new AdvertisingSetParameters.Builder())
                 .setLegacyMode(PreferenceManager.getDefaultSharedPreferences(this)
                         .getBoolean(getString(R.string.prefs_legacy), false))
                 .setConnectable(false)
-                // TODO: Tunables here. Note that we're currently only calling this once on startup.
-                .setInterval(ble_interval)
-                .setTxPowerLevel(power_level)
+                // Revised at runtime by adapt() if enabled.
+                .setInterval(interval)
+                .setTxPowerLevel(power)
                 .setPrimaryPhy(BluetoothDevice.PHY_LE_1M)
                 .setSecondaryPhy(BluetoothDevice.PHY_LE_2M) // XXX #18
                 .build();
         return parameters;
     }
 
+    /**
+     * Lets the adaptive policy revise power and interval from the current storage, at most once
+     * every ADAPT_PERIOD_MS. Called from the advertiser worker.
+     */
+    private void adapt(AdvertisingUpdater updater) throws InterruptedException {
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastAdapt < ADAPT_PERIOD_MS) {
+            return;
+        }
+        mLastAdapt = now;
+        // Not every experiment computes these: fields it lacks have no handle.
+        int notAlone = AP.handle("not_alone");
+        int degree = AP.handle("degree");
+        int flakiness = AP.handle("flakiness");
+        AdvertisingPolicy.Decision decision = mPolicy.decide(notAlone < 0 || AP.get_bool_at(notAlone),
+                degree < 0 ? -1 : AP.get_int_at(degree), flakiness < 0 ? -1 : AP.get_double_at(flakiness));
+        if (decision.sameAs(mDecision)) {
+            return;
+        }
+        if (updater.updateParameters(getAdvertisingSetParameters(decision.interval, decision.txPower))) {
+            mDecision = decision;
+            Log.d(LOG_BT_TAG, "Advertising adapted: " + decision);
+        } else {
+            Log.d(LOG_BT_TAG, "Advertising parameters rejected: " + decision);
+        }
+    }
+
     /**
      * Move service to the foreground, to avoid execution limits on background processes.
      *
@@ -281,20 +367,74 @@ public class AdvertiserService extends Service {
     @SuppressLint("MissingPermission")
     private void stopAdvertising() {
         Log.d(TAG, "Service: Stopping Advertising");
+        stopWorker();
         if (mAdvertiseCallback != null) {
             mBluetoothLeAdvertiser.stopAdvertisingSet(mAdvertiseCallback);
             mAdvertiseCallback = null;
         }
+        currentSet = null;
+        mUpdater = null;
+    }
+
+    /**
+     * Starts the worker putting exports on air, replacing the previous one if any.
+     */
+    private synchronized void startWorker(AdvertisingUpdater updater) {
+        stopWorker();
+        mWorker = new AdvertiserWorker(mAp, updater, u -> {
+            StorageChannel.get().invalidate();
+            if (ble_adaptive) {
+                adapt(u);
+            }
+        });
+        mWorker.start();
+    }
+
+    /**
+     * Stops the worker, if any, waiting a bounded time for its thread to finish.
+     */
+    private synchronized void stopWorker() {
+        if (mWorker != null) {
+            mWorker.shutdown();
+            mWorker = null;
+        }
+    }
+
+    /**
+     * Bytes of advertising data taken around the payload by the service UUID list and the service
+     * data header (see {@link #buildAdvertiseData}).
+     */
+    private static int advertiseDataOverhead(boolean legacy) {
+        int overhead = 2 + uuidLength(Constants.Service_UUID.getUuid())
+                + 2 + Math.max(uuidLength(Constants.Service_UUID.getUuid()),
+                        uuidLength(Constants.Codec_UUID.getUuid()));
+        return legacy ? overhead + FLAGS_LENGTH : overhead;
+    }
+
+    /**
+     * Bytes taken by a UUID in advertising data: on the Bluetooth base UUID, the stack sends it
+     * in 16 or 32 bits.
+     */
+    static int uuidLength(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID.getLeastSignificantBits()
+                || (uuid.getMostSignificantBits() & 0xffffffffL) != BASE_UUID.getMostSignificantBits()) {
+            return 16;
+        }
+        return uuid.getMostSignificantBits() >>> 32 <= 0xffff ? 2 : 4;
     }
 
-    private AdvertiseData buildAdvertiseData(byte[] data) {
+    /**
+     * Builds an advertisement for a payload: bare exports, for devices predating the packet
+     * codec, go under the service UUID where they look for them.
+     */
+    private AdvertiseData buildAdvertiseData(byte[] data, boolean legacy) {
 
         AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
         dataBuilder.addServiceUuid(Constants.Service_UUID);
         dataBuilder.setIncludeDeviceName(false);
         // Log.d(LOG_TAG, BaseEncoding.base16().lowerCase().encode(data));
         assert data != null;
-        dataBuilder.addServiceData(Constants.Service_UUID, data);
+        dataBuilder.addServiceData(legacy ? Constants.Service_UUID : Constants.Codec_UUID, data);
 
         return dataBuilder.build();
     }
@@ -315,15 +455,4 @@ public class AdvertiserService extends Service {
         }
         sendBroadcast(failureIntent);
     }
-
-    /**
-     * Logs AP node contents. We don't necessarily have a UI, so we broadcast and hope
-     * that there's a logger :-)
-     */
-    private void sendStorageIntent(){
-        Intent failureIntent = new Intent();
-        failureIntent.setAction(ADVERTISING_STORAGE);
-        failureIntent.putExtra(ADVERTISING_STORAGE_EXTRA_CODE, AP.get_storage());
-        sendBroadcast(failureIntent);
-    }
 }
@@ -0,0 +1,138 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.foldr.fcpp.androidDemo.Constants.LOG_BT_TAG;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread putting FCPP exports on air through an {@link AdvertisingUpdater}.
+ *
+ * There is at most one worker per advertising set: {@link #shutdown} stops it and waits for its
+ * thread to finish, within a bound. The thread blocks in native code while waiting for an export,
+ * where interrupts do not reach it, so it is woken up there too; the bound only matters if the
+ * thread is stuck elsewhere.
+ */
+class AdvertiserWorker implements Runnable {
+
+    /** Called on the worker thread after a fresh export went on air. */
+    interface ExportListener {
+        void onExport(AdvertisingUpdater updater) throws InterruptedException;
+    }
+
+    /** Longest time a worker can take to notice it was stopped. */
+    static final long SHUTDOWN_TIMEOUT_MS = AP.TX_TIMEOUT_MS + AdvertisingUpdater.COMPLETION_TIMEOUT_MS;
+
+    /** How long each fragment of a packet too large for one advertisement stays on air. */
+    static final long FRAGMENT_ROTATE_MS = 100;
+
+    private final AP mAp;
+    private final AdvertisingUpdater mUpdater;
+    private final ExportListener mListener;
+    private final Thread mThread;
+    private volatile boolean mCancelled = false;
+
+    /* Statistics, written by the worker thread only. */
+    private volatile long mIterations = 0;
+    private volatile long mIdleNanos = 0;
+
+    AdvertiserWorker(AP ap, AdvertisingUpdater updater, ExportListener listener) {
+        mAp = ap;
+        mUpdater = updater;
+        mListener = listener;
+        mThread = new Thread(this, "fcpp-advertiser");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the worker, waiting at most {@link #SHUTDOWN_TIMEOUT_MS} for its thread to finish.
+     *
+     * @return whether the thread finished
+     */
+    boolean shutdown() {
+        mCancelled = true;
+        mThread.interrupt();
+        AP.tx_wake();
+        if (Thread.currentThread() == mThread) {
+            return false;
+        }
+        try {
+            mThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            Log.w(LOG_BT_TAG, "Advertiser thread still running after " + SHUTDOWN_TIMEOUT_MS + "ms.");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        byte[][] frames = null;
+        boolean legacy = false;
+        int next = 0;
+        try {
+            while (!mCancelled) {
+                mIterations++;
+                boolean rotating = frames != null && frames.length > 1;
+                long waitStart = SystemClock.elapsedRealtimeNanos();
+                // Blocking, with timeout (short if there are fragments to rotate):
+                AP.Export fresh = mAp.getMsg(rotating ? FRAGMENT_ROTATE_MS : AP.TX_TIMEOUT_MS);
+                if (fresh != null) {
+                    frames = fresh.frames;
+                    legacy = fresh.legacy;
+                    next = 0;
+                } else {
+                    mIdleNanos += SystemClock.elapsedRealtimeNanos() - waitStart;
+                    if (!rotating) {
+                        continue;
+                    }
+                }
+                if (mCancelled) {
+                    break;
+                }
+                byte[] data = frames[next];
+                next = (next + 1) % frames.length;
+                if (mUpdater.update(data, legacy) && mUpdater.getIssued() % 50 == 0) {
+                    logStatistics();
+                }
+                if (fresh != null) {
+                    mListener.onExport(mUpdater);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped while waiting on the updater.
+        }
+        Log.d(LOG_BT_TAG, "Advertiser thread stopped.");
+        logStatistics();
+    }
+
+    private void logStatistics() {
+        Log.d(LOG_BT_TAG, "Advertising updates: " + mUpdater.getIssued() + " issued, "
+                + mUpdater.getUpdates() + " done, "
+                + mUpdater.getSkipped() + " skipped, " + mUpdater.getRejected() + " rejected, "
+                + mUpdater.getTimedOut() + " timed out, latency "
+                + TimeUnit.NANOSECONDS.toMillis(mUpdater.getMeanLatencyNanos()) + "ms mean, "
+                + TimeUnit.NANOSECONDS.toMillis(mUpdater.getMaxLatencyNanos()) + "ms max, backoff "
+                + mUpdater.getBackoffMillis() + "ms; " + mIterations + " iterations, "
+                + TimeUnit.NANOSECONDS.toMillis(mIdleNanos) + "ms idle.");
+        mAp.logBufferStatistics();
+    }
+
+    /** Number of times the worker waited for an export. */
+    long getIterations() {
+        return mIterations;
+    }
+
+    /** Time spent waiting without receiving an export, in nanoseconds. */
+    long getIdleNanos() {
+        return mIdleNanos;
+    }
+}
@@ -0,0 +1,120 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.bluetooth.le.AdvertisingSetParameters;
+
+/**
+ * Chooses TX power and advertising interval from what the aggregate program knows about the
+ * neighbourhood.
+ *
+ * Starting from the configured power and interval:
+ * - with nobody around, advertise at the configured power but at the slowest interval, since there
+ *   is nobody to keep up to date;
+ * - with connections to neighbours getting lost ({@code flakiness} above {@code flakyAbove}),
+ *   raise power one step and advertise at the fastest interval;
+ * - in a dense ({@code degree} at least {@code denseFrom}) and stable neighbourhood, lower power
+ *   one step and slow down by one step: neighbours are close and hear us anyway.
+ *
+ * The policy has no Android dependencies beyond the parameter constants, so that it can be
+ * exercised on its own with made-up storage values.
+ */
+final class AdvertisingPolicy {
+
+    /** Power levels, from lowest to highest. */
+    private static final int[] POWERS = {AdvertisingSetParameters.TX_POWER_ULTRA_LOW,
+            AdvertisingSetParameters.TX_POWER_LOW, AdvertisingSetParameters.TX_POWER_MEDIUM,
+            AdvertisingSetParameters.TX_POWER_HIGH};
+    /** Approximate radiated power of each level, in dBm. */
+    private static final int[] POWERS_DBM = {-21, -15, -7, 1};
+    /** Intervals, from fastest to slowest (in units of 0.625ms; INTERVAL_MIN is INTERVAL_LOW). */
+    private static final int[] INTERVALS = {AdvertisingSetParameters.INTERVAL_LOW,
+            AdvertisingSetParameters.INTERVAL_MEDIUM, AdvertisingSetParameters.INTERVAL_HIGH};
+
+    /** Default number of neighbours making a dense neighbourhood. */
+    static final int DEFAULT_DENSE_FROM = 5;
+    /** Default {@code flakiness} from which connections count as unstable. */
+    static final double DEFAULT_FLAKY_ABOVE = 0.3;
+
+    /** A choice of power and interval, with its expected cost and benefit. */
+    static final class Decision {
+        final int txPower;
+        final int interval;
+        final String reason;
+
+        Decision(int txPower, int interval, String reason) {
+            this.txPower = txPower;
+            this.interval = interval;
+            this.reason = reason;
+        }
+
+        /** Time between advertisements, which bounds how late neighbours learn about a new export. */
+        double intervalMillis() {
+            return interval * 0.625;
+        }
+
+        /** Radiated energy per second relative to one advertisement per second at 0 dBm. */
+        double relativeEnergy() {
+            return Math.pow(10, POWERS_DBM[indexOf(POWERS, txPower)] / 10.0) * 1000 / intervalMillis();
+        }
+
+        boolean sameAs(Decision other) {
+            return other != null && txPower == other.txPower && interval == other.interval;
+        }
+
+        @Override
+        public String toString() {
+            return reason + ": power " + txPower + ", interval " + intervalMillis() + "ms"
+                    + String.format(" (energy %.3f, latency %.0fms)", relativeEnergy(), intervalMillis());
+        }
+    }
+
+    private final int mPower;
+    private final int mInterval;
+    private final int mDenseFrom;
+    private final double mFlakyAbove;
+
+    /**
+     * @param power the configured TX power level
+     * @param interval the configured advertising interval
+     * @param denseFrom how many neighbours make a dense neighbourhood
+     * @param flakyAbove the {@code flakiness} from which connections count as unstable
+     */
+    AdvertisingPolicy(int power, int interval, int denseFrom, double flakyAbove) {
+        mPower = power;
+        mInterval = interval;
+        mDenseFrom = denseFrom;
+        mFlakyAbove = flakyAbove;
+    }
+
+    /**
+     * Decides power and interval from storage values of the aggregate program.
+     *
+     * @param notAlone whether there is evidence of neighbours ({@code not_alone})
+     * @param degree the number of neighbours ({@code degree}), or -1 if not computed
+     * @param flakiness how often connections get lost ({@code flakiness}), or -1 if not computed
+     */
+    Decision decide(boolean notAlone, int degree, double flakiness) {
+        int power = indexOf(POWERS, mPower);
+        int interval = indexOf(INTERVALS, mInterval);
+        if (!notAlone || degree == 0) {
+            return new Decision(mPower, INTERVALS[INTERVALS.length - 1], "alone");
+        }
+        if (flakiness > mFlakyAbove) {
+            return new Decision(POWERS[Math.min(power + 1, POWERS.length - 1)], INTERVALS[0], "unstable");
+        }
+        if (degree >= mDenseFrom && flakiness >= 0) {
+            return new Decision(POWERS[Math.max(power - 1, 0)],
+                    INTERVALS[Math.min(interval + 1, INTERVALS.length - 1)], "dense");
+        }
+        return new Decision(mPower, mInterval, "configured");
+    }
+
+    private static int indexOf(int[] values, int value) {
+        int best = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (Math.abs(values[i] - value) < Math.abs(values[best] - value)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
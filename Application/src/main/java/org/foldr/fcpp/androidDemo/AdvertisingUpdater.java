@@ -0,0 +1,321 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Pushes new payloads into a running advertising set, one update at a time.
+ *
+ * {@code setAdvertisingData} is asynchronous: the stack reports completion through
+ * {@code onAdvertisingDataSet}, and on a busy controller updates issued before that are lost or
+ * rejected. So {@link #update} waits for the previous update to complete before issuing the next
+ * one, and skips payloads identical to what is already on air. Rejections double a pause inserted
+ * before each update, successes halve it. Since the advertiser thread blocks here, exports produced
+ * in the meantime simply replace each other in the C++ mailbox, and only the newest goes on air.
+ *
+ * Changes of advertising parameters go through here as well, so that they never overlap with a
+ * data update.
+ *
+ * A completion arriving after its update was given up on must not be credited to the next one:
+ * see {@link LateCallbacks}.
+ */
+class AdvertisingUpdater {
+
+    /** The operations of an {@link AdvertisingSet} used here. */
+    interface Advertiser {
+        void setAdvertisingData(AdvertiseData data);
+        void enableAdvertising(boolean enable);
+        void setAdvertisingParameters(AdvertisingSetParameters parameters);
+    }
+
+    /** How long to wait for a completion callback before assuming it got lost. */
+    static final long COMPLETION_TIMEOUT_MS = 1000;
+    /** Pause after the first rejection. */
+    static final long MIN_BACKOFF_MS = 10;
+    /** Longest pause between updates. */
+    static final long MAX_BACKOFF_MS = 2000;
+
+    private final Advertiser mSet;
+    private final BiFunction<byte[], Boolean, AdvertiseData> mBuilder;
+    private final long mTimeoutMs;
+
+    /* Guarded by this. */
+    private byte[] mOnAir = null;
+    private int mOnAirHash = 0;
+    private boolean mOnAirLegacy = false;
+    private byte[] mInFlight = null;
+    private boolean mInFlightLegacy = false;
+    private long mSentNanos = 0;
+    private long mBackoffMs = 0;
+    private boolean mOpInFlight = false;
+    private int mOpStatus = 0;
+    private final LateCallbacks mLateData = new LateCallbacks();
+    private final LateCallbacks mLateOps = new LateCallbacks();
+
+    /* Statistics, guarded by this. */
+    private long mIssued = 0;
+    private long mUpdates = 0;
+    private long mSkipped = 0;
+    private long mRejected = 0;
+    private long mTimedOut = 0;
+    private long mTotalLatencyNanos = 0;
+    private long mMaxLatencyNanos = 0;
+
+    /**
+     * @param builder builds the advertisement for a payload, in the legacy format or not
+     */
+    AdvertisingUpdater(AdvertisingSet set, BiFunction<byte[], Boolean, AdvertiseData> builder) {
+        this(advertiser(set), builder, COMPLETION_TIMEOUT_MS);
+    }
+
+    /**
+     * @param builder builds the advertisement for a payload, in the legacy format or not
+     * @param timeoutMs how long to wait for a completion callback
+     */
+    AdvertisingUpdater(Advertiser set, BiFunction<byte[], Boolean, AdvertiseData> builder, long timeoutMs) {
+        mSet = set;
+        mBuilder = builder;
+        mTimeoutMs = timeoutMs;
+    }
+
+    private static Advertiser advertiser(AdvertisingSet set) {
+        return new Advertiser() {
+            @SuppressLint("MissingPermission")
+            @Override
+            public void setAdvertisingData(AdvertiseData data) {
+                set.setAdvertisingData(data);
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            public void enableAdvertising(boolean enable) {
+                set.enableAdvertising(enable, 0, 0);
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            public void setAdvertisingParameters(AdvertisingSetParameters parameters) {
+                set.setAdvertisingParameters(parameters);
+            }
+        };
+    }
+
+    /**
+     * Puts a payload on air, unless it is already there.
+     *
+     * @param legacy whether the payload is a bare export, for devices predating the packet codec
+     * @return whether an update was issued
+     */
+    boolean update(byte[] data, boolean legacy) throws InterruptedException {
+        int hash = Arrays.hashCode(data);
+        long backoff;
+        synchronized (this) {
+            if (hash == mOnAirHash && legacy == mOnAirLegacy && Arrays.equals(data, mOnAir)) {
+                mSkipped++;
+                return false;
+            }
+            awaitUpdate();
+            backoff = mBackoffMs;
+        }
+        if (backoff > 0) {
+            Thread.sleep(backoff);
+        }
+        synchronized (this) {
+            mIssued++;
+            mInFlight = data;
+            mInFlightLegacy = legacy;
+            mSentNanos = SystemClock.elapsedRealtimeNanos();
+            mLateData.issued();
+        }
+        mSet.setAdvertisingData(mBuilder.apply(data, legacy));
+        return true;
+    }
+
+    /**
+     * Applies new advertising parameters: advertising is disabled, updated and enabled again.
+     *
+     * @return whether the new parameters were accepted
+     */
+    boolean updateParameters(AdvertisingSetParameters parameters) throws InterruptedException {
+        if (!runAndWait(() -> mSet.enableAdvertising(false))) {
+            return false;
+        }
+        boolean ok = runAndWait(() -> mSet.setAdvertisingParameters(parameters));
+        if (!runAndWait(() -> mSet.enableAdvertising(true))) {
+            Log.e(Constants.LOG_BT_TAG, "Could not re-enable advertising.");
+        }
+        return ok;
+    }
+
+    /* Issues an operation once no data update is in flight, and waits for its completion. */
+    private boolean runAndWait(Runnable op) throws InterruptedException {
+        synchronized (this) {
+            awaitUpdate();
+            mOpInFlight = true;
+            mLateOps.issued();
+        }
+        op.run();
+        synchronized (this) {
+            long deadline = uptimeMillis() + mTimeoutMs;
+            while (mOpInFlight) {
+                long remaining = deadline - uptimeMillis();
+                if (remaining <= 0) {
+                    mTimedOut++;
+                    mOpInFlight = false;
+                    mLateOps.timedOut();
+                    return false;
+                }
+                wait(remaining);
+            }
+            return mOpStatus == AdvertisingSetCallback.ADVERTISE_SUCCESS;
+        }
+    }
+
+    /* Waits for the data update in flight, if any. */
+    private void awaitUpdate() throws InterruptedException {
+        long deadline = uptimeMillis() + mTimeoutMs;
+        while (mInFlight != null) {
+            long remaining = deadline - uptimeMillis();
+            if (remaining <= 0) {
+                Log.d(Constants.LOG_BT_TAG, "Advertising data update timed out.");
+                mTimedOut++;
+                mInFlight = null;
+                mLateData.timedOut();
+                backOff();
+                break;
+            }
+            wait(remaining);
+        }
+    }
+
+    /**
+     * To be called from {@code AdvertisingSetCallback.onAdvertisingEnabled} and
+     * {@code onAdvertisingParametersUpdated}.
+     */
+    synchronized void onOperationDone(int status) {
+        if (mLateOps.drop() || !mOpInFlight) {
+            return; // Already given up on it.
+        }
+        mOpInFlight = false;
+        mOpStatus = status;
+        notifyAll();
+    }
+
+    /**
+     * To be called from {@code AdvertisingSetCallback.onAdvertisingDataSet}.
+     */
+    synchronized void onAdvertisingDataSet(int status) {
+        if (mLateData.drop() || mInFlight == null) {
+            return; // Already given up on it.
+        }
+        long latency = SystemClock.elapsedRealtimeNanos() - mSentNanos;
+        mTotalLatencyNanos += latency;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+            mUpdates++;
+            mOnAir = mInFlight;
+            mOnAirHash = Arrays.hashCode(mOnAir);
+            mOnAirLegacy = mInFlightLegacy;
+            mBackoffMs /= 2;
+        } else {
+            Log.d(Constants.LOG_BT_TAG, "Advertising data update rejected: " + status);
+            mRejected++;
+            backOff();
+        }
+        mInFlight = null;
+        notifyAll();
+    }
+
+    /* Monotonic, like the timeouts of wait(). */
+    private static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Tells the completion callbacks of operations given up on from those of the operations
+     * issued since. The stack reports completions in order, so the first callback after a timeout
+     * is the late one; unless it never comes, in which case the callback dropped was that of the
+     * next operation, which then times out in turn without another callback being expected.
+     * Callbacks carry nothing telling which operation they complete.
+     */
+    static final class LateCallbacks {
+
+        private boolean mExpected = false;
+        private boolean mDropped = false;
+
+        /** To be called when an operation is issued. */
+        void issued() {
+            mDropped = false;
+        }
+
+        /** To be called when an operation is given up on. */
+        void timedOut() {
+            // A callback dropped meanwhile was this operation's own.
+            mExpected = !mDropped;
+        }
+
+        /** Whether to ignore a callback, as that of an operation given up on. */
+        boolean drop() {
+            if (!mExpected) {
+                return false;
+            }
+            mExpected = false;
+            mDropped = true;
+            return true;
+        }
+    }
+
+    private void backOff() {
+        mBackoffMs = Math.min(MAX_BACKOFF_MS, Math.max(MIN_BACKOFF_MS, 2 * mBackoffMs));
+    }
+
+    /** Number of updates issued, whatever their outcome. */
+    synchronized long getIssued() {
+        return mIssued;
+    }
+
+    /** Number of updates completed successfully. */
+    synchronized long getUpdates() {
+        return mUpdates;
+    }
+
+    /** Number of payloads skipped for being identical to the one on air. */
+    synchronized long getSkipped() {
+        return mSkipped;
+    }
+
+    /** Number of updates rejected by the stack. */
+    synchronized long getRejected() {
+        return mRejected;
+    }
+
+    /** Number of updates and operations whose completion never arrived. */
+    synchronized long getTimedOut() {
+        return mTimedOut;
+    }
+
+    /** Mean time from issuing an update to its completion, in nanoseconds. */
+    synchronized long getMeanLatencyNanos() {
+        long completed = mUpdates + mRejected;
+        return completed == 0 ? 0 : mTotalLatencyNanos / completed;
+    }
+
+    /** Maximum time from issuing an update to its completion, in nanoseconds. */
+    synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /** Current pause before each update, in milliseconds. */
+    synchronized long getBackoffMillis() {
+        return mBackoffMs;
+    }
+}
@@ -15,6 +15,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.FrameLayout;
 import android.widget.Spinner;
 
@@ -24,7 +25,10 @@ public class BLEParameterFragment extends Fragment {
 
     public static final String ARG_PARAM_BLE_POWER_LEVEL = "BLE_POWER_LEVEL";
     public static final String ARG_PARAM_BLE_INTERVAL = "BLE_INTERVAL";
+    public static final String ARG_PARAM_BLE_ADAPTIVE = "BLE_ADAPTIVE";
     public static final String ARG_PARAM_BLE_SCAN_MODE = "BLE_SCAN_MODE";
+    public static final String ARG_PARAM_BLE_SCAN_BATCHED = "BLE_SCAN_BATCHED";
+    public static final String ARG_PARAM_BLE_SCAN_DUTY = "BLE_SCAN_DUTY";
 
     public BLEParameterFragment() {
         // Required empty public constructor
@@ -48,12 +52,24 @@ public class BLEParameterFragment extends Fragment {
         i.putExtra(ARG_PARAM_BLE_INTERVAL, the_interval);
         Log.d(LOG_BT_TAG, "BLE interval (prefs): "+the_interval);
 
+        boolean adaptive = ((CheckBox) me.findViewById(R.id.ble_adaptive)).isChecked();
+        i.putExtra(ARG_PARAM_BLE_ADAPTIVE, adaptive);
+        Log.d(LOG_BT_TAG, "BLE adaptive (prefs): "+adaptive);
+
         Spinner spinner = me.findViewById(R.id.scan_mode);
         // Order from arrays.xml:
         int[] BLEScanMode = {ScanSettings.SCAN_MODE_BALANCED, ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.SCAN_MODE_LOW_POWER};
         int scan_mode = BLEScanMode[spinner.getSelectedItemPosition()];
         i.putExtra(ARG_PARAM_BLE_SCAN_MODE, scan_mode);
         Log.d(LOG_BT_TAG, "BLE scan mode (prefs): "+scan_mode);
+
+        boolean scan_batched = ((CheckBox) me.findViewById(R.id.scan_batched)).isChecked();
+        i.putExtra(ARG_PARAM_BLE_SCAN_BATCHED, scan_batched);
+        Log.d(LOG_BT_TAG, "BLE scan batched (prefs): "+scan_batched);
+
+        float scan_duty = ((Slider) me.findViewById(R.id.scan_duty)).getValue();
+        i.putExtra(ARG_PARAM_BLE_SCAN_DUTY, scan_duty);
+        Log.d(LOG_BT_TAG, "BLE scan duty (prefs): "+scan_duty);
     }
 
     @Override
@@ -0,0 +1,134 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Runs the scans of the {@link ScanScheduler}, handing their results to the {@link ScanIngest}.
+ *
+ * With batching requested and supported by the controller, results are delivered once per FCPP
+ * round through {@code onBatchScanResults}, instead of waking us up for every advert (see
+ * {@link #reportDelayMillis}); otherwise they are delivered as they come. The platform scanner is
+ * behind {@link Radio}, so that this can be exercised without Bluetooth.
+ *
+ * All methods must be called on the thread of the scheduler.
+ */
+class BleScanner implements ScanScheduler.Scanner {
+
+    /** The operations of the platform scanner used here. */
+    interface Radio {
+        boolean isOffloadedScanBatchingSupported();
+        /** Starts a scan for FCPP packets, with a report delay of 0 for immediate delivery. */
+        void startScan(int scanMode, long reportDelayMillis, ScanCallback callback);
+        void flushPendingScanResults(ScanCallback callback);
+        void stopScan(ScanCallback callback);
+    }
+
+    /** Told about scans refused by the platform, on the main thread. */
+    interface FailureListener {
+        void onScanFailed(int errorCode);
+    }
+
+    private final Radio mRadio;
+    private final ScanIngest mIngest;
+    private final int mScanMode;
+    private final boolean mBatched;
+    private final DoubleSupplier mRoundPeriod;
+    private final FailureListener mFailures;
+
+    private ScanCallback mCallback = null;
+    /* Report delay the running scan was started with. */
+    private long mReportDelay = 0;
+
+    /**
+     * @param batched whether to batch results, if the controller supports it
+     * @param roundPeriod the FCPP round period, in seconds
+     */
+    BleScanner(Radio radio, ScanIngest ingest, int scanMode, boolean batched,
+               DoubleSupplier roundPeriod, FailureListener failures) {
+        mRadio = radio;
+        mIngest = ingest;
+        mScanMode = scanMode;
+        mBatched = batched;
+        mRoundPeriod = roundPeriod;
+        mFailures = failures;
+    }
+
+    @Override
+    public void startScan() {
+        mCallback = new Callback();
+        mReportDelay = currentReportDelay();
+        Log.d(Constants.LOG_BT_TAG, "Scan report delay: " + mReportDelay + "ms");
+        mRadio.startScan(mScanMode, mReportDelay, mCallback);
+    }
+
+    @Override
+    public void flushScan() {
+        if (mCallback != null && mReportDelay > 0) {
+            mRadio.flushPendingScanResults(mCallback);
+        }
+    }
+
+    @Override
+    public void stopScan() {
+        if (mCallback != null) {
+            mRadio.stopScan(mCallback);
+        }
+        mCallback = null;
+    }
+
+    /** Whether a scan is running with a report delay no longer following the round period. */
+    boolean isReportDelayStale() {
+        return mCallback != null && currentReportDelay() != mReportDelay;
+    }
+
+    private long currentReportDelay() {
+        return reportDelayMillis(mBatched, mRadio.isOffloadedScanBatchingSupported(), mRoundPeriod.getAsDouble());
+    }
+
+    /**
+     * Report delay for a scan: with controller-side batching, results are delivered once per
+     * FCPP round through {@code onBatchScanResults}, instead of waking us up for every advert.
+     *
+     * @param batched whether batching was requested
+     * @param offloaded whether the controller supports batching
+     * @param roundPeriod the FCPP round period, in seconds
+     * @return the delay in milliseconds, 0 for immediate delivery
+     */
+    static long reportDelayMillis(boolean batched, boolean offloaded, double roundPeriod) {
+        if (!batched || !offloaded || !(roundPeriod > 0)) {
+            return 0;
+        }
+        return Math.round(roundPeriod * 1000);
+    }
+
+    /**
+     * Hands results over to the ingest thread, and failures to the listener.
+     */
+    private class Callback extends ScanCallback {
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+
+            mIngest.submit(results);
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+
+            mIngest.submit(result);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            mFailures.onScanFailed(errorCode);
+        }
+    }
+}
@@ -31,6 +31,15 @@ public class Constants {
     public static final ParcelUuid Service_UUID = ParcelUuid
             .fromString("0000b81d-0000-1000-8000-00805f9b34fb");
 
+    /**
+     * UUID of the service data holding packets in the packet codec format.
+     *
+     * Devices predating the codec only read the service data under {@link #Service_UUID}, where
+     * bare exports go for them (see {@code lib/common/packet_codec.hpp}).
+     */
+    public static final ParcelUuid Codec_UUID = ParcelUuid
+            .fromString("0000b81e-0000-1000-8000-00805f9b34fb");
+
     public static final int REQUEST_ENABLE_BT = 1;
 
     public static final int REQUEST_AFL = 2;
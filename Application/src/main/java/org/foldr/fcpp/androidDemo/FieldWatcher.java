@@ -0,0 +1,150 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.foldr.fcpp.androidDemo.Constants.LOG_TAG;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Delivers changes of storage fields to the main thread, as they happen.
+ *
+ * At the end of every round, the native side compares the subscribed fields with their values in
+ * the previous round, and if any changed it signals an event file descriptor. The main looper
+ * watches that descriptor, so nothing runs in between: a screen is updated within a round of a
+ * change, and not at all while nothing changes.
+ */
+public class FieldWatcher {
+
+    /** Receives changed fields, on the main thread. */
+    public interface Listener {
+        /**
+         * @param values  all the fields subscribed to, field i at {@code getDouble(i * Double.BYTES)}
+         * @param changed mask of the fields that changed since the previous call (bit i for field
+         *                i; all of them on the first call)
+         */
+        void onChanged(ByteBuffer values, long changed);
+    }
+
+    private static FieldWatcher sInstance;
+
+    /** The watcher of the running experiment. To be used on the main thread. */
+    public static FieldWatcher get() {
+        if (sInstance == null) {
+            sInstance = new FieldWatcher(Looper.getMainLooper().getQueue());
+        }
+        return sInstance;
+    }
+
+    private static final class Subscription {
+        final Listener listener;
+        final ByteBuffer values;
+
+        Subscription(Listener listener, int fields) {
+            this.listener = listener;
+            this.values = AP.snapshotBuffer(fields);
+        }
+    }
+
+    private final MessageQueue mQueue;
+    private final Map<Integer, Subscription> mSubscriptions = new LinkedHashMap<>();
+    private ParcelFileDescriptor mEvent = null;
+
+    /* Statistics. */
+    private long mWakeups = 0;
+    private long mDeliveries = 0;
+
+    private FieldWatcher(MessageQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Subscribes to changes of fields of the running experiment (at most 64, see AP.handle()).
+     *
+     * @return the subscription, to be passed to {@link #unsubscribe}
+     */
+    public int subscribe(int[] handles, Listener listener) {
+        if (mSubscriptions.isEmpty() && !watch()) {
+            return -1;
+        }
+        int id = AP.subscribe_fields(handles);
+        mSubscriptions.put(id, new Subscription(listener, handles.length));
+        return id;
+    }
+
+    public void unsubscribe(int id) {
+        if (mSubscriptions.remove(id) == null) {
+            return;
+        }
+        AP.unsubscribe_fields(id);
+        if (mSubscriptions.isEmpty()) {
+            unwatch();
+        }
+    }
+
+    private boolean watch() {
+        try {
+            mEvent = ParcelFileDescriptor.fromFd(AP.change_event_fd());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot watch storage changes.", e);
+            return false;
+        }
+        mQueue.addOnFileDescriptorEventListener(mEvent.getFileDescriptor(),
+                MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT, (fd, events) -> {
+                    if ((events & MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR) != 0) {
+                        Log.e(LOG_TAG, "Storage change events broken.");
+                        return 0;
+                    }
+                    onEvent();
+                    return MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
+                });
+        return true;
+    }
+
+    private void unwatch() {
+        mQueue.removeOnFileDescriptorEventListener(mEvent.getFileDescriptor());
+        try {
+            mEvent.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot close storage change events.", e);
+        }
+        mEvent = null;
+    }
+
+    private void onEvent() {
+        AP.drain_change_event();
+        mWakeups++;
+        if (AP.is_stopping) {
+            return;
+        }
+        // Listeners may unsubscribe while being called.
+        for (int id : new ArrayList<>(mSubscriptions.keySet())) {
+            Subscription s = mSubscriptions.get(id);
+            if (s == null) {
+                continue;
+            }
+            long changed = AP.take_changes(id, s.values);
+            if (changed != 0) {
+                mDeliveries++;
+                s.listener.onChanged(s.values, changed);
+            }
+        }
+    }
+
+    /** Number of times the main thread was woken up by a change. */
+    public long getWakeups() {
+        return mWakeups;
+    }
+
+    /** Number of deliveries to listeners. */
+    public long getDeliveries() {
+        return mDeliveries;
+    }
+}
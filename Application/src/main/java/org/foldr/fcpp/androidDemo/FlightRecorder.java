@@ -0,0 +1,119 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.foldr.fcpp.androidDemo.Constants.LOG_TAG;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.widget.Toast;
+
+import java.io.File;
+
+/**
+ * Java side of the native flight recorder, which keeps the latest packet events of both layers
+ * in a fixed-size ring (see {@code lib/common/flight_recorder.hpp} for the events and the dump
+ * format).
+ *
+ * Disabled by default: then recording costs one volatile read here, and one relaxed load on the
+ * native side. Once enabled, the ring can be dumped to a file at any time for offline analysis.
+ *
+ * While recording from the UI, the outgoing exports are also written to a file, to be fed to
+ * {@code run/codec_bench.cpp} (see {@code lib/common/export_capture.hpp} for the format).
+ */
+public final class FlightRecorder {
+
+    /* Event kinds recorded from Java, as in common::flight_recorder::kind. */
+    static final int RX_QUEUED = 0;
+    static final int RX_DROPPED = 1;
+    static final int TX_TAKEN = 8;
+
+    private static volatile boolean sEnabled = false;
+    /* File receiving the outgoing exports, if any. */
+    private static File sCapture = null;
+
+    private FlightRecorder() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        sEnabled = on;
+        AP.flight_enable(on);
+    }
+
+    /**
+     * Records an event, if enabled.
+     *
+     * @param depth depth of the queue the packet went through (fragments for outgoing packets)
+     * @param stamp when the packet was received, on {@link SystemClock#elapsedRealtimeNanos}
+     *              (0 for outgoing packets)
+     */
+    static void record(int kind, int uid, int size, int depth, long stamp) {
+        if (!sEnabled) {
+            return;
+        }
+        AP.flight_record(kind, uid, size, depth, stamp, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Dumps the events recorded so far to a new file in the app's external files directory.
+     *
+     * @return the file, or null if it could not be written
+     */
+    public static File dump(Context context) {
+        File file = newFile(context, "flight");
+        long count = AP.flight_dump(file.getPath());
+        if (count < 0) {
+            Log.e(LOG_TAG, "Could not write flight recorder to " + file + ".");
+            return null;
+        }
+        Log.i(LOG_TAG, "Flight recorder: " + count + " events written to " + file + ".");
+        return file;
+    }
+
+    /**
+     * Closes the file of outgoing exports, if any, and starts a new one if still recording.
+     */
+    static synchronized void rotateCapture(Context context) {
+        if (sCapture != null) {
+            long count = AP.capture_close();
+            Log.i(LOG_TAG, "Export capture: " + count + " exports written to " + sCapture + ".");
+            sCapture = null;
+        }
+        if (sEnabled) {
+            File file = newFile(context, "exports");
+            if (AP.capture_open(file.getPath())) {
+                sCapture = file;
+            } else {
+                Log.e(LOG_TAG, "Could not write exports to " + file + ".");
+            }
+        }
+    }
+
+    private static File newFile(Context context, String prefix) {
+        return new File(context.getExternalFilesDir(null),
+                prefix + "-" + AP.uid + "-" + System.currentTimeMillis() + ".bin");
+    }
+
+    /**
+     * Long-click handler starting the recorder on first use, and dumping it on later ones.
+     */
+    public static boolean onLongClick(View view) {
+        Context context = view.getContext();
+        if (!sEnabled) {
+            setEnabled(true);
+            rotateCapture(context);
+            Toast.makeText(context, "Recording packets, long-press again to save them.",
+                    Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        File file = dump(context);
+        rotateCapture(context);
+        Toast.makeText(context, file == null ? "Could not save packets." : "Packets saved to " + file,
+                Toast.LENGTH_LONG).show();
+        return true;
+    }
+}
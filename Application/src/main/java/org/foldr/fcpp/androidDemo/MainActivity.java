@@ -68,13 +68,16 @@ public class MainActivity extends FragmentActivity
         /* TODO:
             init FCPP params here.
          */
+        final int latitude = AP.handle("position_latitude");
+        final int longitude = AP.handle("position_longitude");
+        final int accuracy = AP.handle("position_accuracy");
         locationListener = new LocationListener() {
             @Override
             public void onLocationChanged(@NonNull Location location) {
                 // Call into FCPP:
-                AP.set_double("position_latitude", location.getLatitude());
-                AP.set_double("position_longitude", location.getLongitude());
-                AP.set_double("position_accuracy", location.getAccuracy());
+                AP.set_double_at(latitude, location.getLatitude());
+                AP.set_double_at(longitude, location.getLongitude());
+                AP.set_double_at(accuracy, location.getAccuracy());
             }
         };
 
@@ -196,6 +199,7 @@ public class MainActivity extends FragmentActivity
             application.locationManager.removeUpdates(locationListener);
         // Stop the advertiser. Note that there's also the AdvertiserService.running static flag.
         stopService(new Intent(this, AdvertiserService.class));
+        AP.flushTelemetry();
         AP.fcpp_stop();
         super.onDestroy();
     }
@@ -290,6 +294,17 @@ public class MainActivity extends FragmentActivity
                 });
                 uid_prefs.setTitle(uid_prefs.getTitle() + ": "+ AP.uid);
             }
+            { // The telemetry queue is set up when the app starts:
+                Preference.OnPreferenceChangeListener restart = new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(@NonNull Preference preference, Object newValue) {
+                        Toast.makeText(getContext(), "Please restart the app now!", Toast.LENGTH_LONG).show();
+                        return true;
+                    }
+                };
+                findPreference(getString(R.string.prefs_telemetry_policy)).setOnPreferenceChangeListener(restart);
+                findPreference(getString(R.string.prefs_telemetry_capacity)).setOnPreferenceChangeListener(restart);
+            }
         }
     }
 
@@ -0,0 +1,66 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+/**
+ * Compact, immutable summary of a received advertisement.
+ *
+ * A {@link ScanResult} drags along the {@code BluetoothDevice} and the parsed {@link ScanRecord}
+ * maps, and extracting the service data copies it every time. We extract everything we need once
+ * in the scan callback, and the rest of the pipeline only ever sees these records.
+ */
+final class PacketRecord {
+
+    /** Sender UID, from the last two bytes of the payload. */
+    final int uid;
+    /** When the packet was received, in {@code SystemClock.elapsedRealtimeNanos()} time. */
+    final long timestampNanos;
+    final int rssi;
+    /** Advertised TX power, or {@code ScanResult.TX_POWER_NOT_PRESENT}. */
+    final int txPower;
+    /** The service data, as handed out by {@link ScanRecord} (we own the array, nobody copies it). */
+    final byte[] payload;
+    /** Whether the payload is a bare export from a device predating the packet codec. */
+    final boolean legacy;
+
+    private PacketRecord(int uid, long timestampNanos, int rssi, int txPower, byte[] payload, boolean legacy) {
+        this.uid = uid;
+        this.timestampNanos = timestampNanos;
+        this.rssi = rssi;
+        this.txPower = txPower;
+        this.payload = payload;
+        this.legacy = legacy;
+    }
+
+    /**
+     * Extracts a record from a scan result.
+     *
+     * @return the record, or {@code null} if the result carries no usable FCPP payload
+     */
+    static PacketRecord from(ScanResult scanResult) {
+        ScanRecord scanRecord = scanResult.getScanRecord();
+        if (scanRecord == null) {
+            return null;
+        }
+        byte[] serviceData = scanRecord.getServiceData(Constants.Codec_UUID);
+        boolean legacy = serviceData == null;
+        if (legacy) {
+            serviceData = scanRecord.getServiceData(Constants.Service_UUID);
+        }
+        if (serviceData == null || serviceData.length < 2) {
+            Log.d(Constants.LOG_BT_TAG, "Ignoring small packet.");
+            return null;
+        }
+        return new PacketRecord(getSenderUid(serviceData), scanResult.getTimestampNanos(),
+                scanResult.getRssi(), scanResult.getTxPower(), serviceData, legacy);
+    }
+
+    private static int getSenderUid(byte[] serviceData) {
+        // Rotating hw-id useless here, we extract the contained UID:
+        byte uid_lo = serviceData[serviceData.length-2];
+        byte uid_hi = serviceData[serviceData.length-1];
+        return ((uid_hi << 8) & 0x0000ff00) | (uid_lo & 0x000000ff);
+    }
+}
@@ -0,0 +1,80 @@
+package org.foldr.fcpp.androidDemo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded buffer for received transmissions, writing straight into the native receive ring.
+ *
+ * The ring lives in native memory and is shared through a direct {@link ByteBuffer}, so the FCPP
+ * round thread never has to call back into Java to pick up packets. With
+ * {@code CALLBACK_TYPE_ALL_MATCHES} a neighbour may be reported many times per round: C++ keeps
+ * only the newest packet per sender when draining the ring. If the ring is full, new packets are
+ * dropped until the next round has caught up.
+ *
+ * Each packet is prefixed by its reception time, so that C++ can date messages correctly and
+ * discard those older than {@code retain_time} without parsing them, and by a byte telling
+ * whether it is a bare export from a device predating the packet codec.
+ */
+class ReceiveBuffer {
+
+    private ByteBuffer ring = null;
+    private int slotSize;
+
+    private long dropped = 0;
+
+    /**
+     * Copies the payload of a record into the next free slot of the ring.
+     *
+     * @return whether the record made it into the ring
+     */
+    synchronized boolean offer(PacketRecord record) {
+        if (ring == null) {
+            ring = AP.rx_ring().order(ByteOrder.nativeOrder());
+            slotSize = AP.ring_slot_size();
+        }
+        byte[] data = record.payload;
+        if (Long.BYTES + 1 + data.length > slotSize - Short.BYTES) {
+            dropped++;
+            FlightRecorder.record(FlightRecorder.RX_DROPPED, record.uid, data.length, 0, record.timestampNanos);
+            return false;
+        }
+        int slot = AP.rx_reserve();
+        if (slot < 0) {
+            dropped++;
+            if (FlightRecorder.isEnabled()) {
+                FlightRecorder.record(FlightRecorder.RX_DROPPED, record.uid, data.length, AP.rx_depth(), record.timestampNanos);
+            }
+            return false;
+        }
+        ring.position(slot * slotSize + Short.BYTES);
+        ring.putLong(record.timestampNanos);
+        ring.put((byte) (record.legacy ? 1 : 0));
+        ring.put(data);
+        AP.rx_commit(Long.BYTES + 1 + data.length);
+        if (FlightRecorder.isEnabled()) {
+            FlightRecorder.record(FlightRecorder.RX_QUEUED, record.uid, data.length, AP.rx_depth(), record.timestampNanos);
+        }
+        return true;
+    }
+
+    /** Number of packets replaced by a newer one from the same sender before being read. */
+    long getCoalesced() {
+        return AP.rx_coalesced();
+    }
+
+    /** Number of packets discarded unread by C++ for being older than {@code retain_time}. */
+    long getStale() {
+        return AP.rx_stale();
+    }
+
+    /** Number of packets discarded by C++ for using an unknown codec or a lost keyframe. */
+    long getUndecodable() {
+        return AP.rx_undecodable();
+    }
+
+    /** Number of packets discarded because they were too large or the buffer was full. */
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
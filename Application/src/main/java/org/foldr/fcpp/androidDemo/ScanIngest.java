@@ -0,0 +1,226 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes scan results on a dedicated thread, so that a busy UI does not delay packets to FCPP.
+ *
+ * The scan callback (which Android delivers on the main thread) only timestamps and forwards
+ * results. The ingest thread parses them, drops exact repeats of a sender's last packet received
+ * within half a round of it (see {@link RepeatFilter}), and feeds FCPP. The newest record per
+ * sender is then handed to the {@link ScanResultAdapter} in batches, at most one pending batch at a
+ * time.
+ */
+class ScanIngest {
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ScanResultAdapter mAdapter;
+
+    /* Ingest thread only. */
+    private final RepeatFilter mRepeats = new RepeatFilter();
+
+    /* Records waiting for the UI, newest per sender; guarded by itself. */
+    private final SparseArray<PacketRecord> mForUi = new SparseArray<>();
+    private boolean mUiPosted = false;
+
+    /* Statistics, guarded by this. */
+    private long mEnqueued = 0;
+    private long mDuplicates = 0;
+    private long mTotalLatencyNanos = 0;
+    private long mMaxLatencyNanos = 0;
+
+    private final Runnable mPublish = this::publish;
+
+    ScanIngest(ScanResultAdapter adapter) {
+        mAdapter = adapter;
+        mThread = new HandlerThread("fcpp-ingest", Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Hands a scan result over to the ingest thread.
+     */
+    void submit(ScanResult result) {
+        long callbackNanos = SystemClock.elapsedRealtimeNanos();
+        mHandler.post(() -> ingest(result, callbackNanos));
+    }
+
+    /**
+     * Hands a batch of scan results over to the ingest thread.
+     */
+    void submit(List<ScanResult> results) {
+        long callbackNanos = SystemClock.elapsedRealtimeNanos();
+        mHandler.post(() -> {
+            for (ScanResult result : results) {
+                ingest(result, callbackNanos);
+            }
+        });
+    }
+
+    /**
+     * Stops the ingest thread once the results already submitted have been processed.
+     */
+    void quit() {
+        mThread.quitSafely();
+        mMainHandler.removeCallbacks(mPublish);
+    }
+
+    private void ingest(ScanResult result, long callbackNanos) {
+        PacketRecord record = PacketRecord.from(result);
+        if (record == null) {
+            return;
+        }
+        if (!mRepeats.forward(record.uid, record.payload, record.timestampNanos)) {
+            synchronized (this) {
+                mDuplicates++;
+            }
+        } else if (!AP.pending.offer(record)) {
+            // Dropped: the next copy must not count as a repeat.
+            mRepeats.forget(record.uid);
+        } else {
+            long latency = SystemClock.elapsedRealtimeNanos() - callbackNanos;
+            synchronized (this) {
+                mEnqueued++;
+                mTotalLatencyNanos += latency;
+                mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+            }
+        }
+        synchronized (mForUi) {
+            mForUi.put(record.uid, record);
+            if (!mUiPosted) {
+                mUiPosted = true;
+                mMainHandler.post(mPublish);
+            }
+        }
+    }
+
+    /**
+     * Sets the FCPP round period, in seconds, which bounds how long repeats are dropped for.
+     * Callable from any thread.
+     */
+    void setRoundPeriod(double roundPeriod) {
+        mRepeats.setWindowNanos(RepeatFilter.windowNanos(roundPeriod));
+    }
+
+    /**
+     * Tells which packets repeat the last one forwarded from the same sender, so recently that
+     * forwarding them would not tell FCPP anything new.
+     *
+     * Senders advertise an unchanged export again and again, and FCPP needs a copy every round to
+     * keep them as neighbours: a repeat is only dropped within a window of half a round since the
+     * copy forwarded, so that whatever the phase, every round gets one. Senders are forgotten once
+     * their window is over, as FCPP coalesces repeats within a round anyway.
+     */
+    static final class RepeatFilter {
+
+        /** Window for a round of one second, until told otherwise. */
+        static final long DEFAULT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+        /** How many packets to forward between purges of forgotten senders. */
+        static final int PURGE_PERIOD = 256;
+
+        private static final class Forwarded {
+            final byte[] payload;
+            final long timestampNanos;
+
+            Forwarded(byte[] payload, long timestampNanos) {
+                this.payload = payload;
+                this.timestampNanos = timestampNanos;
+            }
+        }
+
+        private final Map<Integer, Forwarded> mLast = new HashMap<>();
+        private volatile long mWindowNanos = DEFAULT_WINDOW_NANOS;
+        private int mUntilPurge = PURGE_PERIOD;
+
+        /** Half a round, for a round period in seconds (the default window if not positive). */
+        static long windowNanos(double roundPeriod) {
+            return roundPeriod > 0 ? (long) (roundPeriod * 5e8) : DEFAULT_WINDOW_NANOS;
+        }
+
+        void setWindowNanos(long windowNanos) {
+            mWindowNanos = windowNanos;
+        }
+
+        /**
+         * Whether to forward a packet, received at a given time; if so, it becomes the last one
+         * forwarded from its sender.
+         */
+        boolean forward(int uid, byte[] payload, long timestampNanos) {
+            long window = mWindowNanos;
+            Forwarded last = mLast.get(uid);
+            if (last != null && timestampNanos - last.timestampNanos < window
+                    && Arrays.equals(last.payload, payload)) {
+                return false;
+            }
+            mLast.put(uid, new Forwarded(payload, timestampNanos));
+            if (--mUntilPurge <= 0) {
+                mUntilPurge = PURGE_PERIOD;
+                Iterator<Forwarded> it = mLast.values().iterator();
+                while (it.hasNext()) {
+                    if (timestampNanos - it.next().timestampNanos >= window) {
+                        it.remove();
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Forgets the last packet forwarded from a sender, e.g. because it was lost. */
+        void forget(int uid) {
+            mLast.remove(uid);
+        }
+
+        /** Number of senders remembered. */
+        int size() {
+            return mLast.size();
+        }
+    }
+
+    /* On the main thread. */
+    private void publish() {
+        synchronized (mForUi) {
+            for (int i = 0; i < mForUi.size(); i++) {
+                mAdapter.add(mForUi.valueAt(i));
+            }
+            mForUi.clear();
+            mUiPosted = false;
+        }
+        mAdapter.requestUpdate();
+    }
+
+    /** Number of packets passed on to FCPP. */
+    synchronized long getEnqueued() {
+        return mEnqueued;
+    }
+
+    /** Number of packets dropped as repeats of the previous one from the same sender. */
+    synchronized long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /** Mean time from scan callback to the packet being available to FCPP, in nanoseconds. */
+    synchronized long getMeanLatencyNanos() {
+        return mEnqueued == 0 ? 0 : mTotalLatencyNanos / mEnqueued;
+    }
+
+    /** Maximum time from scan callback to the packet being available to FCPP, in nanoseconds. */
+    synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+}
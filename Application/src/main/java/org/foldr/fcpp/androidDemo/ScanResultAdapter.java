@@ -16,11 +16,10 @@
 
 package org.foldr.fcpp.androidDemo;
 
-import android.annotation.SuppressLint;
-import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.SystemClock;
-import android.util.Log;
+import android.util.SparseIntArray;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,11 +30,25 @@ import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Holds and displays {@link ScanResult}s, used by {@link ScannerFragment}.
+ * Holds and displays the latest {@link PacketRecord} per sender, used by {@link ScannerFragment}.
+ * Senders are indexed by UID, and dropped once they have not been heard from within the retain time.
+ * Must only be used from the main thread.
  */
 public class ScanResultAdapter extends BaseAdapter {
 
-    private ArrayList<ScanResult> mArrayList;
+    private ArrayList<PacketRecord> mArrayList;
+
+    /* Sender UID -> position in mArrayList. */
+    private SparseIntArray mIndex;
+
+    private long mRetainNanos = TimeUnit.SECONDS.toNanos(5);
+
+    private boolean mUpdatePending = false;
+
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> {
+        mUpdatePending = false;
+        notifyDataSetChanged();
+    };
 
     private Context mContext;
 
@@ -46,6 +59,7 @@ public class ScanResultAdapter extends BaseAdapter {
         mContext = context;
         mInflater = inflater;
         mArrayList = new ArrayList<>();
+        mIndex = new SparseIntArray();
     }
 
     @Override
@@ -60,7 +74,7 @@ public class ScanResultAdapter extends BaseAdapter {
 
     @Override
     public long getItemId(int position) {
-        return getSenderUid(mArrayList.get(position));
+        return mArrayList.get(position).uid;
     }
 
     @Override
@@ -75,62 +89,71 @@ public class ScanResultAdapter extends BaseAdapter {
         TextView deviceAddressView = view.findViewById(R.id.device_address);
         TextView lastSeenView = view.findViewById(R.id.last_seen);
 
-        ScanResult scanResult = mArrayList.get(position);
+        PacketRecord record = mArrayList.get(position);
 
-        @SuppressLint("MissingPermission") String name = scanResult.getDevice().getName();
-        if (name == null) {
-            name = mContext.getResources().getString(R.string.no_name);
-        }
-        int uid = getSenderUid(scanResult);
-        deviceAddressView.setText(uid + ":"+scanResult.getDevice().getAddress());
-        lastSeenView.setText(getTimeSinceString(mContext, scanResult.getTimestampNanos()));
+        deviceAddressView.setText(record.uid + ": " + record.rssi + " dBm");
+        lastSeenView.setText(getTimeSinceString(mContext, record.timestampNanos));
 
         return view;
     }
 
-    private int getSenderUid(ScanResult scanResult) {
-        byte[] serviceData = scanResult.getScanRecord().getServiceData(Constants.Service_UUID);
-        if (serviceData.length < 2) {
-            Log.d(Constants.LOG_BT_TAG, "Ignoring small packet.");
-            return -1;
+    /**
+     * Add a PacketRecord to the adapter if a record from that sender isn't already present.
+     * Otherwise updates the existing position with the new PacketRecord.
+     */
+    public void add(PacketRecord record) {
+
+        int existingPosition = mIndex.get(record.uid, -1);
+
+        if (existingPosition >= 0) {
+            // Device is already in list, update its record.
+            mArrayList.set(existingPosition, record);
+        } else {
+            // Add new Device's PacketRecord to list.
+            mIndex.put(record.uid, mArrayList.size());
+            mArrayList.add(record);
         }
-        // Rotating hw-id useless here, we extract the contained UID:
-        byte uid_lo = serviceData[serviceData.length-2];
-        byte uid_hi = serviceData[serviceData.length-1];
-        int uid = ((uid_hi << 8) & 0x0000ff00) | (uid_lo & 0x000000ff);
-        return uid;
     }
 
     /**
-     * Search the adapter for an existing device address and return it, otherwise return -1.
+     * Schedules a {@link #notifyDataSetChanged()} for the next frame; repeated requests before
+     * then are folded into one.
      */
-    private int getPosition(int address) {
-        int position = -1;
-        for (int i = 0; i < mArrayList.size(); i++) {
-            if (getSenderUid(mArrayList.get(i)) == address) {
-                position = i;
-                break;
-            }
+    public void requestUpdate() {
+        if (!mUpdatePending) {
+            mUpdatePending = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
         }
-        return position;
     }
 
-
     /**
-     * Add a ScanResult item to the adapter if a result from that device isn't already present.
-     * Otherwise updates the existing position with the new ScanResult.
+     * Sets how long a sender stays listed without being heard from.
      */
-    public void add(ScanResult scanResult) {
-
-        int existingPosition = getPosition(getSenderUid(scanResult));
+    public void setRetainTime(double seconds) {
+        mRetainNanos = Math.round(seconds * TimeUnit.SECONDS.toNanos(1));
+    }
 
-        if (existingPosition >= 0) {
-            // Device is already in list, update its record.
-            mArrayList.set(existingPosition, scanResult);
-        } else {
-            // Add new Device's ScanResult to list.
-            mArrayList.add(scanResult);
+    /**
+     * Drops all senders not heard from within the retain time.
+     */
+    public void evictStale() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        int kept = 0;
+        for (int i = 0; i < mArrayList.size(); i++) {
+            PacketRecord record = mArrayList.get(i);
+            if (now - record.timestampNanos <= mRetainNanos) {
+                mArrayList.set(kept++, record);
+            }
+        }
+        if (kept < mArrayList.size()) {
+            mArrayList.subList(kept, mArrayList.size()).clear();
+            mIndex.clear();
+            for (int i = 0; i < kept; i++) {
+                mIndex.put(mArrayList.get(i).uid, i);
+            }
         }
+        // Even if nothing was dropped, update 'last seen' times.
+        requestUpdate();
     }
 
     /**
@@ -138,6 +161,7 @@ public class ScanResultAdapter extends BaseAdapter {
      */
     public void clear() {
         mArrayList.clear();
+        mIndex.clear();
     }
 
     /**
@@ -0,0 +1,181 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Duty-cycles BLE scanning in windows aligned to the FCPP round.
+ *
+ * Each cycle spans a whole number of rounds, and scanning is on for a fraction of it (the duty).
+ * Cycles start at multiples of their length on the {@code elapsedRealtime()} clock, so windows
+ * keep the same phase with respect to the (periodic) rounds. That phase is arbitrary, as the
+ * round thread does not tell when its rounds start: a window shorter than a round covers the same
+ * part of every round it falls in, not necessarily the one just before the round ends. Android refuses scans from apps that
+ * start more than {@link #QUOTA_STARTS} scans within {@link #QUOTA_PERIOD_MS}, so cycles are
+ * never shorter than {@link #MIN_CYCLE_MS}, and starts are deferred if the quota is used up
+ * anyway. A duty of 1 or more scans continuously.
+ *
+ * Times are all taken on {@code elapsedRealtime()}, and turned into delays before being posted:
+ * the handler runs on {@code uptimeMillis()}, which stops while the device sleeps.
+ *
+ * All methods must be called on the thread of the handler.
+ */
+class ScanScheduler {
+
+    /** Turns the actual scanner on and off. */
+    interface Scanner {
+        void startScan();
+        /** Delivers the results batched by the controller so far, if any. */
+        void flushScan();
+        void stopScan();
+    }
+
+    /** Platform limit on scan starts per app... */
+    static final int QUOTA_STARTS = 5;
+    /** ...within this period. */
+    static final long QUOTA_PERIOD_MS = 30000;
+    /** Shortest cycle, leaving one start of the quota spare for restarts. */
+    static final long MIN_CYCLE_MS = QUOTA_PERIOD_MS / (QUOTA_STARTS - 1);
+
+    private final Handler mHandler;
+    private final Scanner mScanner;
+    private final ScanIngest mIngest;
+    private double mDuty;
+
+    /* Times of the latest scan starts, oldest first. */
+    private final ArrayDeque<Long> mStarts = new ArrayDeque<>();
+    private boolean mRunning = false;
+    private boolean mScanning = false;
+
+    /* Statistics. */
+    private long mSince = 0;
+    private long mPacketsSince = 0;
+    private long mScanningSince = 0;
+    private long mScanMillis = 0;
+
+    private final Runnable mCycle = this::cycle;
+
+    ScanScheduler(Handler handler, Scanner scanner, ScanIngest ingest, double duty) {
+        mHandler = handler;
+        mScanner = scanner;
+        mIngest = ingest;
+        mDuty = duty;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /** Fraction of each cycle spent scanning, taking effect from the next window. */
+    void setDuty(double duty) {
+        mDuty = duty;
+    }
+
+    double getDuty() {
+        return mDuty;
+    }
+
+    void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mSince = SystemClock.elapsedRealtime();
+        mPacketsSince = mIngest.getEnqueued();
+        mScanMillis = 0;
+        mHandler.post(mCycle);
+    }
+
+    void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mCycle);
+        if (mScanning) turnOff(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Restarts a running scan so that new scan settings take effect, if the quota allows.
+     */
+    void restart() {
+        long now = SystemClock.elapsedRealtime();
+        if (!mScanning || !quotaAvailable(now)) return;
+        turnOff(now);
+        turnOn(now);
+    }
+
+    private void cycle() {
+        if (!mRunning) return;
+        long now = SystemClock.elapsedRealtime();
+        if (!mScanning && !quotaAvailable(now)) {
+            Log.d(Constants.LOG_BT_TAG, "Scan start quota used up, deferring window.");
+            mHandler.postDelayed(mCycle, mStarts.peekFirst() + QUOTA_PERIOD_MS - now);
+            return;
+        }
+        if (mDuty >= 1) {
+            if (!mScanning) turnOn(now);
+            return;
+        }
+        long cycle = cycleMillis(AP.get_double_at(AP.handle("round_period")));
+        if (mScanning) {
+            turnOff(now);
+            mHandler.postDelayed(mCycle, nextCycleStart(now, cycle) - now);
+        } else {
+            turnOn(now);
+            mHandler.postDelayed(mCycle, windowMillis(cycle, mDuty));
+        }
+    }
+
+    private void turnOn(long now) {
+        mStarts.addLast(now);
+        while (mStarts.size() > QUOTA_STARTS) mStarts.removeFirst();
+        mScanningSince = now;
+        mScanning = true;
+        mScanner.startScan();
+    }
+
+    private void turnOff(long now) {
+        // Stopping a scan discards the results batched by the controller.
+        mScanner.flushScan();
+        mScanner.stopScan();
+        mScanning = false;
+        mScanMillis += now - mScanningSince;
+    }
+
+    private boolean quotaAvailable(long now) {
+        return mStarts.size() < QUOTA_STARTS || now - mStarts.peekFirst() >= QUOTA_PERIOD_MS;
+    }
+
+    /**
+     * Cycle length: the smallest whole number of rounds not shorter than {@link #MIN_CYCLE_MS}.
+     *
+     * @param roundPeriod the FCPP round period, in seconds
+     */
+    static long cycleMillis(double roundPeriod) {
+        long round = Math.max(1, Math.round(roundPeriod * 1000));
+        return (MIN_CYCLE_MS + round - 1) / round * round;
+    }
+
+    /** Scan window within a cycle, never less than a millisecond. */
+    static long windowMillis(long cycle, double duty) {
+        return Math.max(1, Math.min(cycle, Math.round(cycle * duty)));
+    }
+
+    /** Start of the first cycle after a given time. */
+    static long nextCycleStart(long now, long cycle) {
+        return (now / cycle + 1) * cycle;
+    }
+
+    /** Fraction of time actually spent scanning since the scheduler was started. */
+    double getMeasuredDuty() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mSince;
+        long scanning = mScanMillis + (mScanning ? now - mScanningSince : 0);
+        return elapsed <= 0 ? 0 : (double) scanning / elapsed;
+    }
+
+    /** Packets passed on to FCPP per second since the scheduler was started. */
+    double getCaptureRate() {
+        long elapsed = SystemClock.elapsedRealtime() - mSince;
+        return elapsed <= 0 ? 0 : (mIngest.getEnqueued() - mPacketsSince) * 1000.0 / elapsed;
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.foldr.fcpp.androidDemo;
 
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_SCAN_BATCHED;
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_SCAN_DUTY;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_SCAN_MODE;
 
 import android.annotation.SuppressLint;
@@ -23,9 +25,10 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -41,6 +44,7 @@ import androidx.preference.PreferenceManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -51,20 +55,49 @@ public class ScannerFragment extends ListFragment {
     private static final String TAG = ScannerFragment.class.getSimpleName();
 
     /**
-     * Stops scanning after 5 seconds.
+     * How often we drop neighbours that have gone quiet.
      */
-    private static final long SCAN_PERIOD = 5000;
+    private static final long EVICT_PERIOD = 1000;
 
     private BluetoothAdapter mBluetoothAdapter;
 
     private BluetoothLeScanner mBluetoothLeScanner;
 
-    private SampleScanCallback mScanCallback;
-
     private ScanResultAdapter mAdapter;
 
+    private ScanIngest mIngest;
+
+    private BleScanner mScanner;
+
+    private ScanScheduler mScheduler;
+
     private Toolbar mToolbar;
     private int scan_mode;
+    private boolean scan_batched;
+    private float scan_duty = 1;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mEvictor = new Runnable() {
+        @Override
+        public void run() {
+            if (AP.is_stopping) return;
+            mAdapter.setRetainTime(AP.get_double("retain_time"));
+            mIngest.setRoundPeriod(AP.get_double("round_period"));
+            mAdapter.evictStale();
+            if (mScanner.isReportDelayStale()) {
+                // The round period changed: restart the scan so batches follow it.
+                mScheduler.restart();
+            }
+            Log.d(Constants.LOG_BT_TAG, "Ingest: " + mIngest.getEnqueued() + " enqueued, "
+                    + mIngest.getDuplicates() + " duplicates, latency "
+                    + TimeUnit.NANOSECONDS.toMicros(mIngest.getMeanLatencyNanos()) + "us mean, "
+                    + TimeUnit.NANOSECONDS.toMicros(mIngest.getMaxLatencyNanos()) + "us max.");
+            Log.d(Constants.LOG_BT_TAG, String.format("Scan duty %.2f (measured %.2f), capture rate %.2f packets/s.",
+                    mScheduler.getDuty(), mScheduler.getMeasuredDuty(), mScheduler.getCaptureRate()));
+            mHandler.postDelayed(this, EVICT_PERIOD);
+        }
+    };
 
     /**
      * Must be called after object creation by MainActivity.
@@ -89,10 +122,42 @@ public class ScannerFragment extends ListFragment {
         // default theme, so generate it from getActivity() and pass it in separately.
         mAdapter = new ScanResultAdapter(getActivity().getApplicationContext(),
                 LayoutInflater.from(getActivity()));
+        mIngest = new ScanIngest(mAdapter);
 
         if (getArguments() != null) {
             scan_mode = getArguments().getInt(ARG_PARAM_BLE_SCAN_MODE, ScanSettings.SCAN_MODE_LOW_LATENCY);
+            scan_batched = getArguments().getBoolean(ARG_PARAM_BLE_SCAN_BATCHED, false);
+            scan_duty = getArguments().getFloat(ARG_PARAM_BLE_SCAN_DUTY, 1);
         }
+        mScanner = new BleScanner(new BleScanner.Radio() {
+            @Override
+            public boolean isOffloadedScanBatchingSupported() {
+                return mBluetoothAdapter.isOffloadedScanBatchingSupported();
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            public void startScan(int scanMode, long reportDelayMillis, ScanCallback callback) {
+                Log.d(TAG, "Starting Scanning");
+                mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(scanMode, reportDelayMillis), callback);
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            public void flushPendingScanResults(ScanCallback callback) {
+                mBluetoothLeScanner.flushPendingScanResults(callback);
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            public void stopScan(ScanCallback callback) {
+                Log.d(TAG, "Stopping Scanning");
+                mBluetoothLeScanner.stopScan(callback);
+            }
+        }, mIngest, scan_mode, scan_batched, () -> AP.get_double("round_period"),
+                errorCode -> Toast.makeText(getActivity(), "Scan failed with error: " + errorCode,
+                        Toast.LENGTH_LONG).show());
+        mScheduler = new ScanScheduler(mHandler, mScanner, mIngest, scan_duty);
     }
 
     @Override
@@ -115,6 +180,20 @@ public class ScannerFragment extends ListFragment {
 
         // Trigger refresh on app's 1st load
         startScanning();
+        mHandler.postDelayed(mEvictor, EVICT_PERIOD);
+    }
+
+    @Override
+    public void onDestroyView() {
+        mHandler.removeCallbacks(mEvictor);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onDestroy() {
+        stopScanning();
+        mIngest.quit();
+        super.onDestroy();
     }
 
     @Override
@@ -137,17 +216,11 @@ public class ScannerFragment extends ListFragment {
     }
 
     /**
-     * Start scanning for BLE Advertisements (& set it up to stop after a set period of time).
+     * Start scanning for BLE Advertisements, in windows duty-cycled by the {@link ScanScheduler}.
      */
-    @SuppressLint("MissingPermission")
     public void startScanning() {
-        if (mScanCallback == null) {
-            Log.d(TAG, "Starting Scanning");
-
-            // Kick off a new scan.
-            mScanCallback = new SampleScanCallback();
-            mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
-
+        if (!mScheduler.isRunning()) {
+            mScheduler.start();
         } else {
             Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT).show();
         }
@@ -156,14 +229,8 @@ public class ScannerFragment extends ListFragment {
     /**
      * Stop scanning for BLE Advertisements.
      */
-    @SuppressLint("MissingPermission")
     public void stopScanning() {
-        Log.d(TAG, "Stopping Scanning");
-
-        // Stop the scan, wipe the callback.
-        if (mScanCallback != null)
-            mBluetoothLeScanner.stopScan(mScanCallback);
-        mScanCallback = null;
+        mScheduler.stop();
 
         // Even if no new results, update 'last seen' times.
         mAdapter.notifyDataSetChanged();
@@ -186,47 +253,15 @@ public class ScannerFragment extends ListFragment {
     /**
      * Return a {@link ScanSettings} object set to use low power (to preserve battery life).
      */
-    private ScanSettings buildScanSettings() {
+    private ScanSettings buildScanSettings(int scanMode, long reportDelayMillis) {
         ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(scan_mode); // #20
+        builder.setScanMode(scanMode); // #20
         boolean isLegacy = PreferenceManager.getDefaultSharedPreferences(requireContext())
                 .getBoolean(getString(R.string.prefs_legacy), false);
         builder.setLegacy(isLegacy);
         builder.setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
         builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+        builder.setReportDelay(reportDelayMillis);
         return builder.build();
     }
-
-    /**
-     * Custom ScanCallback object - adds to adapter on success, displays error on failure.
-     */
-    private class SampleScanCallback extends ScanCallback {
-
-        @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            super.onBatchScanResults(results);
-
-            for (ScanResult result : results) {
-                mAdapter.add(result);
-                AP.pending.add(result);
-            }
-            mAdapter.notifyDataSetChanged();
-        }
-
-        @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            super.onScanResult(callbackType, result);
-
-            mAdapter.add(result);
-            AP.pending.add(result);
-            mAdapter.notifyDataSetChanged();
-        }
-
-        @Override
-        public void onScanFailed(int errorCode) {
-            super.onScanFailed(errorCode);
-            Toast.makeText(getActivity(), "Scan failed with error: " + errorCode, Toast.LENGTH_LONG)
-                    .show();
-        }
-    }
 }
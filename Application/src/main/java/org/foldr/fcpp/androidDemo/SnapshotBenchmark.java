@@ -0,0 +1,76 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.foldr.fcpp.androidDemo.Constants.LOG_TAG;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compares the ways of reading storage fields from Java: one call per field by name, one call per
+ * field by handle, and one {@code read_snapshot} call for all of them.
+ *
+ * Each way is warmed up, then timed over a number of batches; the median time per read of all the
+ * fields goes to the log. Meant to be run by hand on a device, not to be left running.
+ *
+ * All the ways read the copy of the storage published after every round, without taking the node
+ * lock: the times are those of the JNI calls, lookups and copies, not of waiting for the round
+ * thread, although they still share the CPU with it.
+ */
+public class SnapshotBenchmark implements Runnable {
+
+    private static final int WARMUP_BATCHES = 5;
+    private static final int BATCHES = 15;
+    private static final int READS_PER_BATCH = 2000;
+
+    private final String[] mNames;
+
+    /**
+     * @param names storage fields of the running experiment, all convertible to double
+     */
+    public SnapshotBenchmark(String[] names) {
+        mNames = names;
+    }
+
+    @Override
+    public void run() {
+        int[] handles = new int[mNames.length];
+        for (int i = 0; i < mNames.length; i++) {
+            handles[i] = AP.handle(mNames[i]);
+        }
+        ByteBuffer out = AP.snapshotBuffer(handles.length);
+        Runnable byName = () -> {
+            for (String name : mNames) {
+                AP.get_double(name);
+            }
+        };
+        Runnable byHandle = () -> {
+            for (int h : handles) {
+                AP.get_double_at(h);
+            }
+        };
+        Runnable snapshot = () -> AP.read_snapshot(handles, out);
+        Log.i(LOG_TAG, "Reading " + mNames.length + " fields: "
+                + String.format("%.0fns by name, ", measure(byName))
+                + String.format("%.0fns by handle, ", measure(byHandle))
+                + String.format("%.0fns by snapshot.", measure(snapshot)));
+    }
+
+    /* Median time of one read, in nanoseconds. */
+    private static double measure(Runnable read) {
+        double[] batches = new double[BATCHES];
+        for (int b = -WARMUP_BATCHES; b < BATCHES; b++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < READS_PER_BATCH; i++) {
+                read.run();
+            }
+            if (b >= 0) {
+                batches[b] = (SystemClock.elapsedRealtimeNanos() - start) / (double) READS_PER_BATCH;
+            }
+        }
+        Arrays.sort(batches);
+        return batches[BATCHES / 2];
+    }
+}
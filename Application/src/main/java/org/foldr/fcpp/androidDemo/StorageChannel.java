@@ -0,0 +1,193 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.foldr.fcpp.androidDemo.Constants.LOG_TAG;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Hands snapshots of the node storage to observers within the app.
+ *
+ * The advertiser signals that the storage may have changed ({@link #invalidate}), which costs
+ * nothing when nobody is subscribed. Otherwise the storage is serialised there, on the thread of
+ * the advertiser, once however many subscribers there are, and the fields that changed are added
+ * to what each subscriber has pending. Each subscriber gets its pending fields on the main thread
+ * at most once every its own minimum interval, so the main thread never touches the storage.
+ */
+class StorageChannel {
+
+    /** Receives storage fields, on the main thread. */
+    interface Subscriber {
+        /**
+         * @param changed fields whose value changed since the previous call (all of them on the
+         *                first call), by name, with their values in JSON
+         */
+        void onSnapshot(Map<String, String> changed);
+    }
+
+    private static StorageChannel sInstance;
+
+    /** The channel for the storage of this node. */
+    static synchronized StorageChannel get() {
+        if (sInstance == null) {
+            sInstance = new StorageChannel(new Handler(Looper.getMainLooper()), AP::get_storage);
+        }
+        return sInstance;
+    }
+
+    private static final class Subscription {
+        final Subscriber subscriber;
+        final long minIntervalMs;
+        /* Latest values sent or pending, and fields changed since the previous delivery. */
+        final Map<String, String> seen = new LinkedHashMap<>();
+        Map<String, String> pending = new LinkedHashMap<>();
+        long lastDelivery = 0;
+        boolean scheduled = false;
+
+        Subscription(Subscriber subscriber, long minIntervalMs) {
+            this.subscriber = subscriber;
+            this.minIntervalMs = minIntervalMs;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Supplier<String> mSource;
+
+    /* Keeps serialisations in order when invalidated from several threads; never taken on the main thread. */
+    private final Object mSourceLock = new Object();
+
+    /* Guarded by this. */
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+    /* The latest serialisation, for new subscribers. */
+    private Map<String, String> mLatest;
+
+    /* Statistics, guarded by this. */
+    private long mSerialisations = 0;
+    private long mDeliveries = 0;
+
+    StorageChannel(Handler handler, Supplier<String> source) {
+        mHandler = handler;
+        mSource = source;
+    }
+
+    /**
+     * Subscribes to storage changes, delivered at most once every {@code minIntervalMs}. To be
+     * called on the main thread.
+     */
+    synchronized void subscribe(Subscriber subscriber, long minIntervalMs) {
+        Subscription s = new Subscription(subscriber, minIntervalMs);
+        mSubscriptions.add(s);
+        if (mLatest != null) {
+            // Possibly outdated, but up to date again by the next invalidation.
+            s.seen.putAll(mLatest);
+            s.pending.putAll(mLatest);
+            schedule(s);
+        }
+    }
+
+    /** To be called on the main thread. */
+    synchronized void unsubscribe(Subscriber subscriber) {
+        Iterator<Subscription> it = mSubscriptions.iterator();
+        while (it.hasNext()) {
+            Subscription s = it.next();
+            if (s.subscriber == subscriber) {
+                mHandler.removeCallbacksAndMessages(s);
+                it.remove();
+            }
+        }
+    }
+
+    synchronized boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * Signals that the storage may have changed, serialising it if anyone is subscribed. Callable
+     * from any thread but the main one.
+     */
+    void invalidate() {
+        synchronized (mSourceLock) {
+            if (!hasSubscribers() || AP.is_stopping) {
+                return;
+            }
+            Map<String, String> fields = parse(mSource.get());
+            synchronized (this) {
+                mLatest = fields;
+                mSerialisations++;
+                for (Subscription s : mSubscriptions) {
+                    for (Map.Entry<String, String> field : fields.entrySet()) {
+                        if (!field.getValue().equals(s.seen.get(field.getKey()))) {
+                            s.seen.put(field.getKey(), field.getValue());
+                            s.pending.put(field.getKey(), field.getValue());
+                        }
+                    }
+                    if (!s.pending.isEmpty()) {
+                        schedule(s);
+                    }
+                }
+                if (mSerialisations % 100 == 0) {
+                    Log.d(LOG_TAG, "Storage channel: " + mSerialisations + " serialisations, "
+                            + mDeliveries + " deliveries to " + mSubscriptions.size() + " subscribers.");
+                }
+            }
+        }
+    }
+
+    /* Requires the lock. */
+    private void schedule(Subscription s) {
+        if (s.scheduled) {
+            return; // Conflated into the delivery already scheduled.
+        }
+        s.scheduled = true;
+        long at = Math.max(SystemClock.uptimeMillis(), s.lastDelivery + s.minIntervalMs);
+        mHandler.postAtTime(() -> deliver(s), s, at);
+    }
+
+    private void deliver(Subscription s) {
+        Map<String, String> changed;
+        synchronized (this) {
+            if (!mSubscriptions.contains(s)) {
+                return;
+            }
+            s.scheduled = false;
+            s.lastDelivery = SystemClock.uptimeMillis();
+            changed = s.pending;
+            if (changed.isEmpty()) {
+                return;
+            }
+            s.pending = new LinkedHashMap<>();
+            mDeliveries++;
+        }
+        if (AP.is_stopping) {
+            return;
+        }
+        s.subscriber.onSnapshot(changed);
+    }
+
+    private static Map<String, String> parse(String storage) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        try {
+            JSONObject json = new JSONObject(storage);
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                fields.put(key, String.valueOf(json.get(key)));
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Unreadable storage.", e);
+        }
+        return fields;
+    }
+}
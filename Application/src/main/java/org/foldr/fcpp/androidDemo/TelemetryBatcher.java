@@ -0,0 +1,75 @@
+package org.foldr.fcpp.androidDemo;
+
+import android.os.Handler;
+
+import java.time.Instant;
+
+/**
+ * Collects telemetry records into batches, uploaded as one gzip-compressed JSON array each (see
+ * {@link TelemetryQueue}).
+ *
+ * A batch is closed once it holds {@link #MAX_BATCH_BYTES} of records, or once its first record is
+ * {@link #MAX_BATCH_AGE_MS} old, whichever comes first: the age limit is a flush posted to a
+ * handler, so it holds even if no more records arrive. With a round every 0.2s, that is one
+ * request every 10s instead of five per second. Each record gets a {@code "time"} field with the
+ * time it was taken, since the server only sees it when the batch arrives.
+ *
+ * A batch for URL {@code u} is posted to {@code u + "/batch"}.
+ */
+class TelemetryBatcher {
+
+    /** Largest batch, uncompressed. */
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+    /** Longest time a record waits for its batch to be closed. */
+    static final long MAX_BATCH_AGE_MS = 10_000;
+
+    private final TelemetryQueue mQueue;
+    private final Handler mHandler;
+    private final Runnable mAgeFlush = this::flush;
+
+    /* Guarded by this. */
+    private StringBuilder mBatch = new StringBuilder();
+    private int mRecords = 0;
+    private String mUrl = null;
+
+    TelemetryBatcher(TelemetryQueue queue, Handler handler) {
+        mQueue = queue;
+        mHandler = handler;
+    }
+
+    /**
+     * Adds a record, a JSON object, to the batch for a URL.
+     */
+    synchronized void add(String record, String url) {
+        if (!url.equals(mUrl)) {
+            flush();
+            mUrl = url;
+        }
+        if (mRecords == 0) {
+            mHandler.postDelayed(mAgeFlush, MAX_BATCH_AGE_MS);
+            mBatch.append('[');
+        } else {
+            mBatch.append(',');
+        }
+        // Inserts the time before the other fields: the record is {...} with at least one field.
+        mBatch.append("{\"time\": \"").append(Instant.now()).append("\", ")
+                .append(record, 1, record.length());
+        mRecords++;
+        if (mBatch.length() >= MAX_BATCH_BYTES) {
+            flush();
+        }
+    }
+
+    /**
+     * Closes the current batch, if any, without waiting for it to fill up.
+     */
+    synchronized void flush() {
+        if (mRecords == 0) {
+            return;
+        }
+        mHandler.removeCallbacks(mAgeFlush);
+        mQueue.offer(new TelemetryQueue.Batch(mUrl + "/batch", mBatch.append(']').toString(), mRecords));
+        mBatch = new StringBuilder();
+        mRecords = 0;
+    }
+}
@@ -0,0 +1,278 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.foldr.fcpp.androidDemo.Constants.LOG_HTTP_TAG;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Bounded queue of telemetry batches, uploaded one at a time by a dedicated thread.
+ *
+ * When the network is slow or absent, batches pile up to the capacity of the queue, and then the
+ * {@link Policy} decides which ones go. A failed upload is retried after an exponential backoff
+ * with full jitter, up to {@link #MAX_ATTEMPTS} attempts; server errors (5xx) count as failures,
+ * other rejections are not retried.
+ */
+class TelemetryQueue {
+
+    /** What to drop when a batch arrives and the queue is full. */
+    enum Policy {
+        /** The oldest batch in the queue: the server gets the latest state. */
+        DROP_OLDEST,
+        /** The batch arriving: the server gets a contiguous history, up to the outage. */
+        DROP_NEWEST,
+        /** Every other batch in the queue: the server gets a thinned-out history of the outage. */
+        SAMPLE
+    }
+
+    /** A batch of records, as a JSON array. */
+    static final class Batch {
+        final String url;
+        final String json;
+        final int records;
+
+        Batch(String url, String json, int records) {
+            this.url = url;
+            this.json = json;
+            this.records = records;
+        }
+    }
+
+    /** Attempts at uploading a batch before giving up on it. */
+    static final int MAX_ATTEMPTS = 5;
+    /** Backoff ceiling after the first failure. */
+    static final long MIN_BACKOFF_MS = 1000;
+    /** Longest backoff ceiling. */
+    static final long MAX_BACKOFF_MS = 60_000;
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final OkHttpClient mClient;
+    private final Policy mPolicy;
+    private final int mCapacity;
+    private final long mMinBackoffMs;
+
+    /* Guarded by this. */
+    private final ArrayDeque<Batch> mQueue = new ArrayDeque<>();
+    private boolean mSending = false;
+
+    /* Statistics, guarded by this. */
+    private long mUploaded = 0;
+    private long mDropped = 0;
+    private long mRetries = 0;
+    private long mAbandoned = 0;
+    private long mTotalLatencyNanos = 0;
+    private long mMaxLatencyNanos = 0;
+
+    TelemetryQueue(OkHttpClient client, Policy policy, int capacity) {
+        this(client, policy, capacity, MIN_BACKOFF_MS);
+    }
+
+    /** With a shorter backoff than {@link #MIN_BACKOFF_MS}, for tests. */
+    TelemetryQueue(OkHttpClient client, Policy policy, int capacity, long minBackoffMs) {
+        mClient = client;
+        mPolicy = policy;
+        mCapacity = capacity;
+        mMinBackoffMs = minBackoffMs;
+        Thread thread = new Thread(this::run, "fcpp-telemetry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a batch for upload, dropping one according to the policy if the queue is full.
+     */
+    synchronized void offer(Batch batch) {
+        if (mQueue.size() >= mCapacity) {
+            switch (mPolicy) {
+                case DROP_OLDEST:
+                    mQueue.removeFirst();
+                    mDropped++;
+                    break;
+                case DROP_NEWEST:
+                    mDropped++;
+                    return;
+                case SAMPLE:
+                    Iterator<Batch> it = mQueue.iterator();
+                    for (boolean keep = true; it.hasNext(); keep = !keep) {
+                        it.next();
+                        if (!keep) {
+                            it.remove();
+                            mDropped++;
+                        }
+                    }
+                    if (mQueue.size() >= mCapacity) {
+                        mQueue.removeFirst(); // Too short to be thinned out.
+                        mDropped++;
+                    }
+                    break;
+            }
+        }
+        mQueue.addLast(batch);
+        notifyAll();
+    }
+
+    /**
+     * Waits for the queue to be empty and no upload to be in progress, e.g. before exiting.
+     *
+     * @return whether the queue emptied within the timeout
+     */
+    synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        while (!mQueue.isEmpty() || mSending) {
+            long left = deadline - SystemClock.elapsedRealtime();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    while (mQueue.isEmpty()) {
+                        wait();
+                    }
+                    batch = mQueue.removeFirst();
+                    mSending = true;
+                }
+                send(batch);
+                synchronized (this) {
+                    mSending = false;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(LOG_HTTP_TAG, "Telemetry thread stopped.");
+        }
+    }
+
+    /* Uploads a batch, retrying failures. */
+    private void send(Batch batch) throws InterruptedException {
+        byte[] body;
+        try {
+            body = gzip(batch.json);
+        } catch (IOException e) {
+            Log.e(LOG_HTTP_TAG, "Cannot compress telemetry.", e);
+            return;
+        }
+        Request request = new Request.Builder()
+                .url(batch.url)
+                .header("Content-Encoding", "gzip")
+                .post(RequestBody.create(body, JSON))
+                .build();
+        for (int attempt = 1; ; attempt++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            String failure;
+            try (Response response = mClient.newCall(request).execute()) {
+                if (response.isSuccessful()) {
+                    uploaded(SystemClock.elapsedRealtimeNanos() - start);
+                    return;
+                }
+                if (response.code() < 500) {
+                    Log.d(LOG_HTTP_TAG, "Batch of " + batch.records + " records rejected: "
+                            + response.code() + " " + response.message());
+                    abandoned();
+                    return;
+                }
+                failure = response.code() + " " + response.message();
+            } catch (IOException e) {
+                failure = e.toString();
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                Log.d(LOG_HTTP_TAG, "Giving up on a batch of " + batch.records + " records after "
+                        + attempt + " attempts: " + failure);
+                abandoned();
+                return;
+            }
+            synchronized (this) {
+                mRetries++;
+            }
+            long ceiling = Math.min(MAX_BACKOFF_MS, mMinBackoffMs << (attempt - 1));
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        }
+    }
+
+    private synchronized void uploaded(long latency) {
+        mUploaded++;
+        mTotalLatencyNanos += latency;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        if (mUploaded % 10 == 0) {
+            logStatistics();
+        }
+    }
+
+    private synchronized void abandoned() {
+        mAbandoned++;
+        logStatistics();
+    }
+
+    private synchronized void logStatistics() {
+        Log.d(LOG_HTTP_TAG, "Telemetry: " + mUploaded + " batches uploaded, " + mQueue.size()
+                + " queued, " + mDropped + " dropped, " + mAbandoned + " abandoned, " + mRetries
+                + " retries, latency " + TimeUnit.NANOSECONDS.toMillis(getMeanLatencyNanos())
+                + "ms mean, " + TimeUnit.NANOSECONDS.toMillis(mMaxLatencyNanos) + "ms max.");
+    }
+
+    private static byte[] gzip(String s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length() / 4);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(s.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    /** Number of batches waiting for upload. */
+    synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    /** Number of batches uploaded successfully. */
+    synchronized long getUploaded() {
+        return mUploaded;
+    }
+
+    /** Number of batches dropped by the policy, the queue being full. */
+    synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /** Number of batches given up on, after being rejected or failing too many times. */
+    synchronized long getAbandoned() {
+        return mAbandoned;
+    }
+
+    /** Number of uploads retried. */
+    synchronized long getRetries() {
+        return mRetries;
+    }
+
+    /** Mean duration of a successful upload, in nanoseconds. */
+    synchronized long getMeanLatencyNanos() {
+        return mUploaded == 0 ? 0 : mTotalLatencyNanos / mUploaded;
+    }
+
+    /** Maximum duration of a successful upload, in nanoseconds. */
+    synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+}
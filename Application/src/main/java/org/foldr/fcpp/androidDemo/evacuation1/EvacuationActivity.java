@@ -18,6 +18,9 @@ package org.foldr.fcpp.androidDemo.evacuation1;
 
 import static org.foldr.fcpp.androidDemo.AdvertiserFragment.*;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_INTERVAL;
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_SCAN_BATCHED;
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_ADAPTIVE;
+import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_SCAN_DUTY;
 import static org.foldr.fcpp.androidDemo.BLEParameterFragment.ARG_PARAM_BLE_SCAN_MODE;
 import static org.foldr.fcpp.androidDemo.Constants.LOG_TAG;
 import static org.foldr.fcpp.androidDemo.evacuation1.EvacuationFragment.*;
@@ -73,6 +76,9 @@ public class EvacuationActivity extends FragmentActivity
     private int evacuation_time;
     private int ble_power_level = AdvertisingSetParameters.TX_POWER_MEDIUM;
     private int ble_scan_mode;
+    private boolean ble_scan_batched;
+    private boolean ble_adaptive;
+    private float ble_scan_duty;
     private int ble_interval;
 
     @SuppressLint("MissingPermission")
@@ -87,6 +93,9 @@ public class EvacuationActivity extends FragmentActivity
         ble_power_level = getIntent().getIntExtra(ARG_PARAM_BLE_POWER_LEVEL, AdvertisingSetParameters.TX_POWER_MEDIUM);
         ble_interval = getIntent().getIntExtra(ARG_PARAM_BLE_INTERVAL, AdvertisingSetParameters.INTERVAL_HIGH);
         ble_scan_mode = getIntent().getIntExtra(ARG_PARAM_BLE_SCAN_MODE, ScanSettings.SCAN_MODE_LOW_LATENCY);
+        ble_scan_batched = getIntent().getBooleanExtra(ARG_PARAM_BLE_SCAN_BATCHED, false);
+        ble_adaptive = getIntent().getBooleanExtra(ARG_PARAM_BLE_ADAPTIVE, false);
+        ble_scan_duty = getIntent().getFloatExtra(ARG_PARAM_BLE_SCAN_DUTY, 1);
 
         // The options are for FCPP:
         frag = EvacuationFragment.newInstance(isTraitor, is_group_left, evacuation_time);
@@ -98,13 +107,16 @@ public class EvacuationActivity extends FragmentActivity
         AP.set_double(ARG_PARAM_RETAIN, this.retain);
         AP.set_double(ARG_PARAM_ROUND_PERIOD, getIntent().getFloatExtra(ARG_PARAM_ROUND_PERIOD,1));
 
+        final int latitude = AP.handle("position_latitude");
+        final int longitude = AP.handle("position_longitude");
+        final int accuracy = AP.handle("position_accuracy");
         locationListener = new LocationListener() {
             @Override
             public void onLocationChanged(@NonNull Location location) {
                 // Call into FCPP:
-                AP.set_double("position_latitude", location.getLatitude());
-                AP.set_double("position_longitude", location.getLongitude());
-                AP.set_double("position_accuracy", location.getAccuracy());
+                AP.set_double_at(latitude, location.getLatitude());
+                AP.set_double_at(longitude, location.getLongitude());
+                AP.set_double_at(accuracy, location.getAccuracy());
             }
         };
         setContentView(R.layout.activity_main);
@@ -197,6 +209,7 @@ public class EvacuationActivity extends FragmentActivity
         // Stop the advertiser. Note that there's also the AdvertiserService.running static flag.
         AP.is_stopping = true;
         stopService(new Intent(this, AdvertiserService.class));
+        AP.flushTelemetry();
         AP.fcpp_stop();
         super.onDestroy();
     }
@@ -253,7 +266,10 @@ public class EvacuationActivity extends FragmentActivity
         args.putBoolean(ARG_DISABLE_BROADCAST_SWITCH, true);
         args.putInt(ARG_PARAM_BLE_POWER_LEVEL, ble_power_level);
         args.putInt(ARG_PARAM_BLE_INTERVAL, ble_interval);
+        args.putBoolean(ARG_PARAM_BLE_ADAPTIVE, ble_adaptive);
         args.putInt(ARG_PARAM_BLE_SCAN_MODE, ble_scan_mode);
+        args.putBoolean(ARG_PARAM_BLE_SCAN_BATCHED, ble_scan_batched);
+        args.putFloat(ARG_PARAM_BLE_SCAN_DUTY, ble_scan_duty);
 
         FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
 
@@ -13,6 +13,8 @@ import android.widget.FrameLayout;
 import android.widget.TextView;
 
 import org.foldr.fcpp.androidDemo.AP;
+import org.foldr.fcpp.androidDemo.FieldWatcher;
+import org.foldr.fcpp.androidDemo.FlightRecorder;
 import org.foldr.fcpp.androidDemo.R;
 
 /**
@@ -33,6 +35,7 @@ public class EvacuationFragment extends Fragment {
 
     private boolean isTraitor;
     private boolean is_group_left;
+    private int mSubscription = -1;
 
     public EvacuationFragment() {
         // Required empty public constructor
@@ -82,6 +85,7 @@ public class EvacuationFragment extends Fragment {
 
         TextView uid = me.findViewById(R.id.text_uid);
         uid.setText(Integer.toString(AP.uid));
+        uid.setOnLongClickListener(FlightRecorder::onLongClick);
 
         TextView version = me.findViewById(R.id.text_version);
         // TODO: should probably come from FCPP-code! (#16)
@@ -90,21 +94,18 @@ public class EvacuationFragment extends Fragment {
         TextView state_rg = me.findViewById(R.id.text_state_rg);
         state_rg.setText(STATE_TEXTS[0]); // The XML was allergic to `?`.
         state_rg.setBackgroundColor(STATE_COLORS[0]);
-        // Set up refresh every 5 secs.
-        state_rg.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (AP.is_stopping) return;
-                state_rg.setBackgroundColor(STATE_COLORS[AP.get_int("not_alone")]);
-                state_rg.setText(STATE_TEXTS[AP.get_int("not_alone")]);
-                // Log.d(LOG_TAG, AP.get_nbr_lags());
-                state_rg.postDelayed(this, 250); // while(true)...
-                b1.setBackgroundColor(AP.get_bool("evacuation_done") ? Color.GREEN : Color.RED);
-                b2.setBackgroundColor(AP.get_bool("homogeneous_group") ? Color.GREEN : Color.RED);
-                b3.setBackgroundColor(AP.get_bool("traitor_free") ? Color.GREEN : Color.RED);
-                b4.setBackgroundColor(AP.get_bool(ARG_PARAM_IS_GROUP_LEFT) == is_group_left? Color.GREEN : Color.RED);
-            }
-        }, 1000);
+        // Fields shown, delivered whenever a round changes any of them:
+        final int[] fields = {AP.handle("not_alone"), AP.handle("evacuation_done"),
+                AP.handle("homogeneous_group"), AP.handle("traitor_free"), AP.handle(ARG_PARAM_IS_GROUP_LEFT)};
+        mSubscription = FieldWatcher.get().subscribe(fields, (snapshot, changed) -> {
+            int notAlone = (int) snapshot.getDouble(0);
+            state_rg.setBackgroundColor(STATE_COLORS[notAlone]);
+            state_rg.setText(STATE_TEXTS[notAlone]);
+            b1.setBackgroundColor(snapshot.getDouble(Double.BYTES) != 0 ? Color.GREEN : Color.RED);
+            b2.setBackgroundColor(snapshot.getDouble(2 * Double.BYTES) != 0 ? Color.GREEN : Color.RED);
+            b3.setBackgroundColor(snapshot.getDouble(3 * Double.BYTES) != 0 ? Color.GREEN : Color.RED);
+            b4.setBackgroundColor((snapshot.getDouble(4 * Double.BYTES) != 0) == is_group_left? Color.GREEN : Color.RED);
+        });
 
         TextView traitorView = me.findViewById(R.id.text_traitor);
         traitorView.setText(isTraitor ? "You're the traitor!" : "You're normal");
@@ -119,6 +120,12 @@ public class EvacuationFragment extends Fragment {
         return me;
     }
 
+    @Override
+    public void onDestroyView() {
+        FieldWatcher.get().unsubscribe(mSubscription);
+        super.onDestroyView();
+    }
+
     public enum GROUP {
         Left, Right
     }
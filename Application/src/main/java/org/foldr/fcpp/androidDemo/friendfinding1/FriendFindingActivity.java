@@ -64,6 +64,9 @@ public class FriendFindingActivity extends FragmentActivity
     private FriendFindingFragment frag;
     private int ble_power_level;
     private int ble_scan_mode;
+    private boolean ble_scan_batched;
+    private boolean ble_adaptive;
+    private float ble_scan_duty;
     private int ble_interval;
 
     @SuppressLint("MissingPermission")
@@ -74,6 +77,9 @@ public class FriendFindingActivity extends FragmentActivity
         int diameter = getIntent().getIntExtra(ARG_PARAM_DIAMETER, -1);
         ble_power_level = getIntent().getIntExtra(ARG_PARAM_BLE_POWER_LEVEL, AdvertisingSetParameters.TX_POWER_MEDIUM);
         ble_scan_mode = getIntent().getIntExtra(ARG_PARAM_BLE_SCAN_MODE, ScanSettings.SCAN_MODE_LOW_LATENCY);
+        ble_scan_batched = getIntent().getBooleanExtra(ARG_PARAM_BLE_SCAN_BATCHED, false);
+        ble_adaptive = getIntent().getBooleanExtra(ARG_PARAM_BLE_ADAPTIVE, false);
+        ble_scan_duty = getIntent().getFloatExtra(ARG_PARAM_BLE_SCAN_DUTY, 1);
         ble_interval = getIntent().getIntExtra(ARG_PARAM_BLE_INTERVAL, AdvertisingSetParameters.INTERVAL_HIGH);
         boolean use_lags = getIntent().getBooleanExtra(ARG_PARAM_USE_LAGS, true);
 
@@ -87,13 +93,16 @@ public class FriendFindingActivity extends FragmentActivity
         AP.set_double(ARG_PARAM_RETAIN, retain);
         AP.set_double(ARG_PARAM_ROUND_PERIOD, getIntent().getFloatExtra(ARG_PARAM_ROUND_PERIOD,1));
 
+        final int latitude = AP.handle("position_latitude");
+        final int longitude = AP.handle("position_longitude");
+        final int accuracy = AP.handle("position_accuracy");
         locationListener = new LocationListener() {
             @Override
             public void onLocationChanged(@NonNull Location location) {
                 // Call into FCPP:
-                AP.set_double("position_latitude", location.getLatitude());
-                AP.set_double("position_longitude", location.getLongitude());
-                AP.set_double("position_accuracy", location.getAccuracy());
+                AP.set_double_at(latitude, location.getLatitude());
+                AP.set_double_at(longitude, location.getLongitude());
+                AP.set_double_at(accuracy, location.getAccuracy());
             }
         };
         setContentView(R.layout.activity_main);
@@ -186,6 +195,7 @@ public class FriendFindingActivity extends FragmentActivity
         // Stop the advertiser. Note that there's also the AdvertiserService.running static flag.
         AP.is_stopping = true;
         stopService(new Intent(this, AdvertiserService.class));
+        AP.flushTelemetry();
         AP.fcpp_stop();
         super.onDestroy();
     }
@@ -238,20 +248,25 @@ public class FriendFindingActivity extends FragmentActivity
      */
     private void setupFragments() {
 
+        Bundle args = new Bundle();
+        args.putBoolean(ARG_BROADCAST_ON_FIRST_BOOT, true);
+        args.putBoolean(ARG_DISABLE_BROADCAST_SWITCH, true);
+        args.putInt(ARG_PARAM_BLE_POWER_LEVEL, ble_power_level);
+        args.putInt(ARG_PARAM_BLE_INTERVAL, ble_interval);
+        args.putBoolean(ARG_PARAM_BLE_ADAPTIVE, ble_adaptive);
+        args.putInt(ARG_PARAM_BLE_SCAN_MODE, ble_scan_mode);
+        args.putBoolean(ARG_PARAM_BLE_SCAN_BATCHED, ble_scan_batched);
+        args.putFloat(ARG_PARAM_BLE_SCAN_DUTY, ble_scan_duty);
+
         FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
 
         ScannerFragment scannerFragment = new ScannerFragment();
         // Fragments can't access system services directly, so pass it the BluetoothAdapter
         scannerFragment.setBluetoothAdapter(mBluetoothAdapter);
+        scannerFragment.setArguments(args);
         transaction.replace(R.id.scanner_fragment_container, scannerFragment);
 
         AdvertiserFragment advertiserFragment = new AdvertiserFragment();
-        Bundle args = new Bundle();
-        args.putBoolean(ARG_BROADCAST_ON_FIRST_BOOT, true);
-        args.putBoolean(ARG_DISABLE_BROADCAST_SWITCH, true);
-        args.putInt(ARG_PARAM_BLE_POWER_LEVEL, ble_power_level);
-        args.putInt(ARG_PARAM_BLE_INTERVAL, ble_interval);
-        args.putInt(ARG_PARAM_BLE_SCAN_MODE, ble_scan_mode);
         advertiserFragment.setArguments(args);
         transaction.replace(R.id.advertiser_fragment_container, advertiserFragment);
         transaction.replace(R.id.preferences_fragment_container, getFCPPScenarioFragmet());
@@ -4,6 +4,8 @@ import static org.foldr.fcpp.androidDemo.friendfinding1.FriendFindingParameters.
 
 import android.graphics.Color;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,7 +17,10 @@ import android.widget.TextView;
 import androidx.fragment.app.Fragment;
 
 import org.foldr.fcpp.androidDemo.AP;
+import org.foldr.fcpp.androidDemo.FieldWatcher;
+import org.foldr.fcpp.androidDemo.FlightRecorder;
 import org.foldr.fcpp.androidDemo.R;
+import org.foldr.fcpp.androidDemo.SnapshotBenchmark;
 
 /**
  * A simple {@link Fragment} subclass.
@@ -27,6 +32,8 @@ public class FriendFindingFragment extends Fragment {
     static final int[] STATE_COLORS = {Color.GRAY, Color.GREEN, Color.YELLOW, Color.RED};
     static final String[] STATE_TEXTS = {"?", "✓", "x", "X"};
 
+    private int mSubscription = -1;
+
     public FriendFindingFragment() {
         // Required empty public constructor
     }
@@ -62,6 +69,7 @@ public class FriendFindingFragment extends Fragment {
 
         TextView uid = me.findViewById(R.id.text_uid);
         uid.setText(Integer.toString(AP.uid));
+        uid.setOnLongClickListener(FlightRecorder::onLongClick);
 
         TextView version = me.findViewById(R.id.text_version);
         // TODO: should probably come from FCPP-code! (#16)
@@ -95,32 +103,53 @@ public class FriendFindingFragment extends Fragment {
         TextView connQuality = me.findViewById(R.id.conn_quality);
         TextView diamEstimate = me.findViewById(R.id.diam_estimate);
 
-        // Set up refresh every 5 secs.
-        state_rg.postDelayed(new Runnable() {
+        // Fields shown, delivered whenever a round changes any of them:
+        final int[] fields = {AP.handle("not_alone"), AP.handle("distance_score"),
+                AP.handle("flakiness"), AP.handle("estimated_diam")};
+        version.setOnLongClickListener(v -> {
+            new Thread(new SnapshotBenchmark(new String[]{"not_alone", "distance_score",
+                    "flakiness", "estimated_diam"})).start();
+            return true;
+        });
+        // The search button is enabled as soon as there is an ID to search for.
+        searchButton.setEnabled(false);
+        friendID.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
             @Override
-            public void run() {
-                if (AP.is_stopping) return;
-                state_rg.setBackgroundColor(STATE_COLORS[AP.get_int("not_alone")]);
-                state_rg.setText(STATE_TEXTS[AP.get_int("not_alone")]);
-                // Log.d(LOG_TAG, AP.get_nbr_lags());
-                state_rg.postDelayed(this, 250); // while(true)...
-                float dist = (float)AP.get_double("distance_score");
-                if (dist >= 0) {
-                    distanceView.setText(String.format("%.2f", dist));
-                    distanceView.setBackgroundColor(Color.argb(1.0f, 1 - dist, 0.0f, dist));
-                } else {
-                    distanceView.setText("-");
-                    distanceView.setBackgroundColor(Color.BLACK);
-                }
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
                 int ID = 0;
-                if (friendID.getText().length() > 0) ID = Integer.valueOf(friendID.getText().toString());
+                if (s.length() > 0) ID = Integer.valueOf(s.toString());
                 searchButton.setEnabled(ID > 0);
-                long cq = Math.round(100 - 100*AP.get_double("flakiness"));
-                connQuality.setText(Long.toString(cq) + "%");
-                diamEstimate.setText(Integer.toString(AP.get_int("estimated_diam")));
             }
-        }, 1000);
+        });
+        mSubscription = FieldWatcher.get().subscribe(fields, (snapshot, changed) -> {
+            int notAlone = (int) snapshot.getDouble(0);
+            state_rg.setBackgroundColor(STATE_COLORS[notAlone]);
+            state_rg.setText(STATE_TEXTS[notAlone]);
+            float dist = (float)snapshot.getDouble(Double.BYTES);
+            if (dist >= 0) {
+                distanceView.setText(String.format("%.2f", dist));
+                distanceView.setBackgroundColor(Color.argb(1.0f, 1 - dist, 0.0f, dist));
+            } else {
+                distanceView.setText("-");
+                distanceView.setBackgroundColor(Color.BLACK);
+            }
+            long cq = Math.round(100 - 100*snapshot.getDouble(2 * Double.BYTES));
+            connQuality.setText(Long.toString(cq) + "%");
+            diamEstimate.setText(Integer.toString((int) snapshot.getDouble(3 * Double.BYTES)));
+        });
 
         return me;
     }
+
+    @Override
+    public void onDestroyView() {
+        FieldWatcher.get().unsubscribe(mSubscription);
+        super.onDestroyView();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class AdvertiserServiceTest {
+
+    @Test
+    public void uuidLength() {
+        // The app's service UUIDs are 16-bit ones.
+        assertEquals(2, AdvertiserService.uuidLength(UUID.fromString("0000b81d-0000-1000-8000-00805f9b34fb")));
+        assertEquals(2, AdvertiserService.uuidLength(UUID.fromString("0000b81e-0000-1000-8000-00805f9b34fb")));
+        assertEquals(4, AdvertiserService.uuidLength(UUID.fromString("1234b81d-0000-1000-8000-00805f9b34fb")));
+        assertEquals(16, AdvertiserService.uuidLength(UUID.fromString("0000b81d-0000-1000-8000-00805f9b34fc")));
+        assertEquals(16, AdvertiserService.uuidLength(UUID.fromString("0000b81d-0001-1000-8000-00805f9b34fb")));
+    }
+}
@@ -0,0 +1,65 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.le.AdvertisingSetParameters;
+
+import org.junit.Test;
+
+public class AdvertisingPolicyTest {
+
+    private final AdvertisingPolicy mPolicy = new AdvertisingPolicy(
+            AdvertisingSetParameters.TX_POWER_MEDIUM, AdvertisingSetParameters.INTERVAL_LOW,
+            AdvertisingPolicy.DEFAULT_DENSE_FROM, AdvertisingPolicy.DEFAULT_FLAKY_ABOVE);
+
+    @Test
+    public void alone() {
+        AdvertisingPolicy.Decision d = mPolicy.decide(false, -1, -1);
+        assertEquals(AdvertisingSetParameters.TX_POWER_MEDIUM, d.txPower);
+        assertEquals(AdvertisingSetParameters.INTERVAL_HIGH, d.interval);
+        assertEquals(AdvertisingSetParameters.INTERVAL_HIGH, mPolicy.decide(true, 0, 0).interval);
+    }
+
+    @Test
+    public void unstable() {
+        AdvertisingPolicy.Decision d = mPolicy.decide(true, 8, 0.5);
+        assertEquals(AdvertisingSetParameters.TX_POWER_HIGH, d.txPower);
+        assertEquals(AdvertisingSetParameters.INTERVAL_LOW, d.interval);
+    }
+
+    @Test
+    public void dense() {
+        AdvertisingPolicy.Decision d = mPolicy.decide(true, 5, 0.1);
+        assertEquals(AdvertisingSetParameters.TX_POWER_LOW, d.txPower);
+        // Slower than the configured interval, not the same one under another name.
+        assertEquals(AdvertisingSetParameters.INTERVAL_MEDIUM, d.interval);
+        assertTrue(d.relativeEnergy() < mPolicy.decide(true, 2, 0.1).relativeEnergy());
+    }
+
+    @Test
+    public void configured() {
+        AdvertisingPolicy.Decision d = mPolicy.decide(true, 2, 0.1);
+        assertEquals(AdvertisingSetParameters.TX_POWER_MEDIUM, d.txPower);
+        assertEquals(AdvertisingSetParameters.INTERVAL_LOW, d.interval);
+        // Without flakiness, density alone is not enough to slow down.
+        assertEquals(AdvertisingSetParameters.INTERVAL_LOW, mPolicy.decide(true, 8, -1).interval);
+    }
+
+    @Test
+    public void thresholds() {
+        AdvertisingPolicy strict = new AdvertisingPolicy(AdvertisingSetParameters.TX_POWER_MEDIUM,
+                AdvertisingSetParameters.INTERVAL_LOW, 10, 0.05);
+        assertEquals(AdvertisingSetParameters.INTERVAL_LOW, strict.decide(true, 8, 0.01).interval);
+        assertEquals(AdvertisingSetParameters.TX_POWER_HIGH, strict.decide(true, 8, 0.1).txPower);
+    }
+
+    @Test
+    public void stepsSaturate() {
+        AdvertisingPolicy slow = new AdvertisingPolicy(AdvertisingSetParameters.TX_POWER_ULTRA_LOW,
+                AdvertisingSetParameters.INTERVAL_HIGH, 5, 0.3);
+        AdvertisingPolicy.Decision d = slow.decide(true, 6, 0);
+        assertEquals(AdvertisingSetParameters.TX_POWER_ULTRA_LOW, d.txPower);
+        assertEquals(AdvertisingSetParameters.INTERVAL_HIGH, d.interval);
+    }
+}
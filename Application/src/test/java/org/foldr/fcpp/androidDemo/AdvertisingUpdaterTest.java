@@ -0,0 +1,194 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AdvertisingUpdaterTest {
+
+    /* Short enough for timeouts not to slow the tests down. */
+    private static final long TIMEOUT_MS = 50;
+
+    private static final int SUCCESS = AdvertisingSetCallback.ADVERTISE_SUCCESS;
+    private static final int FAILURE = AdvertisingSetCallback.ADVERTISE_FAILED_INTERNAL_ERROR;
+
+    /*
+     * Records the operations issued. Data updates are completed by the tests, other operations at
+     * once with the statuses set for them in turn, if any.
+     */
+    private class FakeAdvertiser implements AdvertisingUpdater.Advertiser {
+        final List<String> ops = new ArrayList<>();
+        final Map<String, int[]> replies = new HashMap<>();
+
+        @Override
+        public void setAdvertisingData(AdvertiseData data) {
+            ops.add("data");
+        }
+
+        @Override
+        public void enableAdvertising(boolean enable) {
+            issue(enable ? "enable" : "disable");
+        }
+
+        @Override
+        public void setAdvertisingParameters(AdvertisingSetParameters parameters) {
+            issue("parameters");
+        }
+
+        private void issue(String op) {
+            ops.add(op);
+            for (int status : replies.getOrDefault(op, new int[0])) {
+                mUpdater.onOperationDone(status);
+            }
+        }
+    }
+
+    private final FakeAdvertiser mSet = new FakeAdvertiser();
+    private final AdvertisingUpdater mUpdater = new AdvertisingUpdater(mSet, (data, legacy) -> null, TIMEOUT_MS);
+
+    private static final byte[] A = {1, 2, 3};
+    private static final byte[] B = {4, 5, 6};
+    private static final byte[] C = {7, 8, 9};
+
+    @Test
+    public void skipsWhatIsOnAir() throws InterruptedException {
+        assertTrue(mUpdater.update(A, false));
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        assertFalse(mUpdater.update(A.clone(), false));
+        assertTrue(mUpdater.update(A.clone(), true));
+        assertEquals(1, mUpdater.getUpdates());
+        assertEquals(1, mUpdater.getSkipped());
+        assertEquals(0, mUpdater.getTimedOut());
+        assertEquals(Arrays.asList("data", "data"), mSet.ops);
+    }
+
+    @Test
+    public void rejectionsBackOff() throws InterruptedException {
+        mUpdater.update(A, false);
+        mUpdater.onAdvertisingDataSet(FAILURE);
+        assertEquals(1, mUpdater.getRejected());
+        assertEquals(AdvertisingUpdater.MIN_BACKOFF_MS, mUpdater.getBackoffMillis());
+        assertTrue(mUpdater.update(A, false));
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        assertEquals(AdvertisingUpdater.MIN_BACKOFF_MS / 2, mUpdater.getBackoffMillis());
+    }
+
+    @Test
+    public void lateCallbackIsNotCreditedToNextUpdate() throws InterruptedException {
+        mUpdater.update(A, false);
+        // Gives up on A.
+        assertTrue(mUpdater.update(B, false));
+        assertEquals(1, mUpdater.getTimedOut());
+        // A completes late: B is not on air yet.
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        assertEquals(0, mUpdater.getUpdates());
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        assertEquals(1, mUpdater.getUpdates());
+        assertFalse(mUpdater.update(B.clone(), false));
+        assertEquals(1, mUpdater.getTimedOut());
+    }
+
+    @Test
+    public void lostCallbackCostsOneMoreTimeout() throws InterruptedException {
+        mUpdater.update(A, false);
+        // Gives up on A, whose completion never comes.
+        mUpdater.update(B, false);
+        // Taken for the completion of A.
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        // Gives up on B.
+        mUpdater.update(C, false);
+        assertEquals(2, mUpdater.getTimedOut());
+        // Nothing late is expected any more.
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        assertEquals(1, mUpdater.getUpdates());
+        assertFalse(mUpdater.update(C.clone(), false));
+    }
+
+    @Test
+    public void strayCallbackIsIgnored() throws InterruptedException {
+        mUpdater.update(A, false);
+        mUpdater.update(B, false);
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        mUpdater.onAdvertisingDataSet(SUCCESS);
+        // A stray completion, with nothing in flight.
+        mUpdater.onAdvertisingDataSet(FAILURE);
+        assertEquals(1, mUpdater.getUpdates());
+        assertEquals(0, mUpdater.getRejected());
+    }
+
+    private void reply(String op, int... statuses) {
+        mSet.replies.put(op, statuses);
+    }
+
+    @Test
+    public void parametersApplied() throws InterruptedException {
+        reply("disable", SUCCESS);
+        reply("parameters", SUCCESS);
+        reply("enable", SUCCESS);
+        assertTrue(mUpdater.updateParameters(null));
+        assertEquals(Arrays.asList("disable", "parameters", "enable"), mSet.ops);
+        assertEquals(0, mUpdater.getTimedOut());
+    }
+
+    @Test
+    public void parametersRejectedStillReEnables() throws InterruptedException {
+        reply("disable", SUCCESS);
+        reply("parameters", FAILURE);
+        reply("enable", SUCCESS);
+        assertFalse(mUpdater.updateParameters(null));
+        assertEquals(Arrays.asList("disable", "parameters", "enable"), mSet.ops);
+    }
+
+    @Test
+    public void disableFailureChangesNothing() throws InterruptedException {
+        reply("disable", FAILURE);
+        assertFalse(mUpdater.updateParameters(null));
+        assertEquals(Arrays.asList("disable"), mSet.ops);
+    }
+
+    @Test
+    public void parametersTimeOut() throws InterruptedException {
+        reply("disable", SUCCESS);
+        // The late completion of the parameters comes just before that of enabling.
+        reply("enable", SUCCESS, SUCCESS);
+        assertFalse(mUpdater.updateParameters(null));
+        assertEquals(Arrays.asList("disable", "parameters", "enable"), mSet.ops);
+        assertEquals(1, mUpdater.getTimedOut());
+    }
+
+    @Test
+    public void lostCompletionCostsOneMoreTimeout() throws InterruptedException {
+        reply("disable", SUCCESS);
+        // Taken for the late completion of the parameters, which never comes.
+        reply("enable", SUCCESS);
+        assertFalse(mUpdater.updateParameters(null));
+        assertEquals(2, mUpdater.getTimedOut());
+        reply("parameters", SUCCESS);
+        assertTrue(mUpdater.updateParameters(null));
+        assertEquals(2, mUpdater.getTimedOut());
+    }
+
+    @Test
+    public void parametersWaitForDataUpdate() throws InterruptedException {
+        reply("disable", SUCCESS);
+        reply("parameters", SUCCESS);
+        reply("enable", SUCCESS);
+        mUpdater.update(A, false);
+        // The data update never completes, and is given up on first.
+        assertTrue(mUpdater.updateParameters(null));
+        assertEquals(Arrays.asList("data", "disable", "parameters", "enable"), mSet.ops);
+        assertEquals(1, mUpdater.getTimedOut());
+    }
+}
@@ -0,0 +1,175 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BleScannerTest {
+
+    private static final int SCAN_MODE = ScanSettings.SCAN_MODE_LOW_LATENCY;
+
+    /* Records the scans issued. */
+    private static class FakeRadio implements BleScanner.Radio {
+        boolean offloaded = true;
+        final List<String> ops = new ArrayList<>();
+        int scanMode = -1;
+        long reportDelay = -1;
+        ScanCallback callback = null;
+
+        @Override
+        public boolean isOffloadedScanBatchingSupported() {
+            return offloaded;
+        }
+
+        @Override
+        public void startScan(int scanMode, long reportDelayMillis, ScanCallback callback) {
+            ops.add("start");
+            this.scanMode = scanMode;
+            this.reportDelay = reportDelayMillis;
+            this.callback = callback;
+        }
+
+        @Override
+        public void flushPendingScanResults(ScanCallback callback) {
+            assertSame(this.callback, callback);
+            ops.add("flush");
+        }
+
+        @Override
+        public void stopScan(ScanCallback callback) {
+            assertSame(this.callback, callback);
+            ops.add("stop");
+        }
+    }
+
+    /* Records the results submitted, without processing them. */
+    private static class FakeIngest extends ScanIngest {
+        final List<Object> submitted = new ArrayList<>();
+
+        FakeIngest() {
+            super(null);
+        }
+
+        @Override
+        void submit(ScanResult result) {
+            submitted.add(result);
+        }
+
+        @Override
+        void submit(List<ScanResult> results) {
+            submitted.add(results);
+        }
+    }
+
+    private final FakeRadio mRadio = new FakeRadio();
+    private final FakeIngest mIngest = new FakeIngest();
+    private final List<Integer> mFailures = new ArrayList<>();
+    private double mRoundPeriod = 0.2;
+
+    private BleScanner scanner(boolean batched) {
+        return new BleScanner(mRadio, mIngest, SCAN_MODE, batched, () -> mRoundPeriod, mFailures::add);
+    }
+
+    @Test
+    public void batchedFollowsRoundPeriod() {
+        assertEquals(200, BleScanner.reportDelayMillis(true, true, 0.2));
+        assertEquals(1000, BleScanner.reportDelayMillis(true, true, 1));
+    }
+
+    @Test
+    public void unbatchedIsImmediate() {
+        assertEquals(0, BleScanner.reportDelayMillis(false, true, 0.2));
+        assertEquals(0, BleScanner.reportDelayMillis(false, false, 0.2));
+    }
+
+    @Test
+    public void unsupportedOffloadIsImmediate() {
+        assertEquals(0, BleScanner.reportDelayMillis(true, false, 0.2));
+    }
+
+    @Test
+    public void unknownRoundPeriodIsImmediate() {
+        assertEquals(0, BleScanner.reportDelayMillis(true, true, 0));
+        assertEquals(0, BleScanner.reportDelayMillis(true, true, Double.NaN));
+    }
+
+    @Test
+    public void batchedScan() {
+        BleScanner scanner = scanner(true);
+        scanner.startScan();
+        assertEquals(SCAN_MODE, mRadio.scanMode);
+        assertEquals(200, mRadio.reportDelay);
+        scanner.flushScan();
+        scanner.stopScan();
+        assertEquals(Arrays.asList("start", "flush", "stop"), mRadio.ops);
+    }
+
+    @Test
+    public void fallsBackToImmediateDelivery() {
+        mRadio.offloaded = false;
+        BleScanner scanner = scanner(true);
+        scanner.startScan();
+        assertEquals(0, mRadio.reportDelay);
+        // Nothing batched to flush.
+        scanner.flushScan();
+        scanner.stopScan();
+        assertEquals(Arrays.asList("start", "stop"), mRadio.ops);
+    }
+
+    @Test
+    public void nothingToStopOrFlushWhenIdle() {
+        BleScanner scanner = scanner(true);
+        scanner.flushScan();
+        scanner.stopScan();
+        scanner.startScan();
+        scanner.stopScan();
+        scanner.flushScan();
+        scanner.stopScan();
+        assertEquals(Arrays.asList("start", "stop"), mRadio.ops);
+    }
+
+    @Test
+    public void resultsGoToIngest() {
+        scanner(true).startScan();
+        List<ScanResult> batch = Collections.emptyList();
+        mRadio.callback.onBatchScanResults(batch);
+        mRadio.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, null);
+        assertEquals(2, mIngest.submitted.size());
+        assertSame(batch, mIngest.submitted.get(0));
+        assertNull(mIngest.submitted.get(1));
+    }
+
+    @Test
+    public void failuresGoToListener() {
+        scanner(false).startScan();
+        mRadio.callback.onScanFailed(ScanCallback.SCAN_FAILED_ALREADY_STARTED);
+        assertEquals(Collections.singletonList(ScanCallback.SCAN_FAILED_ALREADY_STARTED), mFailures);
+    }
+
+    @Test
+    public void reportDelayFollowsRoundPeriodChanges() {
+        BleScanner scanner = scanner(true);
+        assertFalse(scanner.isReportDelayStale());
+        scanner.startScan();
+        assertFalse(scanner.isReportDelayStale());
+        mRoundPeriod = 0.5;
+        assertTrue(scanner.isReportDelayStale());
+        scanner.stopScan();
+        assertFalse(scanner.isReportDelayStale());
+        scanner.startScan();
+        assertEquals(500, mRadio.reportDelay);
+    }
+}
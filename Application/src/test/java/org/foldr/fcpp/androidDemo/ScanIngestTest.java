@@ -0,0 +1,65 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ScanIngestTest {
+
+    private static final long MS = 1_000_000;
+
+    private final ScanIngest.RepeatFilter mFilter = new ScanIngest.RepeatFilter();
+
+    @Test
+    public void repeatsWithinWindow() {
+        byte[] a = {1, 2, 3};
+        assertTrue(mFilter.forward(7, a, 0));
+        assertFalse(mFilter.forward(7, a.clone(), 100 * MS));
+        assertFalse(mFilter.forward(7, a.clone(), 499 * MS));
+        assertTrue(mFilter.forward(8, a.clone(), 499 * MS));
+        assertTrue(mFilter.forward(7, new byte[]{1, 2, 4}, 499 * MS));
+    }
+
+    @Test
+    public void stableExportsKeepComing() {
+        byte[] a = {1, 2, 3};
+        int forwarded = 0;
+        // Advertised every 100ms for 10 rounds of a second.
+        for (long t = 0; t < 10_000 * MS; t += 100 * MS) {
+            if (mFilter.forward(7, a.clone(), t)) {
+                forwarded++;
+            }
+        }
+        assertEquals(20, forwarded);
+    }
+
+    @Test
+    public void lostCopiesAreNotRepeats() {
+        byte[] a = {1, 2, 3};
+        assertTrue(mFilter.forward(7, a, 0));
+        mFilter.forget(7);
+        assertTrue(mFilter.forward(7, a.clone(), 10 * MS));
+    }
+
+    @Test
+    public void window() {
+        assertEquals(100 * MS, ScanIngest.RepeatFilter.windowNanos(0.2));
+        assertEquals(ScanIngest.RepeatFilter.DEFAULT_WINDOW_NANOS, ScanIngest.RepeatFilter.windowNanos(0));
+        mFilter.setWindowNanos(100 * MS);
+        byte[] a = {1, 2, 3};
+        assertTrue(mFilter.forward(7, a, 0));
+        assertTrue(mFilter.forward(7, a.clone(), 100 * MS));
+    }
+
+    @Test
+    public void sendersAreForgotten() {
+        byte[] a = {1, 2, 3};
+        for (int i = 0; i < 10 * ScanIngest.RepeatFilter.PURGE_PERIOD; i++) {
+            mFilter.forward(i, a, i * MS);
+        }
+        // Only the senders heard within the window are left.
+        assertTrue(mFilter.size() <= 500 + ScanIngest.RepeatFilter.PURGE_PERIOD);
+    }
+}
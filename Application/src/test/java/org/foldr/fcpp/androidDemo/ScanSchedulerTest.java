@@ -0,0 +1,43 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ScanSchedulerTest {
+
+    @Test
+    public void cycleIsWholeRounds() {
+        assertEquals(8000, ScanScheduler.cycleMillis(1));
+        assertEquals(7700, ScanScheduler.cycleMillis(0.7));
+        assertEquals(7500, ScanScheduler.cycleMillis(0.5));
+        assertEquals(7500, ScanScheduler.cycleMillis(2.5));
+    }
+
+    @Test
+    public void cycleIsNeverTooShort() {
+        assertEquals(ScanScheduler.MIN_CYCLE_MS, ScanScheduler.cycleMillis(0.001));
+        assertEquals(ScanScheduler.MIN_CYCLE_MS, ScanScheduler.cycleMillis(0));
+        assertEquals(ScanScheduler.MIN_CYCLE_MS, ScanScheduler.cycleMillis(Double.NaN));
+    }
+
+    @Test
+    public void longRoundIsOneCycle() {
+        assertEquals(10000, ScanScheduler.cycleMillis(10));
+    }
+
+    @Test
+    public void windowFollowsDuty() {
+        assertEquals(2000, ScanScheduler.windowMillis(8000, 0.25));
+        assertEquals(1, ScanScheduler.windowMillis(8000, 0));
+        assertEquals(8000, ScanScheduler.windowMillis(8000, 1.5));
+    }
+
+    @Test
+    public void cyclesStartAtMultiples() {
+        assertEquals(8000, ScanScheduler.nextCycleStart(0, 8000));
+        assertEquals(8000, ScanScheduler.nextCycleStart(7999, 8000));
+        assertEquals(16000, ScanScheduler.nextCycleStart(8000, 8000));
+        assertEquals(24000, ScanScheduler.nextCycleStart(20500, 8000));
+    }
+}
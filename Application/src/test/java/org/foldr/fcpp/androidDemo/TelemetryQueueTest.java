@@ -0,0 +1,180 @@
+package org.foldr.fcpp.androidDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+public class TelemetryQueueTest {
+
+    /* Backoff short enough for retries not to slow the tests down. */
+    private static final long BACKOFF_MS = 1;
+    private static final long TIMEOUT_MS = 10_000;
+
+    private final OkHttpClient mClient = new OkHttpClient();
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private TelemetryQueue.Batch batch(int id) {
+        return new TelemetryQueue.Batch(mServer.url("/batch").toString(), "[{\"id\": " + id + "}]", 1);
+    }
+
+    private static String body(RecordedRequest request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(request.getBody().inputStream())) {
+            byte[] buf = new byte[256];
+            for (int n; (n = in.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void uploadsCompressed() throws Exception {
+        mServer.enqueue(new MockResponse());
+        TelemetryQueue q = new TelemetryQueue(mClient, TelemetryQueue.Policy.DROP_OLDEST, 4, BACKOFF_MS);
+        q.offer(batch(1));
+        assertTrue(q.awaitIdle(TIMEOUT_MS));
+        RecordedRequest request = mServer.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertEquals("[{\"id\": 1}]", body(request));
+        assertEquals(1, q.getUploaded());
+        assertEquals(0, q.getRetries());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void retriesServerErrors() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse());
+        TelemetryQueue q = new TelemetryQueue(mClient, TelemetryQueue.Policy.DROP_OLDEST, 4, BACKOFF_MS);
+        q.offer(batch(1));
+        assertTrue(q.awaitIdle(TIMEOUT_MS));
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, q.getUploaded());
+        assertEquals(2, q.getRetries());
+        assertEquals(0, q.getAbandoned());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void retriesIOExceptions() throws Exception {
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        mServer.enqueue(new MockResponse());
+        TelemetryQueue q = new TelemetryQueue(mClient, TelemetryQueue.Policy.DROP_OLDEST, 4, BACKOFF_MS);
+        q.offer(batch(1));
+        assertTrue(q.awaitIdle(TIMEOUT_MS));
+        assertEquals(1, q.getUploaded());
+        assertTrue(q.getRetries() >= 1);
+        assertEquals(0, q.getAbandoned());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void doesNotRetryClientErrors() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(400));
+        mServer.enqueue(new MockResponse());
+        TelemetryQueue q = new TelemetryQueue(mClient, TelemetryQueue.Policy.DROP_OLDEST, 4, BACKOFF_MS);
+        q.offer(batch(1));
+        assertTrue(q.awaitIdle(TIMEOUT_MS));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, q.getUploaded());
+        assertEquals(0, q.getRetries());
+        assertEquals(1, q.getAbandoned());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void givesUp() throws Exception {
+        for (int i = 0; i < TelemetryQueue.MAX_ATTEMPTS + 1; i++) {
+            mServer.enqueue(new MockResponse().setResponseCode(500));
+        }
+        TelemetryQueue q = new TelemetryQueue(mClient, TelemetryQueue.Policy.DROP_OLDEST, 4, BACKOFF_MS);
+        q.offer(batch(1));
+        assertTrue(q.awaitIdle(TIMEOUT_MS));
+        assertEquals(TelemetryQueue.MAX_ATTEMPTS, mServer.getRequestCount());
+        assertEquals(TelemetryQueue.MAX_ATTEMPTS - 1, q.getRetries());
+        assertEquals(1, q.getAbandoned());
+    }
+
+    /*
+     * Offers batch 0, holds its upload while offering batches 1 to 3 to a queue of 2, and returns
+     * the batches uploaded after 0.
+     */
+    private List<String> overflow(TelemetryQueue.Policy policy, long dropped) throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                arrived.countDown();
+                release.await();
+                return new MockResponse();
+            }
+        });
+        TelemetryQueue q = new TelemetryQueue(mClient, policy, 2, BACKOFF_MS);
+        q.offer(batch(0));
+        assertTrue(arrived.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i <= 3; i++) {
+            q.offer(batch(i));
+        }
+        assertEquals(2, q.getDepth());
+        assertEquals(dropped, q.getDropped());
+        release.countDown();
+        assertTrue(q.awaitIdle(TIMEOUT_MS));
+        assertEquals("[{\"id\": 0}]", body(mServer.takeRequest()));
+        List<String> uploaded = new ArrayList<>();
+        for (RecordedRequest r; (r = mServer.takeRequest(0, TimeUnit.MILLISECONDS)) != null; ) {
+            uploaded.add(body(r));
+        }
+        return uploaded;
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void dropOldest() throws Exception {
+        assertEquals(Arrays.asList("[{\"id\": 2}]", "[{\"id\": 3}]"),
+                overflow(TelemetryQueue.Policy.DROP_OLDEST, 1));
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void dropNewest() throws Exception {
+        assertEquals(Arrays.asList("[{\"id\": 1}]", "[{\"id\": 2}]"),
+                overflow(TelemetryQueue.Policy.DROP_NEWEST, 1));
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void sample() throws Exception {
+        // Batch 2 goes to make room for 3: every other batch in the queue.
+        assertEquals(Arrays.asList("[{\"id\": 1}]", "[{\"id\": 3}]"),
+                overflow(TelemetryQueue.Policy.SAMPLE, 1));
+    }
+}
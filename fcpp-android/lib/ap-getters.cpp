@@ -12,10 +12,8 @@
 
 extern "C" JNIEXPORT void JNICALL
 Java_org_foldr_fcpp_androidDemo_AP_fcpp_1start(JNIEnv *env, jclass thiz, jint uid, jstring experiment_name) {
-    // https://stackoverflow.com/a/19657117/60462:
-    auto c = static_cast<jclass>( env->NewGlobalRef( thiz) );
     const char* str = env->GetStringUTFChars(experiment_name,0);
-    fcpp::start(env, c, uid, str);
+    fcpp::start(uid, str);
     env->ReleaseStringUTFChars(experiment_name, str);
 }
 
@@ -26,12 +24,23 @@ Java_org_foldr_fcpp_androidDemo_AP_fcpp_1stop(JNIEnv *env, jclass thiz) {
 
 extern "C" JNIEXPORT jstring JNICALL
 Java_org_foldr_fcpp_androidDemo_AP_get_1storage(JNIEnv *env, jclass clazz) {
-    char* str = fcpp::get_storage();
-    jstring res = env->NewStringUTF(str);
-    delete str;
+    return env->NewStringUTF(fcpp::get_storage());
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_get_1storage_1binary(JNIEnv *env, jclass clazz) {
+    int size;
+    char const* data = fcpp::get_storage_binary(&size);
+    jbyteArray res = env->NewByteArray(size);
+    env->SetByteArrayRegion(res, 0, size, reinterpret_cast<jbyte const*>(data));
     return res;
 }
 
+extern "C" JNIEXPORT jstring JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_get_1storage_1schema(JNIEnv *env, jclass clazz) {
+    return env->NewStringUTF(fcpp::get_storage_schema());
+}
+
 extern "C" JNIEXPORT jboolean JNICALL
 Java_org_foldr_fcpp_androidDemo_AP_get_1bool(JNIEnv *env, jclass clazz, jstring attribute_name) {
     const char* str = env->GetStringUTFChars(attribute_name,0);
@@ -62,7 +71,7 @@ Java_org_foldr_fcpp_androidDemo_AP_get_1string(JNIEnv *env, jclass clazz, jstrin
     char* cres = fcpp::get_string(str);
     jstring jres = env->NewStringUTF(cres);
     env->ReleaseStringUTFChars(attribute_name, str);
-    delete cres;
+    delete[] cres;
     return jres;
 }
 
@@ -93,7 +102,221 @@ Java_org_foldr_fcpp_androidDemo_AP_set_1string(JNIEnv *env, jclass clazz, jstrin
     const char* val = env->GetStringUTFChars(value,0);
     fcpp::set_string(str, val);
     env->ReleaseStringUTFChars(attribute_name, str);
-    env->ReleaseStringUTFChars(value, str);
+    env->ReleaseStringUTFChars(value, val);
+}
+
+/* Typed access to storage fields by handle, resolved once per running experiment. */
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_attribute_1handle(JNIEnv *env, jclass clazz, jstring attribute_name) {
+    const char* str = env->GetStringUTFChars(attribute_name,0);
+    int result = fcpp::resolve(str);
+    env->ReleaseStringUTFChars(attribute_name, str);
+    return result;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_get_1bool_1at(JNIEnv *env, jclass clazz, jint handle) {
+    return fcpp::get_bool_at(handle);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_get_1int_1at(JNIEnv *env, jclass clazz, jint handle) {
+    return fcpp::get_int_at(handle);
+}
+
+extern "C" JNIEXPORT jdouble JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_get_1double_1at(JNIEnv *env, jclass clazz, jint handle) {
+    return fcpp::get_double_at(handle);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_read_1snapshot(JNIEnv *env, jclass clazz, jintArray handles, jobject out) {
+    jsize count = env->GetArrayLength(handles);
+    if (env->GetDirectBufferCapacity(out) < jlong(count * sizeof(double))) return -1;
+    double* values = static_cast<double*>(env->GetDirectBufferAddress(out));
+    jint* hs = env->GetIntArrayElements(handles, nullptr);
+    fcpp::read_snapshot(hs, count, values);
+    env->ReleaseIntArrayElements(handles, hs, JNI_ABORT);
+    return count;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_set_1bool_1at(JNIEnv *env, jclass clazz, jint handle, jboolean value) {
+    fcpp::set_bool_at(handle, value);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_set_1int_1at(JNIEnv *env, jclass clazz, jint handle, jint value) {
+    fcpp::set_int_at(handle, value);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_set_1double_1at(JNIEnv *env, jclass clazz, jint handle, jdouble value) {
+    fcpp::set_double_at(handle, value);
+}
+
+/* Subscriptions to storage fields by handle, signalled through an event file descriptor after rounds changing them. */
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_subscribe_1fields(JNIEnv *env, jclass clazz, jintArray handles) {
+    jsize count = env->GetArrayLength(handles);
+    jint* hs = env->GetIntArrayElements(handles, nullptr);
+    int id = fcpp::subscribe(hs, count);
+    env->ReleaseIntArrayElements(handles, hs, JNI_ABORT);
+    return id;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_unsubscribe_1fields(JNIEnv *env, jclass clazz, jint id) {
+    fcpp::unsubscribe(id);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_take_1changes(JNIEnv *env, jclass clazz, jint id, jobject out) {
+    return fcpp::take_changes(id, static_cast<double*>(env->GetDirectBufferAddress(out)));
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_change_1event_1fd(JNIEnv *env, jclass clazz) {
+    return fcpp::change_event_fd();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_drain_1change_1event(JNIEnv *env, jclass clazz) {
+    fcpp::drain_change_event();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_round_1event_1fd(JNIEnv *env, jclass clazz) {
+    return fcpp::round_event_fd();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_drain_1round_1event(JNIEnv *env, jclass clazz) {
+    fcpp::drain_round_event();
+}
+
+/* Packet buffers shared with the BLE layer; the round thread itself never calls into Java. */
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_ring_1slot_1size(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_ring().slot_size();
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1ring(JNIEnv *env, jclass clazz) {
+    fcpp::common::packet_ring& r = fcpp::rx_ring();
+    return env->NewDirectByteBuffer(r.data(), r.size());
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1reserve(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_ring().reserve();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1commit(JNIEnv *env, jclass clazz, jint length) {
+    fcpp::rx_ring().commit(length);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1coalesced(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_coalesced();
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1stale(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_stale();
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1undecodable(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_undecodable();
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1box(JNIEnv *env, jclass clazz) {
+    fcpp::common::mailbox& b = fcpp::tx_box();
+    return env->NewDirectByteBuffer(b.data(), b.size());
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1await(JNIEnv *env, jclass clazz, jlong timeout_ms) {
+    return fcpp::tx_box().wait_take(std::chrono::milliseconds(timeout_ms));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1wake(JNIEnv *env, jclass clazz) {
+    fcpp::tx_box().wake();
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1sequence(JNIEnv *env, jclass clazz, jint slot) {
+    return fcpp::tx_box().sequence(slot);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1overwritten(JNIEnv *env, jclass clazz) {
+    return fcpp::tx_box().overwritten();
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1incomplete(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_incomplete();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_set_1max_1payload(JNIEnv *env, jclass clazz, jint size) {
+    fcpp::set_max_payload(size);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1fragmented(JNIEnv *env, jclass clazz) {
+    return fcpp::tx_fragmented();
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_tx_1dropped(JNIEnv *env, jclass clazz) {
+    return fcpp::tx_dropped();
+}
+
+/* Flight recorder of packet events, shared with the BLE layer (see FlightRecorder.java). */
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_flight_1enable(JNIEnv *env, jclass clazz, jboolean on) {
+    fcpp::flight_recorder().enable(on);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_flight_1record(JNIEnv *env, jclass clazz, jint kind, jint uid, jint size, jint depth, jlong stamp, jlong time) {
+    fcpp::flight_recorder().record(time, kind, uid, size, depth, stamp);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_flight_1dump(JNIEnv *env, jclass clazz, jstring path) {
+    const char* str = env->GetStringUTFChars(path,0);
+    long count = fcpp::flight_recorder().dump(str);
+    env->ReleaseStringUTFChars(path, str);
+    return count;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_capture_1open(JNIEnv *env, jclass clazz, jstring path) {
+    const char* str = env->GetStringUTFChars(path,0);
+    bool ok = fcpp::export_capture().open(str);
+    env->ReleaseStringUTFChars(path, str);
+    return ok;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_capture_1close(JNIEnv *env, jclass clazz) {
+    return fcpp::export_capture().close();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_org_foldr_fcpp_androidDemo_AP_rx_1depth(JNIEnv *env, jclass clazz) {
+    return fcpp::rx_ring().count();
 }
 
 // DEPRECATED
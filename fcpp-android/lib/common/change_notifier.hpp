@@ -0,0 +1,138 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file change_notifier.hpp
+ * @brief Tracks changes to subscribed fields of the storage from one round to the next.
+ */
+
+#ifndef FCPP_COMMON_CHANGE_NOTIFIER_H_
+#define FCPP_COMMON_CHANGE_NOTIFIER_H_
+
+#include <algorithm>
+#include <cassert>
+#include <cstdint>
+#include <cstring>
+#include <map>
+#include <mutex>
+#include <vector>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+/**
+ * @brief Subscriptions to sets of storage fields (by handle), with the fields changed since each was last taken.
+ *
+ * The round thread calls `update` at the end of every round, which compares the subscribed fields
+ * with their previous values and tells whether any changed. Subscribers then `take` the current
+ * values together with the mask of the fields changed since their previous `take`. Values are
+ * compared bit by bit, so that a field stuck at NaN does not count as changing every round.
+ */
+class change_notifier {
+  public:
+    //! @brief Maximum number of fields in a subscription.
+    static constexpr size_t max_fields = 64;
+
+    //! @brief Subscribes to a set of fields, returning the subscription identifier.
+    int subscribe(std::vector<int> handles) {
+        assert(handles.size() <= max_fields);
+        std::lock_guard<std::mutex> l(m_mutex);
+        subscription& s = m_subscriptions[++m_last_id];
+        s.values.resize(handles.size());
+        s.handles = std::move(handles);
+        return m_last_id;
+    }
+
+    //! @brief Drops a subscription.
+    void unsubscribe(int id) {
+        std::lock_guard<std::mutex> l(m_mutex);
+        m_subscriptions.erase(id);
+    }
+
+    //! @brief Drops every subscription.
+    void clear() {
+        std::lock_guard<std::mutex> l(m_mutex);
+        m_subscriptions.clear();
+    }
+
+    /**
+     * @brief Compares the subscribed fields with their previous values.
+     *
+     * @param read Reads fields into doubles, as `read(handles, count, out)`.
+     * @return Whether any subscribed field changed (or was read for the first time).
+     */
+    template <typename F>
+    bool update(F&& read) {
+        std::lock_guard<std::mutex> l(m_mutex);
+        bool changed = false;
+        for (auto& p : m_subscriptions) {
+            subscription& s = p.second;
+            m_buffer.resize(s.handles.size());
+            read(s.handles.data(), int(s.handles.size()), m_buffer.data());
+            for (size_t i = 0; i < s.handles.size(); ++i)
+                if (not s.read or memcmp(&m_buffer[i], &s.values[i], sizeof(double)) != 0) {
+                    s.values[i] = m_buffer[i];
+                    s.changed |= uint64_t(1) << i;
+                    changed = true;
+                }
+            s.read = true;
+        }
+        return changed;
+    }
+
+    /**
+     * @brief Takes the changes to a subscription.
+     *
+     * @param id The subscription identifier.
+     * @param out Where to write the current values of the fields (if not null).
+     * @return The mask of the fields changed since the previous call (bit `i` for the `i`-th field).
+     */
+    uint64_t take(int id, double* out) {
+        std::lock_guard<std::mutex> l(m_mutex);
+        auto it = m_subscriptions.find(id);
+        if (it == m_subscriptions.end()) return 0;
+        subscription& s = it->second;
+        if (out != nullptr) std::copy(s.values.begin(), s.values.end(), out);
+        uint64_t changed = s.changed;
+        s.changed = 0;
+        return changed;
+    }
+
+  private:
+    //! @brief A set of subscribed fields.
+    struct subscription {
+        //! @brief Handles of the fields.
+        std::vector<int> handles;
+        //! @brief Values of the fields at the latest update.
+        std::vector<double> values;
+        //! @brief Mask of the fields changed since the latest take.
+        uint64_t changed = 0;
+        //! @brief Whether the fields were ever read.
+        bool read = false;
+    };
+
+    //! @brief Guards every member.
+    std::mutex m_mutex;
+    //! @brief The subscriptions, by identifier.
+    std::map<int, subscription> m_subscriptions;
+    //! @brief The latest identifier given.
+    int m_last_id = 0;
+    //! @brief Room for the values read by `update`.
+    std::vector<double> m_buffer;
+};
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_CHANGE_NOTIFIER_H_
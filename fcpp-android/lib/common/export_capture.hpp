@@ -0,0 +1,121 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file export_capture.hpp
+ * @brief Recording of the outgoing exports of a device, for offline analysis of the packet codec.
+ */
+
+#ifndef FCPP_COMMON_EXPORT_CAPTURE_H_
+#define FCPP_COMMON_EXPORT_CAPTURE_H_
+
+#include <atomic>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <mutex>
+#include <vector>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+/**
+ * @brief Appends the exports of a device, as serialised before encoding, to a file.
+ *
+ * Writing takes one relaxed load when no file is open. The file holds:
+ * - the 8 bytes `FCPPEX01`;
+ * - the exports, each as its size (`uint32_t`, native byte order) and its bytes.
+ */
+class export_capture {
+  public:
+    //! @brief Starts writing to a new file (closing the previous one), returning whether it could be opened.
+    bool open(char const* path) {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        close_locked();
+        m_file = fopen(path, "wb");
+        if (m_file == nullptr) return false;
+        if (fwrite("FCPPEX01", 8, 1, m_file) != 1) {
+            fclose(m_file);
+            m_file = nullptr;
+            return false;
+        }
+        m_count = 0;
+        m_active.store(true, std::memory_order_relaxed);
+        return true;
+    }
+
+    //! @brief Stops writing, returning the number of exports written (-1 on errors or if no file was open).
+    long close() {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        return close_locked();
+    }
+
+    //! @brief Whether a file is open.
+    bool active() const {
+        return m_active.load(std::memory_order_relaxed);
+    }
+
+    //! @brief Appends an export, if a file is open.
+    void write(char const* data, size_t size) {
+        if (not m_active.load(std::memory_order_relaxed)) return;
+        std::lock_guard<std::mutex> lock(m_mutex);
+        if (m_file == nullptr) return;
+        uint32_t len = size;
+        if (fwrite(&len, sizeof(len), 1, m_file) == 1 and (size == 0 or fwrite(data, size, 1, m_file) == 1)) ++m_count;
+        else m_failed = true;
+    }
+
+    //! @brief Reads the exports from a file written by `export_capture`, returning whether it was well-formed.
+    static bool read(char const* path, std::vector<std::vector<char>>& exports) {
+        exports.clear();
+        FILE* f = fopen(path, "rb");
+        if (f == nullptr) return false;
+        char magic[8];
+        bool ok = fread(magic, 8, 1, f) == 1 and memcmp(magic, "FCPPEX01", 8) == 0;
+        uint32_t len;
+        while (ok and fread(&len, sizeof(len), 1, f) == 1) {
+            exports.emplace_back(len);
+            ok = len == 0 or fread(exports.back().data(), len, 1, f) == 1;
+        }
+        fclose(f);
+        return ok;
+    }
+
+  private:
+    //! @brief Closes the file, with the mutex held.
+    long close_locked() {
+        m_active.store(false, std::memory_order_relaxed);
+        if (m_file == nullptr) return -1;
+        bool ok = fclose(m_file) == 0 and not m_failed;
+        m_file = nullptr;
+        m_failed = false;
+        return ok ? m_count : -1;
+    }
+
+    //! @brief Whether a file is open.
+    std::atomic<bool> m_active{false};
+    //! @brief Guards everything below.
+    std::mutex m_mutex;
+    //! @brief The file open, if any.
+    FILE* m_file = nullptr;
+    //! @brief Number of exports written to the file.
+    long m_count = 0;
+    //! @brief Whether a write failed.
+    bool m_failed = false;
+};
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_EXPORT_CAPTURE_H_
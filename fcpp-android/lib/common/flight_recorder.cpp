@@ -0,0 +1,3 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include "lib/common/flight_recorder.hpp"
@@ -0,0 +1,177 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file flight_recorder.hpp
+ * @brief Fixed-size ring of the latest packet events, cheap enough to be left on in the field.
+ */
+
+#ifndef FCPP_COMMON_FLIGHT_RECORDER_H_
+#define FCPP_COMMON_FLIGHT_RECORDER_H_
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <memory>
+#include <vector>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+/**
+ * @brief Records packet events into a fixed-size ring, overwriting the oldest.
+ *
+ * Recording takes one relaxed load when disabled, and a handful of relaxed atomic stores when
+ * enabled: no lock, no allocation, no formatting. It may be called from any thread. An event may
+ * only get lost if the ring wraps around while it is being written, or if it is being written
+ * while the ring is read.
+ *
+ * The ring is dumped on demand, oldest event first, to a file with:
+ * - the 8 bytes `FCPPFR01`;
+ * - the size of an event and the number of events, as `uint32_t`;
+ * - the events, each as an `event` struct (24 bytes, native byte order).
+ */
+class flight_recorder {
+  public:
+    //! @brief What happened to a packet.
+    enum kind : uint8_t {
+        //! @brief Received by the scanner and queued for the node (Java).
+        rx_queued,
+        //! @brief Received by the scanner but dropped, the queue being full (Java).
+        rx_dropped,
+        //! @brief Delivered to the node (native).
+        rx_delivered,
+        //! @brief Discarded for being older than the retain time (native).
+        rx_stale,
+        //! @brief Discarded for not being decodable (native).
+        rx_undecodable,
+        //! @brief Fragment of a message not yet complete (native).
+        rx_fragment,
+        //! @brief Published by the node for advertising (native).
+        tx_published,
+        //! @brief Dropped for not fitting in the outgoing slot (native).
+        tx_dropped,
+        //! @brief Taken by the advertiser (Java).
+        tx_taken
+    };
+
+    //! @brief A packet event.
+    struct event {
+        //! @brief When the event happened, in nanoseconds on `CLOCK_BOOTTIME`.
+        int64_t time;
+        //! @brief When the packet was received, in nanoseconds on `CLOCK_BOOTTIME` (0 for outgoing packets).
+        int64_t stamp;
+        //! @brief The sender of the packet.
+        int32_t uid;
+        //! @brief The size of the packet in bytes.
+        uint16_t size;
+        //! @brief What happened (see `kind`).
+        uint8_t kind;
+        //! @brief Depth of the queue the packet went through (fragments for outgoing packets), up to 255.
+        uint8_t depth;
+    };
+
+    //! @brief Constructor with the number of events kept (a power of two).
+    explicit flight_recorder(size_t capacity) : m_mask(capacity - 1), m_slots(new slot[capacity]) {}
+
+    //! @brief Enables or disables recording.
+    void enable(bool on) {
+        m_enabled.store(on, std::memory_order_relaxed);
+    }
+
+    //! @brief Whether recording is enabled.
+    bool enabled() const {
+        return m_enabled.load(std::memory_order_relaxed);
+    }
+
+    //! @brief Records an event, if enabled.
+    void record(int64_t time, uint8_t k, int32_t uid, size_t size, size_t depth, int64_t stamp = 0) {
+        if (not m_enabled.load(std::memory_order_relaxed)) return;
+        uint64_t i = m_next.fetch_add(1, std::memory_order_relaxed);
+        slot& s = m_slots[i & m_mask];
+        s.seq.store(2*i+1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        event e{time, stamp, uid, uint16_t(std::min(size, size_t(UINT16_MAX))), k, uint8_t(std::min(depth, size_t(UINT8_MAX)))};
+        uint64_t w[words];
+        memcpy(w, &e, sizeof(event));
+        for (size_t j = 0; j < words; ++j) s.data[j].store(w[j], std::memory_order_relaxed);
+        s.seq.store(2*i+2, std::memory_order_release);
+    }
+
+    //! @brief Number of events recorded so far (including those overwritten).
+    uint64_t recorded() const {
+        return m_next.load(std::memory_order_relaxed);
+    }
+
+    //! @brief The events in the ring, oldest first.
+    std::vector<event> events() const {
+        uint64_t end = m_next.load(std::memory_order_acquire);
+        uint64_t begin = end > m_mask ? end - m_mask - 1 : 0;
+        std::vector<event> v;
+        v.reserve(end - begin);
+        for (uint64_t i = begin; i < end; ++i) {
+            slot const& s = m_slots[i & m_mask];
+            uint64_t seq = s.seq.load(std::memory_order_acquire);
+            if (seq != 2*i+2) continue; // Being written, or already overwritten.
+            uint64_t w[words];
+            for (size_t j = 0; j < words; ++j) w[j] = s.data[j].load(std::memory_order_relaxed);
+            std::atomic_thread_fence(std::memory_order_acquire);
+            if (s.seq.load(std::memory_order_relaxed) != seq) continue;
+            v.emplace_back();
+            memcpy(&v.back(), w, sizeof(event));
+        }
+        return v;
+    }
+
+    //! @brief Writes the events in the ring to a file, returning their number (-1 on errors).
+    long dump(char const* path) const {
+        std::vector<event> v = events();
+        FILE* f = fopen(path, "wb");
+        if (f == nullptr) return -1;
+        uint32_t header[2] = {sizeof(event), uint32_t(v.size())};
+        bool ok = fwrite("FCPPFR01", 8, 1, f) == 1 and fwrite(header, sizeof(header), 1, f) == 1;
+        if (ok and not v.empty()) ok = fwrite(v.data(), sizeof(event), v.size(), f) == v.size();
+        ok = fclose(f) == 0 and ok;
+        return ok ? long(v.size()) : -1;
+    }
+
+  private:
+    //! @brief Number of words in an event.
+    static constexpr size_t words = sizeof(event) / sizeof(uint64_t);
+    static_assert(sizeof(event) == 24, "events must be packed into three words");
+
+    //! @brief A slot of the ring.
+    struct slot {
+        //! @brief Twice the index of the event, plus one while being written, plus two when written.
+        std::atomic<uint64_t> seq{0};
+        //! @brief The event.
+        std::atomic<uint64_t> data[words];
+    };
+
+    //! @brief Whether recording is enabled.
+    std::atomic<bool> m_enabled{false};
+    //! @brief Index of the next event.
+    std::atomic<uint64_t> m_next{0};
+    //! @brief Mask of the slot index.
+    size_t const m_mask;
+    //! @brief The slots.
+    std::unique_ptr<slot[]> m_slots;
+};
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_FLIGHT_RECORDER_H_
@@ -0,0 +1,158 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file fragments.hpp
+ * @brief Splitting of packets too large for one advertisement, and their reassembly.
+ */
+
+#ifndef FCPP_COMMON_FRAGMENTS_H_
+#define FCPP_COMMON_FRAGMENTS_H_
+
+#include <algorithm>
+#include <cstdint>
+#include <unordered_map>
+#include <vector>
+
+#include "lib/common/packet_codec.hpp"
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+/**
+ * @brief Namespace containing packet fragmentation.
+ *
+ * A fragment starts with a header byte in the format of `packet_codec`, with codec `marker`,
+ * followed by a message sequence byte, a byte holding the fragment index (high nibble) and the
+ * number of fragments minus one (low nibble), and a chunk of the encoded message. Receivers not
+ * knowing about fragments see them as packets with an unknown codec and drop them.
+ */
+namespace fragments {
+    //! @brief The codec value marking fragments.
+    constexpr uint8_t marker = 15;
+    //! @brief The size of the fragment header.
+    constexpr size_t header_size = 3;
+    //! @brief The maximum number of fragments of a message.
+    constexpr size_t max_count = 16;
+
+    //! @brief Whether an encoded packet is a fragment.
+    inline bool is_fragment(char const* data, size_t size) {
+        return size >= header_size and packet_codec::used(data[0]) == marker;
+    }
+
+    //! @brief The number of fragments needed for a message with a given maximum fragment size (including the header).
+    inline size_t count(size_t size, size_t max_fragment) {
+        if (max_fragment <= header_size) return max_count + 1;
+        size_t chunk = max_fragment - header_size;
+        return (size + chunk - 1) / chunk;
+    }
+
+    //! @brief Appends the `i`-th of `n` fragments of a message with a given sequence number and maximum fragment size.
+    inline void fragment(std::vector<char>& out, char const* data, size_t size, uint8_t seq, size_t i, size_t n, size_t max_fragment) {
+        size_t chunk = max_fragment - header_size;
+        size_t begin = i * chunk;
+        size_t end = std::min(size, begin + chunk);
+        out.push_back(char((packet_codec::version << 4) | marker));
+        out.push_back(char(seq));
+        out.push_back(char((i << 4) | (n - 1)));
+        out.insert(out.end(), data + begin, data + end);
+    }
+
+    /**
+     * @brief Collects fragments from many senders into whole messages.
+     *
+     * Keeps one partial message per sender, for a limited number of senders: a fragment of a new
+     * message replaces the partial one, and partial messages older than a timeout are discarded.
+     */
+    template <typename T>
+    class reassembler {
+      public:
+        //! @brief Constructor with the maximum number of senders with a partial message.
+        reassembler(size_t max_senders = 32) : m_max_senders(max_senders) {}
+
+        //! @brief Adds a fragment received at a given time, returning whether it completed a message (then stored in `out`).
+        bool add(uint64_t sender, char const* data, size_t size, T time, std::vector<char>& out) {
+            uint8_t seq = data[1];
+            size_t i = uint8_t(data[2]) >> 4;
+            size_t n = (uint8_t(data[2]) & 15) + 1;
+            if (i >= n) return false;
+            auto it = m_partial.find(sender);
+            if (it == m_partial.end()) {
+                if (m_partial.size() >= m_max_senders) evict_oldest();
+                it = m_partial.emplace(sender, partial_t{}).first;
+                it->second.chunks.resize(max_count);
+                it->second.count = 0;
+            }
+            partial_t& p = it->second;
+            if (p.count != n or p.seq != seq) {
+                p.seq = seq;
+                p.count = n;
+                p.missing = (1 << n) - 1;
+                p.first = time;
+            }
+            p.chunks[i].assign(data + header_size, data + size);
+            p.missing &= ~(1 << i);
+            if (p.missing) return false;
+            out.clear();
+            for (size_t k = 0; k < n; ++k) out.insert(out.end(), p.chunks[k].begin(), p.chunks[k].end());
+            m_partial.erase(it);
+            return true;
+        }
+
+        //! @brief Discards partial messages whose first fragment arrived before a given time, returning how many.
+        size_t expire(T oldest) {
+            size_t c = 0;
+            for (auto it = m_partial.begin(); it != m_partial.end(); ) {
+                if (it->second.first < oldest) {
+                    it = m_partial.erase(it);
+                    ++c;
+                } else ++it;
+            }
+            return c;
+        }
+
+        //! @brief The number of senders with a partial message.
+        size_t size() const {
+            return m_partial.size();
+        }
+
+      private:
+        //! @brief A partially received message.
+        struct partial_t {
+            uint8_t seq;
+            size_t count;
+            uint32_t missing;
+            T first;
+            std::vector<std::vector<char>> chunks;
+        };
+
+        //! @brief Discards the partial message started longest ago.
+        void evict_oldest() {
+            auto oldest = m_partial.begin();
+            for (auto it = m_partial.begin(); it != m_partial.end(); ++it)
+                if (it->second.first < oldest->second.first) oldest = it;
+            m_partial.erase(oldest);
+        }
+
+        //! @brief Maximum number of senders with a partial message.
+        size_t const m_max_senders;
+        //! @brief Partial message by sender.
+        std::unordered_map<uint64_t, partial_t> m_partial;
+    };
+}
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_FRAGMENTS_H_
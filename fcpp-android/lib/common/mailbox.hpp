@@ -0,0 +1,207 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file mailbox.hpp
+ * @brief Single-slot latest-value mailbox of packets, shareable with Java.
+ */
+
+#ifndef FCPP_COMMON_MAILBOX_H_
+#define FCPP_COMMON_MAILBOX_H_
+
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <cstring>
+#include <mutex>
+#include <vector>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+/**
+ * @brief Single-producer single-consumer mailbox holding the latest packet only.
+ *
+ * Implemented as a triple buffer: the producer writes into its back slot, and publishing swaps it
+ * with the middle slot; the consumer takes the middle slot by swapping it with its front slot.
+ * Neither side ever waits for the other, and a packet published before the previous one is taken
+ * replaces it (and is counted as overwritten). Each slot holds a `uint16_t` length (native
+ * endianness) followed by the packet bytes, in contiguous memory that can be wrapped by a direct
+ * `ByteBuffer`. Publishing takes a lock only to wake up a consumer that is actually waiting.
+ */
+class mailbox {
+  public:
+    //! @brief Size of the slot header.
+    static constexpr size_t header_size = sizeof(uint16_t);
+
+    //! @brief Constructor with the size of each slot (including the header).
+    mailbox(size_t slot_size) : m_slot_size(slot_size), m_data(3 * slot_size) {}
+
+    mailbox(mailbox const&) = delete;
+    mailbox& operator=(mailbox const&) = delete;
+
+    //! @brief The shared slot memory.
+    char* data() {
+        return m_data.data();
+    }
+
+    //! @brief The size in bytes of the shared slot memory.
+    size_t size() const {
+        return m_data.size();
+    }
+
+    //! @brief The size in bytes of each slot (including the header).
+    size_t slot_size() const {
+        return m_slot_size;
+    }
+
+    //! @brief The largest packet fitting in a slot.
+    size_t max_packet() const {
+        return m_slot_size - header_size;
+    }
+
+    //! @brief Start of the slot with a given index.
+    char* slot(int i) {
+        return m_data.data() + i * m_slot_size;
+    }
+
+    //! @brief Length of the packet in a slot.
+    static uint16_t length(char const* s) {
+        uint16_t len;
+        memcpy(&len, s, header_size);
+        return len;
+    }
+
+    //! @brief Packet bytes in a slot.
+    static char* packet(char* s) {
+        return s + header_size;
+    }
+
+    //! @brief Number of packets published so far.
+    uint64_t published() const {
+        return m_published.load(std::memory_order_relaxed);
+    }
+
+    //! @brief Number of packets replaced by a newer one before being taken.
+    uint64_t overwritten() const {
+        return m_overwritten.load(std::memory_order_relaxed);
+    }
+
+    /**
+     * @name Producer side.
+     */
+    //! @{
+    //! @brief Index of the slot to be written next.
+    int back() const {
+        return m_back;
+    }
+
+    //! @brief Publishes the back slot with a given packet length, replacing any packet not yet taken.
+    void publish(uint16_t len) {
+        memcpy(slot(m_back), &len, header_size);
+        m_sequence[m_back] = m_published.load(std::memory_order_relaxed) + 1;
+        m_published.store(m_sequence[m_back], std::memory_order_relaxed);
+        uint32_t old = m_middle.exchange(m_back | fresh, std::memory_order_seq_cst);
+        if (old & fresh) m_overwritten.fetch_add(1, std::memory_order_relaxed);
+        m_back = old & index_mask;
+        if (m_waiting.load(std::memory_order_seq_cst)) {
+            std::lock_guard<std::mutex> l(m_mutex);
+            m_cv.notify_one();
+        }
+    }
+    //! @}
+
+    /**
+     * @name Consumer side.
+     */
+    //! @{
+    //! @brief Index of the slot with the latest packet if not taken yet, or -1.
+    int take() {
+        if (not (m_middle.load(std::memory_order_relaxed) & fresh)) return -1;
+        uint32_t old = m_middle.exchange(m_front, std::memory_order_acq_rel);
+        m_front = old & index_mask;
+        return m_front;
+    }
+
+    /**
+     * @brief Index of the slot with the latest packet, waiting up to a timeout for one not taken yet (-1 if none).
+     *
+     * Returns early, with -1 if no packet came, after a call to wake().
+     */
+    template <typename R, typename P>
+    int wait_take(std::chrono::duration<R, P> timeout) {
+        int i = take();
+        if (i >= 0) return i;
+        {
+            std::unique_lock<std::mutex> l(m_mutex);
+            if (not m_woken) {
+                m_waiting.store(true, std::memory_order_seq_cst);
+                m_cv.wait_for(l, timeout, [this](){
+                    return m_woken or (m_middle.load(std::memory_order_seq_cst) & fresh) != 0;
+                });
+                m_waiting.store(false, std::memory_order_relaxed);
+            }
+            m_woken = false;
+        }
+        return take();
+    }
+
+    //! @brief Makes the current wait_take() return, or the next one if none is waiting (e.g. for the consumer to stop).
+    void wake() {
+        std::lock_guard<std::mutex> l(m_mutex);
+        m_woken = true;
+        m_cv.notify_one();
+    }
+
+    //! @brief Sequence number (starting from 1) of the packet in a slot taken by the consumer.
+    uint64_t sequence(int i) const {
+        return m_sequence[i];
+    }
+    //! @}
+
+  private:
+    //! @brief Flag marking the middle slot as published and not taken yet.
+    static constexpr uint32_t fresh = 4;
+    //! @brief Mask extracting the slot index.
+    static constexpr uint32_t index_mask = 3;
+
+    //! @brief The size of each slot.
+    size_t const m_slot_size;
+    //! @brief The slot memory.
+    std::vector<char> m_data;
+    //! @brief Sequence number of the packet in each slot.
+    uint64_t m_sequence[3] = {0, 0, 0};
+    //! @brief Slot owned by the producer.
+    int m_back = 0;
+    //! @brief Slot exchanged between the two sides, possibly with the fresh flag.
+    std::atomic<uint32_t> m_middle{1};
+    //! @brief Slot owned by the consumer.
+    int m_front = 2;
+    //! @brief Count of packets published.
+    std::atomic<uint64_t> m_published{0};
+    //! @brief Count of packets overwritten before being taken.
+    std::atomic<uint64_t> m_overwritten{0};
+    //! @brief Whether the consumer is waiting.
+    std::atomic<bool> m_waiting{false};
+    //! @brief Whether the consumer was woken up without a packet, guarded by the mutex.
+    bool m_woken = false;
+    //! @brief Mutex for waiting on an empty mailbox.
+    std::mutex m_mutex;
+    //! @brief Condition variable for waiting on an empty mailbox.
+    std::condition_variable m_cv;
+};
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_MAILBOX_H_
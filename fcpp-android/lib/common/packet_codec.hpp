@@ -0,0 +1,330 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file packet_codec.hpp
+ * @brief Compact byte-level encoding of exported messages, with version negotiation.
+ */
+
+#ifndef FCPP_COMMON_PACKET_CODEC_H_
+#define FCPP_COMMON_PACKET_CODEC_H_
+
+#include <algorithm>
+#include <cstdint>
+#include <cstring>
+#include <unordered_map>
+#include <vector>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+/**
+ * @brief Namespace containing the packet codec.
+ *
+ * Every encoded packet starts with a header byte, holding the codec used in the low nibble and the
+ * highest codec supported by the sender in the high nibble, followed by a sequence byte:
+ * - `raw`: the content follows as is;
+ * - `zero_runs`: the content follows packed as alternating literal and zero runs (see `pack`);
+ * - `delta`: a base sequence byte, the content size (varint) and the XOR between the content and
+ *   the base packet (packed as above) follow.
+ *
+ * Serialised exports are mostly made of fixed-size integers and reals, with many zero bytes, and
+ * change little from round to round. `raw` and `zero_runs` packets are keyframes: a `delta` packet
+ * refers to the latest keyframe of the sender, so that it can be decoded even if the packets
+ * in between were lost. Receivers remember the codec supported by neighbours, so that senders
+ * can restrict themselves to codecs that everyone around understands.
+ *
+ * Devices predating the codec send and expect bare exports, with no header. Nothing in a bare
+ * export tells it apart from an encoded packet, so the two formats travel under different BLE
+ * service data UUIDs, and the transport tells which one a packet came in. Neighbours heard in the
+ * `legacy` format are sent bare exports, for as long as they are around.
+ */
+namespace packet_codec {
+    //! @brief Content as is.
+    constexpr uint8_t raw = 0;
+    //! @brief Content packed in zero runs.
+    constexpr uint8_t zero_runs = 1;
+    //! @brief Content XOR the latest keyframe, packed in zero runs.
+    constexpr uint8_t delta = 2;
+    //! @brief The highest codec supported.
+    constexpr uint8_t version = delta;
+    //! @brief Codec negotiated with devices predating the codec: bare content, no header.
+    constexpr int legacy = -1;
+
+    //! @brief The codec used by an encoded packet.
+    inline uint8_t used(char header) {
+        return uint8_t(header) & 15;
+    }
+
+    //! @brief The highest codec supported by the sender of an encoded packet.
+    inline uint8_t supported(char header) {
+        return uint8_t(header) >> 4;
+    }
+
+    //! @brief Appends an unsigned integer in LEB128 format.
+    inline void put_varint(std::vector<char>& out, size_t x) {
+        while (x >= 128) {
+            out.push_back(char((x & 127) | 128));
+            x >>= 7;
+        }
+        out.push_back(char(x));
+    }
+
+    //! @brief Reads an unsigned integer in LEB128 format, returning whether it was well-formed.
+    inline bool get_varint(char const*& p, char const* end, size_t& x) {
+        x = 0;
+        for (int shift = 0; p < end and shift < 35; shift += 7) {
+            uint8_t b = *p++;
+            x |= size_t(b & 127) << shift;
+            if (b < 128) return true;
+        }
+        return false;
+    }
+
+    //! @brief Appends bytes packed as alternating (varint) literal run lengths, literals and (varint) zero run lengths.
+    inline void pack(std::vector<char>& out, char const* data, size_t size) {
+        size_t i = 0;
+        while (i < size) {
+            size_t lit = i;
+            // A single zero between literals is cheaper kept as a literal.
+            while (lit < size and (data[lit] != 0 or (lit + 1 < size and data[lit + 1] != 0))) ++lit;
+            put_varint(out, lit - i);
+            out.insert(out.end(), data + i, data + lit);
+            size_t zero = lit;
+            while (zero < size and data[zero] == 0) ++zero;
+            put_varint(out, zero - lit);
+            i = zero;
+        }
+    }
+
+    //! @brief Unpacks bytes packed by `pack`, returning whether they were well-formed.
+    inline bool unpack(char const* p, char const* end, std::vector<char>& out) {
+        out.clear();
+        while (p < end) {
+            size_t lit, zero;
+            if (not get_varint(p, end, lit) or size_t(end - p) < lit) return false;
+            out.insert(out.end(), p, p + lit);
+            p += lit;
+            if (not get_varint(p, end, zero) or zero > 65536) return false;
+            out.resize(out.size() + zero, 0);
+        }
+        return true;
+    }
+
+    //! @brief Encodes the successive exports of a device.
+    class encoder {
+      public:
+        //! @brief Constructor with the maximum number of packets between keyframes.
+        encoder(uint8_t keyframe_interval = 8) : m_keyframe_interval(keyframe_interval) {}
+
+        /**
+         * @brief Encodes some content, with codecs up to a given one (`legacy` for bare content).
+         *
+         * Content equal to the previous one is encoded exactly as before, so that receivers
+         * and the advertiser can recognise it as a repetition. A delta is repeated as a keyframe
+         * instead, once, so that receivers that missed its keyframe are not left out for as long
+         * as the content stays the same.
+         */
+        void encode(char const* data, size_t size, int max_codec, std::vector<char>& out) {
+            if (max_codec == m_last_max and size == m_prev.size() and memcmp(data, m_prev.data(), size) == 0) {
+                if (used(m_last[0]) == delta and max_codec >= raw) {
+                    ++m_seq;
+                    make_keyframe(max_codec);
+                    commit_keyframe();
+                }
+                out.insert(out.end(), m_last.begin(), m_last.end());
+                return;
+            }
+            ++m_seq;
+            m_last_max = max_codec;
+            m_prev.assign(data, data + size);
+            if (max_codec < raw) {
+                // Receivers forget our keyframe on bare content, so deltas must wait for a new one.
+                m_key_codec = -1;
+                m_last = m_prev;
+                out.insert(out.end(), m_last.begin(), m_last.end());
+                return;
+            }
+            make_keyframe(max_codec);
+            bool keyframe = true;
+            if (max_codec >= delta and m_key_codec >= 0 and uint8_t(m_seq - m_key_seq) < m_keyframe_interval) {
+                m_xor.assign(std::max(size, m_key.size()), 0);
+                for (size_t i = 0; i < size; ++i) m_xor[i] = data[i];
+                for (size_t i = 0; i < m_key.size(); ++i) m_xor[i] ^= m_key[i];
+                m_buffer.clear();
+                header(m_buffer, delta);
+                m_buffer.push_back(char(m_key_seq));
+                put_varint(m_buffer, size);
+                pack(m_buffer, m_xor.data(), m_xor.size());
+                if (m_buffer.size() < m_last.size()) {
+                    m_last.swap(m_buffer);
+                    keyframe = false;
+                }
+            }
+            if (keyframe) commit_keyframe();
+            out.insert(out.end(), m_last.begin(), m_last.end());
+        }
+
+      private:
+        //! @brief Encodes the last content as a keyframe into the last packet, with codecs up to a given one.
+        void make_keyframe(int max_codec) {
+            m_last.clear();
+            header(m_last, raw);
+            m_last.insert(m_last.end(), m_prev.begin(), m_prev.end());
+            if (max_codec >= zero_runs) {
+                m_buffer.clear();
+                header(m_buffer, zero_runs);
+                pack(m_buffer, m_prev.data(), m_prev.size());
+                if (m_buffer.size() < m_last.size()) m_last.swap(m_buffer);
+            }
+        }
+
+        //! @brief Makes the last packet, a keyframe, the base of the following deltas.
+        void commit_keyframe() {
+            m_key_seq = m_seq;
+            m_key_codec = used(m_last[0]);
+            m_key = m_prev;
+        }
+
+        //! @brief Appends the header and sequence bytes.
+        void header(std::vector<char>& out, uint8_t codec) const {
+            out.push_back(char((version << 4) | codec));
+            out.push_back(char(m_seq));
+        }
+
+        //! @brief Maximum number of packets between keyframes.
+        uint8_t const m_keyframe_interval;
+        //! @brief Sequence number of the last packet.
+        uint8_t m_seq = 0;
+        //! @brief Sequence number of the last keyframe.
+        uint8_t m_key_seq = 0;
+        //! @brief Codec of the last keyframe (-1 if none yet).
+        int m_key_codec = -1;
+        //! @brief Maximum codec allowed for the last packet (below `legacy` if none yet).
+        int m_last_max = legacy - 1;
+        //! @brief Content of the last keyframe.
+        std::vector<char> m_key;
+        //! @brief Content of the last packet.
+        std::vector<char> m_prev;
+        //! @brief Last packet.
+        std::vector<char> m_last;
+        //! @brief Scratch buffers.
+        std::vector<char> m_buffer, m_xor;
+    };
+
+    //! @brief Decodes packets from many senders.
+    class decoder {
+      public:
+        //! @brief Constructor with the maximum number of senders remembered.
+        decoder(size_t max_senders = 256) : m_max_senders(max_senders) {}
+
+        //! @brief Decodes a packet from a sender, returning whether it could be decoded.
+        bool decode(uint64_t sender, char const* data, size_t size, std::vector<char>& out) {
+            if (size < 2) return false;
+            char const* p = data + 2;
+            char const* end = data + size;
+            uint8_t seq = data[1];
+            switch (used(data[0])) {
+                case raw:
+                    out.assign(p, end);
+                    keyframe(sender, seq, out);
+                    return true;
+                case zero_runs:
+                    if (not unpack(p, end, out)) return false;
+                    keyframe(sender, seq, out);
+                    return true;
+                case delta: {
+                    if (p == end) return false;
+                    auto it = m_keys.find(sender);
+                    if (it == m_keys.end() or it->second.seq != uint8_t(*p++)) return false;
+                    size_t len;
+                    if (not get_varint(p, end, len) or not unpack(p, end, m_buffer)) return false;
+                    std::vector<char> const& key = it->second.content;
+                    if (m_buffer.size() < std::max(len, key.size())) return false;
+                    out.assign(m_buffer.begin(), m_buffer.begin() + len);
+                    for (size_t i = 0; i < std::min(len, key.size()); ++i) out[i] ^= key[i];
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        //! @brief Decodes a bare packet from a sender predating the codec.
+        void decode_legacy(uint64_t sender, char const* data, size_t size, std::vector<char>& out) {
+            out.assign(data, data + size);
+            forget(sender);
+        }
+
+        //! @brief Forgets everything about a sender.
+        void forget(uint64_t sender) {
+            m_keys.erase(sender);
+        }
+
+      private:
+        //! @brief The latest keyframe of a sender.
+        struct key_t {
+            uint8_t seq;
+            std::vector<char> content;
+        };
+
+        //! @brief Stores a keyframe.
+        void keyframe(uint64_t sender, uint8_t seq, std::vector<char> const& content) {
+            if (m_keys.size() >= m_max_senders and m_keys.count(sender) == 0)
+                m_keys.erase(m_keys.begin());
+            key_t& k = m_keys[sender];
+            k.seq = seq;
+            k.content = content;
+        }
+
+        //! @brief Maximum number of senders remembered.
+        size_t const m_max_senders;
+        //! @brief Latest keyframe by sender.
+        std::unordered_map<uint64_t, key_t> m_keys;
+        //! @brief Scratch buffer.
+        std::vector<char> m_buffer;
+    };
+
+    //! @brief Keeps track of the codecs understood by neighbours, heard at times of type `T`.
+    template <typename T>
+    class negotiator {
+      public:
+        //! @brief Records that a sender supporting up to a given codec (`legacy` for bare packets) was heard at a given time.
+        void heard(uint64_t sender, int supported, T time) {
+            m_peers[sender] = {supported, time};
+        }
+
+        //! @brief The highest codec up to a given one understood by every neighbour heard since a given time.
+        int codec(int max_codec, T oldest) {
+            for (auto it = m_peers.begin(); it != m_peers.end(); ) {
+                if (it->second.second < oldest) {
+                    it = m_peers.erase(it);
+                } else {
+                    max_codec = std::min(max_codec, it->second.first);
+                    ++it;
+                }
+            }
+            return max_codec;
+        }
+
+      private:
+        //! @brief Highest codec supported by each neighbour, and when it was last heard.
+        std::unordered_map<uint64_t, std::pair<int, T>> m_peers;
+    };
+}
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_PACKET_CODEC_H_
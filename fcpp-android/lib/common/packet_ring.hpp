@@ -0,0 +1,179 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file packet_ring.hpp
+ * @brief Single-producer single-consumer ring of packet slots, shareable with Java.
+ */
+
+#ifndef FCPP_COMMON_PACKET_RING_H_
+#define FCPP_COMMON_PACKET_RING_H_
+
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <cstring>
+#include <mutex>
+#include <vector>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+/**
+ * @brief Single-producer single-consumer ring of fixed-size packet slots.
+ *
+ * Each slot holds a `uint16_t` length (native endianness) followed by the packet bytes.
+ * The slot memory is contiguous, so that it can be wrapped by a direct `ByteBuffer` and
+ * written or read in place from Java, while the indices stay on the native side.
+ * Producer and consumer may run on different threads; each side must be used by one thread at a time.
+ */
+class packet_ring {
+  public:
+    //! @brief Size of the slot header.
+    static constexpr size_t header_size = sizeof(uint16_t);
+
+    //! @brief Constructor with the number of slots (a power of two) and the size of each slot (including the header).
+    packet_ring(size_t slots, size_t slot_size) : m_slots(slots), m_slot_size(slot_size), m_data(slots * slot_size) {}
+
+    packet_ring(packet_ring const&) = delete;
+    packet_ring& operator=(packet_ring const&) = delete;
+
+    //! @brief The shared slot memory.
+    char* data() {
+        return m_data.data();
+    }
+
+    //! @brief The size in bytes of the shared slot memory.
+    size_t size() const {
+        return m_data.size();
+    }
+
+    //! @brief The number of slots.
+    size_t slots() const {
+        return m_slots;
+    }
+
+    //! @brief The size in bytes of each slot (including the header).
+    size_t slot_size() const {
+        return m_slot_size;
+    }
+
+    //! @brief The largest packet fitting in a slot.
+    size_t max_packet() const {
+        return m_slot_size - header_size;
+    }
+
+    //! @brief The number of published slots not yet consumed.
+    size_t count() const {
+        return m_tail.load(std::memory_order_acquire) - m_head.load(std::memory_order_acquire);
+    }
+
+    //! @brief Start of the slot with a given index.
+    char* slot(int i) {
+        return m_data.data() + i * m_slot_size;
+    }
+
+    //! @brief Length of the packet in a slot.
+    static uint16_t length(char const* s) {
+        uint16_t len;
+        memcpy(&len, s, header_size);
+        return len;
+    }
+
+    //! @brief Packet bytes in a slot.
+    static char* packet(char* s) {
+        return s + header_size;
+    }
+
+    /**
+     * @name Producer side.
+     */
+    //! @{
+    //! @brief Index of the slot to be written next, or -1 if the ring is full.
+    int reserve() const {
+        uint32_t tail = m_tail.load(std::memory_order_relaxed);
+        if (tail - m_head.load(std::memory_order_acquire) >= m_slots) return -1;
+        return tail % m_slots;
+    }
+
+    //! @brief Publishes the reserved slot with a given packet length, waking up a waiting consumer.
+    void commit(uint16_t len) {
+        uint32_t tail = m_tail.load(std::memory_order_relaxed);
+        memcpy(slot(tail % m_slots), &len, header_size);
+        m_tail.store(tail + 1, std::memory_order_release);
+        {
+            std::lock_guard<std::mutex> l(m_mutex);
+        }
+        m_cv.notify_one();
+    }
+    //! @}
+
+    /**
+     * @name Consumer side.
+     */
+    //! @{
+    //! @brief Index of the oldest published slot, or -1 if the ring is empty.
+    int front() const {
+        uint32_t head = m_head.load(std::memory_order_relaxed);
+        if (m_tail.load(std::memory_order_acquire) == head) return -1;
+        return head % m_slots;
+    }
+
+    //! @brief Index of the oldest published slot, waiting up to a timeout (-1 if still empty).
+    template <typename R, typename P>
+    int wait_front(std::chrono::duration<R, P> timeout) {
+        int i = front();
+        if (i >= 0) return i;
+        std::unique_lock<std::mutex> l(m_mutex);
+        m_cv.wait_for(l, timeout, [this](){
+            return m_tail.load(std::memory_order_acquire) != m_head.load(std::memory_order_relaxed);
+        });
+        return front();
+    }
+
+    //! @brief Index of the newest published slot after discarding older ones, waiting up to a timeout (-1 if still empty).
+    template <typename R, typename P>
+    int wait_latest(std::chrono::duration<R, P> timeout) {
+        if (wait_front(timeout) < 0) return -1;
+        uint32_t tail = m_tail.load(std::memory_order_acquire);
+        m_head.store(tail - 1, std::memory_order_release);
+        return (tail - 1) % m_slots;
+    }
+
+    //! @brief Releases the oldest published slot back to the producer.
+    void pop() {
+        m_head.store(m_head.load(std::memory_order_relaxed) + 1, std::memory_order_release);
+    }
+    //! @}
+
+  private:
+    //! @brief The number of slots.
+    size_t const m_slots;
+    //! @brief The size of each slot.
+    size_t const m_slot_size;
+    //! @brief The slot memory.
+    std::vector<char> m_data;
+    //! @brief Count of slots consumed so far.
+    std::atomic<uint32_t> m_head{0};
+    //! @brief Count of slots published so far.
+    std::atomic<uint32_t> m_tail{0};
+    //! @brief Mutex for waiting on an empty ring.
+    std::mutex m_mutex;
+    //! @brief Condition variable for waiting on an empty ring.
+    std::condition_variable m_cv;
+};
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_PACKET_RING_H_
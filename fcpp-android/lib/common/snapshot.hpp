@@ -0,0 +1,88 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file snapshot.hpp
+ * @brief Immutable copies of a value, published by one thread and read by others without blocking it.
+ */
+
+#ifndef FCPP_COMMON_SNAPSHOT_H_
+#define FCPP_COMMON_SNAPSHOT_H_
+
+#include <atomic>
+#include <cstdint>
+#include <memory>
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+/**
+ * @brief The latest published copy of a value.
+ *
+ * Each publication makes a new immutable copy and swaps it in atomically, so that readers always
+ * see a whole copy (however long they keep it) and never hold up the publisher: they only share
+ * with it the short critical section of the shared pointer swap.
+ */
+template <typename T>
+class snapshot {
+  public:
+    //! @brief Publishes a copy of a value.
+    void publish(T const& x) {
+        std::shared_ptr<T const> p = std::make_shared<T const>(x);
+        std::atomic_store_explicit(&m_latest, std::move(p), std::memory_order_release);
+        m_version.fetch_add(1, std::memory_order_release);
+        if (void (*f)() = m_listener.load(std::memory_order_acquire)) f();
+    }
+
+    //! @brief Sets a function to be called by the publishing thread after each publication (null for none).
+    void on_publish(void (*f)()) {
+        m_listener.store(f, std::memory_order_release);
+    }
+
+    //! @brief The latest copy published (null if none).
+    std::shared_ptr<T const> get() const {
+        return std::atomic_load_explicit(&m_latest, std::memory_order_acquire);
+    }
+
+    //! @brief Discards the latest copy.
+    void clear() {
+        std::atomic_store_explicit(&m_latest, std::shared_ptr<T const>(), std::memory_order_release);
+    }
+
+    //! @brief The number of copies published.
+    uint64_t version() const {
+        return m_version.load(std::memory_order_acquire);
+    }
+
+  private:
+    //! @brief The latest copy.
+    std::shared_ptr<T const> m_latest;
+    //! @brief The number of copies published.
+    std::atomic<uint64_t> m_version{0};
+    //! @brief Called after each publication.
+    std::atomic<void (*)()> m_listener{nullptr};
+};
+
+
+//! @brief The snapshot of values of a given type shared by the whole program (e.g. the storage of the running node).
+template <typename T>
+snapshot<T>& published() {
+    static snapshot<T> s;
+    return s;
+}
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_SNAPSHOT_H_
@@ -0,0 +1,254 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file storage_writer.hpp
+ * @brief Serialisation of tagged tuples (as the node storage) to JSON or to a compact binary format.
+ */
+
+#ifndef FCPP_COMMON_STORAGE_WRITER_H_
+#define FCPP_COMMON_STORAGE_WRITER_H_
+
+#include <algorithm>
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <limits>
+#include <string>
+#include <type_traits>
+#include <vector>
+#if __has_include(<charconv>)
+#include <charconv>
+#endif
+
+#include "lib/common/template_remover.hpp"
+
+
+/**
+ * @brief Namespace containing all the objects in the FCPP library.
+ */
+namespace fcpp {
+
+
+/**
+ * @brief Namespace containing objects of common use.
+ */
+namespace common {
+
+
+//! @cond INTERNAL
+namespace details {
+    //! @brief Text of a non-numeric value (string overload).
+    inline std::string const& value_text(std::string const& x) {
+        return x;
+    }
+
+    //! @brief Text of a non-numeric value (general overload).
+    template <typename T>
+    inline std::string value_text(T const& x) {
+        using std::to_string;
+        return to_string(x);
+    }
+
+    //! @brief Binary type code of a value (bool overload).
+    template <typename T>
+    inline std::enable_if_t<std::is_same<T,bool>::value, std::string> type_code() {
+        return "b";
+    }
+
+    //! @brief Binary type code of a value (numeric overload).
+    template <typename T>
+    inline std::enable_if_t<std::is_arithmetic<T>::value and not std::is_same<T,bool>::value, std::string> type_code() {
+        char c = std::is_floating_point<T>::value ? 'f' : std::is_signed<T>::value ? 'i' : 'u';
+        return c + std::to_string(sizeof(T));
+    }
+
+    //! @brief Binary type code of a value (non-numeric overload).
+    template <typename T>
+    inline std::enable_if_t<not std::is_arithmetic<T>::value, std::string> type_code() {
+        return "s";
+    }
+}
+//! @endcond
+
+
+/**
+ * @brief Writes a tagged tuple type as JSON or binary, into buffers reused across calls.
+ *
+ * The JSON output has the same fields as `to_json`, in the same order, and the key of every field
+ * is computed once per tuple type. Floating point numbers differ: `to_json` writes them with six
+ * decimals, losing small values and precision, while here they are written so as to read back as
+ * the same value, and as `null` if not finite. Where the standard library has floating point
+ * `std::to_chars`, that is with the fewest digits doing so (e.g. `0.1`), in a single pass;
+ * otherwise (e.g. the libc++ of older NDKs) with `max_digits10` significant digits (e.g.
+ * `0.10000000000000001`).
+ * The binary output holds the fields in tag order:
+ * - numbers and booleans as their raw bytes, in native byte order;
+ * - other values as their text, after its length as a `uint16_t`.
+ * `schema` describes the binary format as a JSON object, mapping each key to a type code: `b` for
+ * booleans, `i`, `u` or `f` followed by the size in bytes for numbers, and `s` for text.
+ *
+ * Numbers and booleans are written without any allocation, once the buffers have grown to size.
+ */
+template <typename T>
+class storage_writer {
+  public:
+    //! @brief The field names, in tag order.
+    static std::vector<std::string> const& keys() {
+        static std::vector<std::string> const k = make_keys(typename T::tags{});
+        return k;
+    }
+
+    //! @brief The binary format, as a JSON object from field names to type codes.
+    static std::string const& schema() {
+        static std::string const s = make_schema(typename T::tags{});
+        return s;
+    }
+
+    //! @brief Writes a tuple as JSON, valid until the next call.
+    std::string const& json(T const& t) {
+        m_json.clear();
+        m_json.push_back('{');
+        write_json(t, typename T::tags{}, 0);
+        m_json.push_back('}');
+        return m_json;
+    }
+
+    //! @brief Writes a tuple in binary, valid until the next call.
+    std::vector<char> const& binary(T const& t) {
+        m_binary.clear();
+        write_binary(t, typename T::tags{});
+        return m_binary;
+    }
+
+  private:
+    //! @brief Computes the field names (empty case).
+    static std::vector<std::string> make_keys(type_sequence<>) {
+        return {};
+    }
+
+    //! @brief Computes the field names (recursive case).
+    template <typename S, typename... Ss>
+    static std::vector<std::string> make_keys(type_sequence<S, Ss...>) {
+        std::vector<std::string> k = make_keys(type_sequence<Ss...>{});
+        k.insert(k.begin(), details::strip_namespaces(type_name<S>()));
+        return k;
+    }
+
+    //! @brief Computes the binary format (empty case).
+    static std::string make_schema(type_sequence<>) {
+        return "{}";
+    }
+
+    //! @brief Computes the binary format (recursive case).
+    template <typename... Ss>
+    static std::string make_schema(type_sequence<Ss...>) {
+        std::string const codes[] = {details::type_code<std::decay_t<decltype(get<Ss>(std::declval<T const&>()))>>()...};
+        std::string s = "{";
+        for (size_t i = 0; i < sizeof...(Ss); ++i) {
+            if (i > 0) s += ", ";
+            s += "\"" + keys()[i] + "\": \"" + codes[i] + "\"";
+        }
+        return s + "}";
+    }
+
+    //! @brief The JSON prefix of each field (as `, "key": `), computed once.
+    static std::vector<std::string> const& prefixes() {
+        static std::vector<std::string> const p = [](){
+            std::vector<std::string> p;
+            for (std::string const& k : keys()) p.push_back((p.empty() ? "\"" : ", \"") + k + "\": ");
+            return p;
+        }();
+        return p;
+    }
+
+    //! @brief Writes the fields as JSON (empty case).
+    void write_json(T const&, type_sequence<>, size_t) {}
+
+    //! @brief Writes the fields as JSON (recursive case).
+    template <typename S, typename... Ss>
+    void write_json(T const& t, type_sequence<S, Ss...>, size_t i) {
+        m_json += prefixes()[i];
+        json_value(get<S>(t));
+        write_json(t, type_sequence<Ss...>{}, i+1);
+    }
+
+    //! @brief Writes a value as JSON (bool overload).
+    void json_value(bool x) {
+        m_json += x ? "true" : "false";
+    }
+
+    //! @brief Writes a value as JSON (numeric overload).
+    template <typename U>
+    std::enable_if_t<std::is_arithmetic<U>::value> json_value(U x) {
+        char buf[32];
+        int n;
+        if (std::is_floating_point<U>::value) {
+            if (not std::isfinite(double(x))) {
+                m_json += "null";
+                return;
+            }
+#ifdef __cpp_lib_to_chars
+            n = std::to_chars(buf, buf + sizeof(buf), x).ptr - buf;
+#else
+            n = snprintf(buf, sizeof(buf), "%.*g", std::numeric_limits<U>::max_digits10, double(x));
+#endif
+        } else if (std::is_signed<U>::value) {
+            n = snprintf(buf, sizeof(buf), "%lld", (long long)x);
+        } else {
+            n = snprintf(buf, sizeof(buf), "%llu", (unsigned long long)x);
+        }
+        m_json.append(buf, n);
+    }
+
+    //! @brief Writes a value as JSON (non-numeric overload).
+    template <typename U>
+    std::enable_if_t<not std::is_arithmetic<U>::value> json_value(U const& x) {
+        m_json.push_back('"');
+        for (char c : details::value_text(x)) {
+            if (c == '"' or c == '\\') m_json.push_back('\\');
+            if (uint8_t(c) < 32) {
+                char buf[8];
+                m_json.append(buf, snprintf(buf, sizeof(buf), "\\u%04x", c));
+            } else m_json.push_back(c);
+        }
+        m_json.push_back('"');
+    }
+
+    //! @brief Writes the fields in binary (empty case).
+    void write_binary(T const&, type_sequence<>) {}
+
+    //! @brief Writes the fields in binary (recursive case).
+    template <typename S, typename... Ss>
+    void write_binary(T const& t, type_sequence<S, Ss...>) {
+        binary_value(get<S>(t));
+        write_binary(t, type_sequence<Ss...>{});
+    }
+
+    //! @brief Writes a value in binary (numeric overload).
+    template <typename U>
+    std::enable_if_t<std::is_arithmetic<U>::value> binary_value(U x) {
+        char const* p = reinterpret_cast<char const*>(&x);
+        m_binary.insert(m_binary.end(), p, p + sizeof(U));
+    }
+
+    //! @brief Writes a value in binary (non-numeric overload).
+    template <typename U>
+    std::enable_if_t<not std::is_arithmetic<U>::value> binary_value(U const& x) {
+        auto const& s = details::value_text(x);
+        uint16_t len = std::min(s.size(), size_t(UINT16_MAX));
+        binary_value(len);
+        m_binary.insert(m_binary.end(), s.data(), s.data() + len);
+    }
+
+    //! @brief Buffer for the JSON output.
+    std::string m_json;
+    //! @brief Buffer for the binary output.
+    std::vector<char> m_binary;
+};
+
+
+} // namespace common
+
+} // namespace fcpp
+
+#endif  // FCPP_COMMON_STORAGE_WRITER_H_
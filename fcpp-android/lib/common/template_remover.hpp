@@ -216,6 +216,105 @@ void setter(std::string const& name, U& t, R&& val) {
 }
 
 
+//! @cond INTERNAL
+namespace details {
+    //! @brief Empty base case.
+    inline int tag_index(std::string const&, type_sequence<>, int) {
+        return -1;
+    }
+
+    //! @brief Recursive form.
+    template <typename S1, typename... S>
+    inline int tag_index(std::string const& name, type_sequence<S1, S...>, int i) {
+        if (strip_namespaces(type_name<S1>()) == name) return i;
+        return tag_index(name, type_sequence<S...>{}, i+1);
+    }
+
+    //! @brief Reads a value converting it to R (convertible case).
+    template <typename R, typename T>
+    inline std::enable_if_t<std::is_convertible<T, R>::value, R> get_as(T const& x) {
+        return x;
+    }
+
+    //! @brief Reads a value converting it to R (non-convertible case).
+    template <typename R, typename T>
+    inline std::enable_if_t<not std::is_convertible<T, R>::value, R> get_as(T const&) {
+        assert(false);
+        return R{};
+    }
+
+    //! @brief Assigns a value of type R (assignable case).
+    template <typename R, typename T>
+    inline std::enable_if_t<std::is_assignable<T&, R>::value> set_as(T& x, R const& val) {
+        x = val;
+    }
+
+    //! @brief Assigns a value of type R (non-assignable case).
+    template <typename R, typename T>
+    inline std::enable_if_t<not std::is_assignable<T&, R>::value> set_as(T&, R const&) {
+        assert(false);
+    }
+
+    //! @brief Reads the field of a tagged tuple with a given tag as R.
+    template <typename R, typename U, typename S>
+    R field_getter(U const& t) {
+        return get_as<R>(get<S>(t));
+    }
+
+    //! @brief Assigns a value of type R to the field of a tagged tuple with a given tag.
+    template <typename R, typename U, typename S>
+    void field_setter(U& t, R const& val) {
+        set_as(get<S>(t), val);
+    }
+
+    //! @brief Tables of accessors to the fields of a tagged tuple, in tag order (general form).
+    template <typename R, typename U, typename S>
+    struct field_table;
+
+    //! @brief Tables of accessors to the fields of a tagged tuple, in tag order.
+    template <typename R, typename U, typename... S>
+    struct field_table<R, U, type_sequence<S...>> {
+        static R get(U const& t, int i) {
+            // Trailing null pointer, so that the table is never empty.
+            static R (*const table[])(U const&) = {&field_getter<R,U,S>..., nullptr};
+            if (i < 0 or i >= int(sizeof...(S))) {
+                assert(false);
+                return R{};
+            }
+            return table[i](t);
+        }
+
+        static void set(U& t, int i, R const& val) {
+            static void (*const table[])(U&, R const&) = {&field_setter<R,U,S>..., nullptr};
+            if (i < 0 or i >= int(sizeof...(S))) {
+                assert(false);
+                return;
+            }
+            table[i](t, val);
+        }
+    };
+}
+//! @endcond
+
+//! @brief The position of the tag of a tagged tuple type with a given string name (-1 if there is none).
+template <typename U>
+inline int tag_index(std::string const& name) {
+    return details::tag_index(name, typename std::decay_t<U>::tags{}, 0);
+}
+
+//! @brief Accesses a field of a tagged tuple by the position of its tag (see `tag_index`), in constant time.
+template <typename R, typename U>
+inline R getter(int index, U const& t) {
+    return details::field_table<R, U, typename U::tags>::get(t, index);
+}
+
+//! @brief Updates a field of a tagged tuple by the position of its tag (see `tag_index`), in constant time.
+template <typename R, typename U>
+inline void setter(int index, U& t, R const& val) {
+    details::field_table<R, U, typename U::tags>::set(t, index, val);
+}
+
+
 //! @cond INTERNAL
 namespace details {
     // General form.
@@ -8,6 +8,7 @@
 #ifndef FCPP_COORDINATION_MAIN_H_
 #define FCPP_COORDINATION_MAIN_H_
 
+#include "lib/common/snapshot.hpp"
 #include "lib/component/base.hpp"
 #include "lib/component/logger.hpp"
 #include "lib/coordination/friend_finding.hpp"
@@ -43,6 +44,9 @@ struct main {
         using namespace tags;
         experiment(CALL, tag{}, common::bool_pack<simulation>{});
         tracker(CALL);
+        // In deployment, the storage is read by the UI from a copy published after every round.
+        if (not simulation)
+            common::published<std::decay_t<decltype(node.storage_tuple())>>().publish(node.storage_tuple());
     }
 };
 //! @brief Export list for the main aggregate function.
@@ -8,24 +8,30 @@
 #ifndef FCPP_ANDROID_DRIVER_H_
 #define FCPP_ANDROID_DRIVER_H_
 
+#include <algorithm>
+#include <atomic>
 #include <cassert>
+#include <chrono>
 #include <cstdio>
 #include <exception>
 #include <random>
+#include <ctime>
+#include <unordered_map>
 #include <vector>
-#include <jni.h>
 #include <android/log.h>
 
 #include "lib/settings.hpp"
 #include "lib/component/base.hpp"
 #include "lib/deployment/os.hpp"
+#include "lib/common/export_capture.hpp"
+#include "lib/common/flight_recorder.hpp"
+#include "lib/common/fragments.hpp"
+#include "lib/common/mailbox.hpp"
+#include "lib/common/packet_codec.hpp"
+#include "lib/common/packet_ring.hpp"
 
-JavaVM* jvm;
-jclass clazz;
-jmethodID messageMe;
-jmethodID postMsg;
-
-constexpr bool enable_debugging = true;
+//! @brief Whether to log every packet in hexadecimal, too costly to be left on in the field.
+constexpr bool enable_debugging = false;
 
 #define LOGI(...) \
   ((void)__android_log_print(ANDROID_LOG_INFO, "fcpp", __VA_ARGS__))
@@ -33,30 +39,44 @@ constexpr bool enable_debugging = true;
   ((void)__android_log_print(ANDROID_LOG_DEBUG, "fcpp", __VA_ARGS__))
 #define LOGD(...)
 
+//! @brief Slot size of the packet rings: fits the maximum BLE extended advertising data (1650 bytes).
+constexpr size_t ring_slot_size = 1664;
 
-std::vector<char> pollData() {
-    LOGD("Polling...(C)");
-    std::vector<char> empty;
-    JNIEnv *env;
-    int attachResult = jvm->AttachCurrentThread(&env, NULL);
-    assert (attachResult == JNI_OK);
-    /* https://stackoverflow.com/a/8439341/60462: */
-    jobject ptr = env->CallStaticObjectMethod(clazz, messageMe);
-    jbyteArray *data = reinterpret_cast<jbyteArray *>(&ptr);
-    if (*data == NULL) {
-        LOGD("data==NULL");
-        return empty; // XXX?
-    }
-    jsize length = env->GetArrayLength(*data);
-    LOGD("%s", ("data len="+ std::to_string(length)).c_str());
-    if (length == 0) {
-        return empty;
-    }
-    std::vector<char> buff(length, 0);
-    env->GetByteArrayRegion(*data,0,length, reinterpret_cast<jbyte*>(buff.data()));
-    /* We don't need to release anything. */
-    return buff;
-}
+/* The round thread never calls into Java, so it is never attached to the JVM: all traffic
+   with the BLE layer goes through the buffers below, and all JNI calls originate from Java.
+   Buffers shared with the Java side through direct ByteBuffers (see AP.java):
+   `rxRing` is filled by the BLE scanner, `txBox` is read by the advertiser.
+   Received packets are prefixed by their reception time and format (see `rx_stamp_size`). */
+//! @brief Packets received from neighbours.
+fcpp::common::packet_ring rxRing(64, ring_slot_size);
+//! @brief Latest packet to be advertised, as a sequence of frames (`uint16_t` length and advertisement data) to be rotated.
+fcpp::common::mailbox txBox(ring_slot_size);
+//! @brief Largest advertisement data allowed by the controller (set from Java), larger packets are fragmented.
+std::atomic<size_t> txMaxPayload{ring_slot_size};
+//! @brief Size of the reception time (`int64_t` nanoseconds on `CLOCK_BOOTTIME`) prefixing received packets.
+constexpr size_t rx_stamp_size = sizeof(int64_t);
+//! @brief Size of the format byte following the reception time: non-zero for bare exports (see `common::packet_codec::legacy`).
+constexpr size_t rx_format_size = 1;
+//! @brief Flag on the length of outgoing frames holding a bare export, to be advertised under the legacy service data UUID.
+constexpr uint16_t tx_legacy_frame = 0x8000;
+//! @brief Age in seconds after which received packets are discarded unread (follows `retain_time`).
+std::atomic<double> rxRetainTime{5};
+//! @brief Count of received packets superseded by a newer one from the same sender within a batch.
+std::atomic<long long> rxCoalesced{0};
+//! @brief Count of received packets discarded for being older than `rxRetainTime`.
+std::atomic<long long> rxStale{0};
+//! @brief Count of received packets discarded for not being decodable (unknown codec or lost keyframe).
+std::atomic<long long> rxUndecodable{0};
+//! @brief Count of received messages whose fragments did not all arrive in time.
+std::atomic<long long> rxIncomplete{0};
+//! @brief Count of outgoing packets split into fragments.
+std::atomic<long long> txFragmented{0};
+//! @brief Count of outgoing packets dropped for not fitting in a slot.
+std::atomic<long long> txDropped{0};
+//! @brief The latest packet events, both native and Java (disabled until enabled from Java).
+fcpp::common::flight_recorder flightRecorder(4096);
+//! @brief The outgoing exports before encoding, for `codec_bench.cpp` (not written until opened from Java).
+fcpp::common::export_capture txCapture;
 
 /**
  * @brief Namespace containing all the objects in the FCPP library.
@@ -90,9 +110,11 @@ struct transceiver {
         long long receive_time;
         //! @brief Number of attempts after which a send is aborted.
         uint8_t send_attempts;
+        //! @brief Highest packet codec to be used (see `common::packet_codec`).
+        uint8_t codec;
 
         //! @brief Member constructor with defaults.
-        data_type(int freq = 2450, int pow = 5, long long recv = 50000000LL, uint8_t sndatt = 5) : frequency(freq), power(pow), receive_time(recv), send_attempts(sndatt) {}
+        data_type(int freq = 2450, int pow = 5, long long recv = 50000000LL, uint8_t sndatt = 5, uint8_t cod = common::packet_codec::version) : frequency(freq), power(pow), receive_time(recv), send_attempts(sndatt), codec(cod) {}
     };
 
     //! @brief Network settings.
@@ -105,32 +127,69 @@ struct transceiver {
 
     //! @brief Broadcasts a given message.
     bool send(device_t id, const std::vector<char>& m, int attempt) const {
-        // combine data into a packet
-        unsigned int size = panHeaderSize + m.size() + sizeof(device_t);
         // try to send it
         try {
             LOGD("Sending...");
-            JNIEnv *env;
-            int attachResult = jvm->AttachCurrentThread(&env, NULL);
-            assert (attachResult == JNI_OK);
-            jbyteArray retArray = env->NewByteArray(size);
-            void *temp = env->GetPrimitiveArrayCritical((jarray) retArray, 0);
-            char *ptr = (char *) temp;
-            memcpy(ptr, panHeader, panHeaderSize);
-            ptr += panHeaderSize;
-            memcpy(ptr, m.data(), m.size());
-            ptr += m.size();
-            memcpy(ptr, &id, sizeof(device_t));
-            env->ReleasePrimitiveArrayCritical(retArray, temp, 0);
-            env->CallStaticVoidMethod(clazz, postMsg, retArray, size);
-            if (enable_debugging) {
-                char strbuf[2 * size + 1];
-                btox(strbuf, (char *) temp, 2 * size);
-                LOGD("Sent %d byte packet: %s\n", (int) size, strbuf);
-            } else {
-                LOGD("Sent %d byte packet\n", (int) size);
+            txCapture.write(m.data(), m.size());
+            m_encoded.clear();
+            int codec = m_negotiator.codec(data.codec, m_fcpp_timer.real_time() - rxRetainTime.load(std::memory_order_relaxed));
+            bool legacy = codec == common::packet_codec::legacy;
+            m_encoder.encode(m.data(), m.size(), codec, m_encoded);
+            size_t payload = txMaxPayload.load(std::memory_order_relaxed);
+            size_t max_fragment = payload > panHeaderSize + sizeof(device_t) ? payload - panHeaderSize - sizeof(device_t) : 0;
+            size_t n = 1;
+            // Devices predating the codec know nothing about fragments either.
+            if (m_encoded.size() > max_fragment and not legacy) {
+                // Too large for one advertisement: the advertiser rotates through the fragments.
+                n = common::fragments::count(m_encoded.size(), max_fragment);
+                if (m_encoded != m_prev_encoded) {
+                    ++m_fragment_seq;
+                    m_prev_encoded = m_encoded;
+                }
+            }
+            size_t total = 0;
+            for (size_t i = 0; i < n; ++i) {
+                char const* data = m_encoded.data();
+                size_t data_size = m_encoded.size();
+                if (n > 1 and n <= common::fragments::max_count) {
+                    m_fragment.clear();
+                    common::fragments::fragment(m_fragment, m_encoded.data(), m_encoded.size(), m_fragment_seq, i, n, max_fragment);
+                    data = m_fragment.data();
+                    data_size = m_fragment.size();
+                }
+                // combine data into a packet
+                unsigned int size = panHeaderSize + data_size + sizeof(device_t);
+                if (n > common::fragments::max_count or total + sizeof(uint16_t) + size > txBox.max_packet()) {
+                    ++txDropped;
+                    if (flightRecorder.enabled())
+                        flightRecorder.record(boot_time(), common::flight_recorder::tx_dropped, id, panHeaderSize + m_encoded.size() + sizeof(device_t), n);
+                    LOGI("Dropped %d byte packet\n", (int) (panHeaderSize + m_encoded.size() + sizeof(device_t)));
+                    return true;
+                }
+                char *ptr = common::mailbox::packet(txBox.slot(txBox.back())) + total;
+                uint16_t len = size | (legacy ? tx_legacy_frame : 0);
+                memcpy(ptr, &len, sizeof(uint16_t));
+                ptr += sizeof(uint16_t);
+                char const *start = ptr;
+                memcpy(ptr, panHeader, panHeaderSize);
+                ptr += panHeaderSize;
+                memcpy(ptr, data, data_size);
+                ptr += data_size;
+                memcpy(ptr, &id, sizeof(device_t));
+                if (enable_debugging) {
+                    char strbuf[2 * size + 1];
+                    btox(strbuf, start, 2 * size);
+                    LOGD("Sent %d byte packet: %s\n", (int) size, strbuf);
+                } else {
+                    LOGD("Sent %d byte packet\n", (int) size);
+                }
+                total += sizeof(uint16_t) + size;
             }
-            // Let's hope the Java side deallocates the string eventually.
+            if (n > 1) ++txFragmented;
+            if (flightRecorder.enabled())
+                flightRecorder.record(boot_time(), common::flight_recorder::tx_published, id, total, n);
+            // Replaces the previous packet if the advertiser has not picked it up yet.
+            txBox.publish(total);
             return true;
         } catch (std::exception& e) {
             LOGI("Send failed: %s\n", e.what());
@@ -153,31 +212,12 @@ struct transceiver {
         }
         message_type m;
         try {
-
-            std::vector<char> vs_packet = pollData();
-            if (vs_packet.size() == 0) {
-                return m;
+            if (m_batch_pos >= m_batch.size()) {
+                // Batch exhausted, fetch all packets waiting for this round.
+                fill_batch(std::chrono::nanoseconds(interval));
             }
-            size_t size = vs_packet.size();
-            char packet[size];
-            memcpy(packet, vs_packet.data(),size);
-            if (size >= static_cast<int>(panHeaderSize + sizeof(device_t)) and memcmp(packet, panHeader, panHeaderSize) == 0) {
-                m.time = m_fcpp_timer.real_time();
-                m.device = *reinterpret_cast<device_t*>(packet + size - sizeof(device_t));
-                m.content.resize(size - panHeaderSize - sizeof(device_t));
-                // Skips the panHeader of course:
-                memcpy(m.content.data(), packet + panHeaderSize, size - panHeaderSize - sizeof(device_t));
-                if (enable_debugging) {
-                    char strbuf[2*size+1];
-                    btox(strbuf, vs_packet.data(), 2*size);
-                    LOGD("Raw packet recvd: %s\n", strbuf);
-                    btox(strbuf, m.content.data(), 2*(size - panHeaderSize - sizeof(device_t)));
-                    LOGD("Received %d byte packet from device %d at time %f: %s\n", (int)size, m.device, m.time, strbuf);
-                } else {
-                    LOGD("Received %d byte packet from device %d at time %f\n", (int)size, m.device, m.time);
-                }
-            } else {
-                LOGI("Receive error, size: %ld\n", size);
+            if (m_batch_pos < m_batch.size()) {
+                m = std::move(m_batch[m_batch_pos++]);
             }
         } catch(std::exception& e) {
             LOGI("Receive exception: %s\n", e.what());
@@ -186,10 +226,129 @@ struct transceiver {
     }
 
   private:
+    //! @brief Drains the receive ring into the batch, keeping only the newest packet per sender.
+    void fill_batch(std::chrono::nanoseconds timeout) const {
+        m_batch.clear();
+        m_batch_index.clear();
+        m_batch_pos = 0;
+        rxIncomplete += m_reassembler.expire(m_fcpp_timer.real_time() - rxRetainTime.load(std::memory_order_relaxed));
+        int slot = rxRing.wait_front(timeout);
+        for (; slot >= 0; slot = rxRing.front()) {
+            message_type m;
+            if (parse(rxRing.slot(slot), boot_time(), m)) {
+                auto it = m_batch_index.find(m.device);
+                if (it == m_batch_index.end()) {
+                    m_batch_index.emplace(m.device, m_batch.size());
+                    m_batch.push_back(std::move(m));
+                } else {
+                    m_batch[it->second] = std::move(m);
+                    ++rxCoalesced;
+                }
+            }
+            rxRing.pop();
+        }
+    }
+
+    //! @brief The current time in nanoseconds on the clock of `ScanResult.getTimestampNanos()`.
+    static int64_t boot_time() {
+        timespec ts;
+        clock_gettime(CLOCK_BOOTTIME, &ts);
+        return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+    }
+
+    //! @brief Parses a packet from a ring slot into a message, returning whether it is valid and fresh.
+    bool parse(char* slot, int64_t now, message_type& m) const {
+        size_t size = common::packet_ring::length(slot);
+        char const* packet = common::packet_ring::packet(slot);
+        if (size < rx_stamp_size + rx_format_size) {
+            LOGI("Receive error, size: %ld\n", size);
+            return false;
+        }
+        int64_t stamp;
+        memcpy(&stamp, packet, rx_stamp_size);
+        bool legacy = packet[rx_stamp_size] != 0;
+        packet += rx_stamp_size + rx_format_size;
+        size -= rx_stamp_size + rx_format_size;
+        times_t age = (now - stamp) * 1e-9;
+        if (age > rxRetainTime.load(std::memory_order_relaxed)) {
+            // The node would discard it anyway (see `message_threshold`), don't bother copying.
+            ++rxStale;
+            flightRecorder.record(now, common::flight_recorder::rx_stale, 0, size, rxRing.count(), stamp);
+            LOGD("Discarded %d byte packet received %f seconds ago\n", (int)size, age);
+            return false;
+        }
+        if (size >= static_cast<int>(panHeaderSize + sizeof(device_t)) and memcmp(packet, panHeader, panHeaderSize) == 0) {
+            m.time = m_fcpp_timer.real_time() - std::max(age, times_t(0));
+            memcpy(&m.device, packet + size - sizeof(device_t), sizeof(device_t));
+            // Skips the panHeader of course:
+            char const* encoded = packet + panHeaderSize;
+            size_t encoded_size = size - panHeaderSize - sizeof(device_t);
+            if (legacy) {
+                // From a device predating the codec: a bare export.
+                m_decoder.decode_legacy(m.device, encoded, encoded_size, m.content);
+                m_negotiator.heard(m.device, common::packet_codec::legacy, m.time);
+            } else {
+                if (common::fragments::is_fragment(encoded, encoded_size)) {
+                    if (not m_reassembler.add(m.device, encoded, encoded_size, m.time, m_reassembled)) {
+                        flightRecorder.record(now, common::flight_recorder::rx_fragment, m.device, size, rxRing.count(), stamp);
+                        LOGD("Received fragment from device %d\n", m.device);
+                        return false;
+                    }
+                    encoded = m_reassembled.data();
+                    encoded_size = m_reassembled.size();
+                }
+                if (not m_decoder.decode(m.device, encoded, encoded_size, m.content)) {
+                    ++rxUndecodable;
+                    flightRecorder.record(now, common::flight_recorder::rx_undecodable, m.device, size, rxRing.count(), stamp);
+                    LOGI("Undecodable %d byte packet from device %d\n", (int)size, m.device);
+                    return false;
+                }
+                m_negotiator.heard(m.device, common::packet_codec::supported(encoded[0]), m.time);
+            }
+            flightRecorder.record(now, common::flight_recorder::rx_delivered, m.device, size, rxRing.count(), stamp);
+            if (enable_debugging) {
+                char strbuf[2*size+1];
+                btox(strbuf, packet, 2*size);
+                LOGD("Raw packet recvd: %s\n", strbuf);
+                btox(strbuf, m.content.data(), 2*std::min(size, m.content.size()));
+                LOGD("Received %d byte packet from device %d at time %f: %s\n", (int)size, m.device, m.time, strbuf);
+            } else {
+                LOGD("Received %d byte packet from device %d at time %f\n", (int)size, m.device, m.time);
+            }
+            return true;
+        }
+        LOGI("Receive error, size: %ld\n", size);
+        return false;
+    }
+
     //! @brief An empty net object for accessing real time.
     component::combine<>::component<>::net m_fcpp_timer;
     //! @brief A random engine.
     mutable std::default_random_engine m_rng;
+    //! @brief Messages received in the current batch.
+    mutable std::vector<message_type> m_batch;
+    //! @brief Position of each sender within the current batch.
+    mutable std::unordered_map<device_t, size_t> m_batch_index;
+    //! @brief Read position within the current batch.
+    mutable size_t m_batch_pos = 0;
+    //! @brief Encoder of outgoing messages.
+    mutable common::packet_codec::encoder m_encoder;
+    //! @brief Buffer for the encoded outgoing message.
+    mutable std::vector<char> m_encoded;
+    //! @brief Decoder of incoming messages.
+    mutable common::packet_codec::decoder m_decoder;
+    //! @brief Last outgoing message that needed fragmenting.
+    mutable std::vector<char> m_prev_encoded;
+    //! @brief Buffer for an outgoing fragment.
+    mutable std::vector<char> m_fragment;
+    //! @brief Sequence number of the fragmented outgoing messages.
+    mutable uint8_t m_fragment_seq = 0;
+    //! @brief Reassembler of incoming fragments.
+    mutable common::fragments::reassembler<times_t> m_reassembler;
+    //! @brief Buffer for an incoming reassembled message.
+    mutable std::vector<char> m_reassembled;
+    //! @brief Codecs understood by the neighbours heard within the retain time.
+    mutable common::packet_codec::negotiator<times_t> m_negotiator;
     //! @brief The size of the message header.
     static constexpr unsigned int panHeaderSize = 0; // TODO: Remove completely
     //! @brief The message header.
@@ -0,0 +1,74 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file codec_bench.cpp
+ * @brief Compares payload size and encoding/decoding time of the packet codecs on recorded exports.
+ *
+ * Each input file holds the successive exports of one device, as written by `export_capture`.
+ * To record them, long-press the device identifier in a running experiment (e.g. the traitor
+ * detection or friend finding one) to start recording, and again to save: besides the flight
+ * recorder dump, each long-press closes a file of exports in the app's external files directory.
+ *
+ *     adb pull /sdcard/Android/data/org.foldr.fcpp.androidDemo/files/ .
+ *     codec_bench files/exports-*.bin
+ */
+
+#include <chrono>
+#include <cstdio>
+#include <iostream>
+#include <vector>
+
+#include "lib/common/export_capture.hpp"
+#include "lib/common/packet_codec.hpp"
+
+using namespace fcpp::common;
+
+//! @brief Encodes and decodes all exports with codecs up to a given one, printing statistics.
+void bench(std::vector<std::vector<char>> const& exports, uint8_t codec, char const* name) {
+    constexpr int repetitions = 20;
+    std::vector<std::vector<char>> packets(exports.size());
+    auto t0 = std::chrono::steady_clock::now();
+    for (int r = 0; r < repetitions; ++r) {
+        packet_codec::encoder enc;
+        for (size_t i = 0; i < exports.size(); ++i) {
+            packets[i].clear();
+            enc.encode(exports[i].data(), exports[i].size(), codec, packets[i]);
+        }
+    }
+    auto t1 = std::chrono::steady_clock::now();
+    std::vector<char> out;
+    size_t errors = 0;
+    for (int r = 0; r < repetitions; ++r) {
+        packet_codec::decoder dec;
+        for (size_t i = 0; i < exports.size(); ++i)
+            if (not dec.decode(0, packets[i].data(), packets[i].size(), out) or out != exports[i]) ++errors;
+    }
+    auto t2 = std::chrono::steady_clock::now();
+    size_t bytes = 0;
+    for (auto const& p : packets) bytes += p.size();
+    double n = exports.size() * double(repetitions);
+    printf("%-10s %10.1f %12.3f %12.3f %8zu\n", name, bytes / double(exports.size()),
+           std::chrono::duration<double, std::micro>(t1 - t0).count() / n,
+           std::chrono::duration<double, std::micro>(t2 - t1).count() / n, errors / repetitions);
+}
+
+int main(int argc, char** argv) {
+    if (argc < 2) {
+        std::cerr << "usage: " << argv[0] << " exports.bin..." << std::endl;
+        return 1;
+    }
+    for (int i = 1; i < argc; ++i) {
+        std::vector<std::vector<char>> exports;
+        if (not export_capture::read(argv[i], exports))
+            std::cerr << argv[i] << ": truncated or not an export capture" << std::endl;
+        size_t bytes = 0;
+        for (auto const& e : exports) bytes += e.size();
+        printf("%s: %zu exports, %.1f bytes on average\n", argv[i], exports.size(), exports.empty() ? 0 : bytes / double(exports.size()));
+        if (exports.empty()) continue;
+        printf("%-10s %10s %12s %12s %8s\n", "codec", "bytes", "encode (us)", "decode (us)", "errors");
+        bench(exports, packet_codec::raw, "raw");
+        bench(exports, packet_codec::zero_runs, "zero_runs");
+        bench(exports, packet_codec::delta, "delta");
+    }
+    return 0;
+}
@@ -10,11 +10,17 @@
 #define FCPP_TRACE 32
 
 #include <android/log.h>
+#include <sys/eventfd.h>
+#include <unistd.h>
+#include <algorithm>
 #include <cstring>
 
 #include "main.hpp"
 #include "lib/fcpp.hpp"
 #include "lib/configuration.hpp"
+#include "lib/common/change_notifier.hpp"
+#include "lib/common/snapshot.hpp"
+#include "lib/common/storage_writer.hpp"
 #include "lib/common/template_remover.hpp"
 
 #include "lib/driver.hpp"
@@ -55,12 +61,97 @@ struct exp_t<common::type_sequence<Es...>> : common::tagged_tuple<common::type_s
 //! @brief Tuple of network pointers for all experiments.
 exp_t<experiments> network;
 
+//! @brief Type of the storage of the nodes of a network type.
+template <typename N>
+using storage_t = std::decay_t<decltype(std::declval<N&>().node_at(0).storage_tuple())>;
+
 //! @brief Which experiment is currently running.
 std::string running_experiment = "";
 
 //! @brief The thread running the experiment.
 std::thread t;
 
+//! @brief The network object of the running experiment, as a pointer of the appropriate `net_t` type.
+void* running_network = nullptr;
+
+//! @brief Typed accessors to the storage of the running experiment by handle, set by `start`.
+template <typename R>
+struct handle_accessors {
+    //! @brief Reads a field.
+    static R (*get)(int);
+    //! @brief Updates a field.
+    static void (*set)(int, R);
+};
+
+//! @cond INTERNAL
+namespace details {
+    //! @brief Reads a field while no experiment is running, as a default value.
+    template <typename R>
+    R idle_getter(int) {
+        return R{};
+    }
+    //! @brief Updates a field while no experiment is running, doing nothing.
+    template <typename R>
+    void idle_setter(int, R) {}
+    //! @brief Reads many fields while no experiment is running, as zeros.
+    inline void idle_snapshot(int const*, int count, double* out) {
+        std::fill(out, out + count, 0.0);
+    }
+}
+//! @endcond
+
+template <typename R>
+R (*handle_accessors<R>::get)(int) = &details::idle_getter<R>;
+template <typename R>
+void (*handle_accessors<R>::set)(int, R) = &details::idle_setter<R>;
+
+//! @brief Reads many fields of the storage of the running experiment by handle, set by `start`.
+void (*snapshot_reader)(int const*, int, double*) = &details::idle_snapshot;
+
+//! @brief Resets the accessors by handle to those used while no experiment is running.
+void reset_handle_accessors() {
+    handle_accessors<double>::get = &details::idle_getter<double>;
+    handle_accessors<double>::set = &details::idle_setter<double>;
+    handle_accessors<int>::get = &details::idle_getter<int>;
+    handle_accessors<int>::set = &details::idle_setter<int>;
+    handle_accessors<bool>::get = &details::idle_getter<bool>;
+    handle_accessors<bool>::set = &details::idle_setter<bool>;
+    snapshot_reader = &details::idle_snapshot;
+}
+
+//! @brief Subscriptions to fields of the storage, checked for changes at the end of every round.
+common::change_notifier subscriptions;
+
+//! @brief Event file descriptor signalled after every round changing subscribed fields.
+int change_event = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+
+//! @brief Signals changes to subscribed fields, called once the storage is published.
+void notify_changes() {
+    if (subscriptions.update(snapshot_reader)) {
+        uint64_t one = 1;
+        write(change_event, &one, sizeof(one));
+    }
+}
+
+//! @brief Event file descriptor signalled at the end of every round, for per-round work in Java.
+int round_event = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+
+//! @brief Whether the current thread is the one running the rounds.
+thread_local bool round_thread = false;
+
+//! @brief Called by the publishing thread after every publication of the storage.
+void storage_published() {
+    notify_changes();
+    // Updates from outside the round are published as well, but do not end a round.
+    if (round_thread) {
+        uint64_t one = 1;
+        write(round_event, &one, sizeof(one));
+    }
+}
+
+//! @brief Handle of the retain time, which is also needed by the driver.
+int retain_time_handle = -1;
+
 //! @cond INTERNAL
 namespace details {
     //! @brief Does not convert since the target is the same as the type.
@@ -90,33 +181,114 @@ namespace details {
 }
 //! @endcond
 
+/**
+ * @brief Applies a function to the storage of a network as published at the end of the last round.
+ *
+ * Reading the copy never blocks the round thread, and never sees a round half-way. Before the
+ * first round ends, the live storage is read instead. Updates from outside the round are
+ * published as well (see `publish_update`), so they read back at once.
+ */
+template <typename N, typename F>
+inline auto with_storage(N* n, F&& f) {
+    std::shared_ptr<storage_t<N> const> p = common::published<storage_t<N>>().get();
+    if (p) return f(*p);
+    return f(static_cast<storage_t<N> const&>(n->node_at(os::uid()).storage_tuple()));
+}
+
 //! @brief Accesses a field of the storage by the string name of a tag.
 template <typename R>
 inline R storage_getter(std::string const& name) {
     return common::applier(running_experiment, network, [&name](auto* n){
-        return common::applier<details::convertible_or_string<R>::template predicate>(name, n->node_at(os::uid()).storage_tuple(), [](auto const& x){
-            return details::maybe_convert(x, common::type_sequence<R>{});
+        return with_storage(n, [&name](auto const& s){
+            return common::applier<details::convertible_or_string<R>::template predicate>(name, s, [](auto const& x){
+                return details::maybe_convert(x, common::type_sequence<R>{});
+            });
         });
     });
 }
 
+//! @brief Reads a field of the storage of a network by handle.
+template <typename N, typename R>
+R handle_getter(int h) {
+    return with_storage(static_cast<N*>(running_network), [h](auto const& s){
+        return common::getter<R>(h, s);
+    });
+}
+
+//! @brief Publishes the storage of a network after an update from outside the round, with the node locked.
+template <typename N>
+inline void publish_update(N*, storage_t<N> const& s) {
+    common::published<storage_t<N>>().publish(s);
+}
+
+//! @brief Updates a field of the storage of a network by handle.
+template <typename N, typename R>
+void handle_setter(int h, R val) {
+    N* n = static_cast<N*>(running_network);
+    lock_type l;
+    auto& s = n->node_at(os::uid(), l).storage_tuple();
+    common::setter(h, s, val);
+    publish_update(n, s);
+}
+
+//! @brief Reads many fields of the storage of a network by handle, all from the same round.
+template <typename N>
+void handle_snapshot(int const* hs, int count, double* out) {
+    with_storage(static_cast<N*>(running_network), [hs, count, out](auto const& s){
+        for (int i = 0; i < count; ++i) out[i] = common::getter<double>(hs[i], s);
+    });
+}
+
+//! @brief Sets the accessors by handle for a given network type.
+template <typename N, typename R>
+void set_handle_accessors() {
+    handle_accessors<R>::get = &handle_getter<N, R>;
+    handle_accessors<R>::set = &handle_setter<N, R>;
+}
+
 //! @brief Updates a field of the storage by the string name of a tag.
 template <typename R>
 inline void storage_setter(std::string const& name, R&& val) {
     common::applier(running_experiment, network, [&name,&val](auto* n){
         lock_type l;
-        return common::setter(name, n->node_at(os::uid(), l).storage_tuple(), std::forward<R>(val));
+        auto& s = n->node_at(os::uid(), l).storage_tuple();
+        common::setter(name, s, std::forward<R>(val));
+        publish_update(n, s);
     });
 }
 
-//! @brief Gets the whole storage as a string.
-char* get_storage() {
-    std::string s = common::applier(running_experiment, network, [](auto* n){
-        return common::to_json(n->node_at(os::uid()).storage_tuple());
+//! @brief Writer of the storage of the experiment running in network `n`, owned by the calling thread.
+template <typename N>
+inline common::storage_writer<storage_t<N>>& writer_for(N*) {
+    thread_local common::storage_writer<storage_t<N>> w;
+    return w;
+}
+
+//! @brief Gets the whole storage as JSON, valid until the next call on the same thread.
+char const* get_storage() {
+    return common::applier(running_experiment, network, [](auto* n){
+        return with_storage(n, [n](auto const& s){
+            return writer_for(n).json(s).c_str();
+        });
+    });
+}
+
+//! @brief Gets the whole storage in binary (see `get_storage_schema`), valid until the next call on the same thread.
+char const* get_storage_binary(int* size) {
+    return common::applier(running_experiment, network, [size](auto* n){
+        return with_storage(n, [n,size](auto const& s){
+            std::vector<char> const& b = writer_for(n).binary(s);
+            *size = b.size();
+            return b.data();
+        });
+    });
+}
+
+//! @brief Gets the layout of the binary storage, as JSON.
+char const* get_storage_schema() {
+    return common::applier(running_experiment, network, [](auto* n){
+        return common::storage_writer<storage_t<std::decay_t<decltype(*n)>>>::schema().c_str();
     });
-    char* c = new char[s.size()+1];
-    strcpy(c, s.c_str());
-    return c;
 }
 
 //! @brief Accesses a field of the storage as a string by the string name of a tag.
@@ -129,17 +301,17 @@ char* get_string(char const* name) {
 
 //! @brief Accesses a floating-point field of the storage by the string name of a tag.
 double get_double(char const* name) {
-    return storage_getter<double>(name);
+    return get_double_at(resolve(name));
 }
 
 //! @brief Accesses an integer field of the storage by the string name of a tag.
 int get_int(char const* name) {
-    return storage_getter<int>(name);
+    return get_int_at(resolve(name));
 }
 
 //! @brief Accesses an integer field of the storage by the string name of a tag.
 int get_bool(char const* name) {
-    return storage_getter<bool>(name);
+    return get_bool_at(resolve(name));
 }
 
 //! @brief Updates a string field of the storage by the string name of a tag.
@@ -149,40 +321,122 @@ void set_string(char const* name, char const* val) {
 
 //! @brief Updates a floating-point field of the storage by the string name of a tag.
 void set_double(char const* name, double val) {
-    storage_setter(name, val);
+    set_double_at(resolve(name), val);
 }
 
 //! @brief Updates an integer field of the storage by the string name of a tag.
 void set_int(char const* name, int val) {
-    storage_setter(name, val);
+    set_int_at(resolve(name), val);
 }
 
 //! @brief Updates an integer field of the storage by the string name of a tag.
 void set_bool(char const* name, bool val) {
-    storage_setter(name, val);
+    set_bool_at(resolve(name), val);
+}
+
+//! @brief The handle of a field of the storage of the running experiment (-1 if there is none).
+int resolve(char const* name) {
+    return common::applier(running_experiment, network, [name](auto* n){
+        return common::tag_index<decltype(n->node_at(os::uid()).storage_tuple())>(name);
+    });
+}
+
+//! @brief Accesses a floating-point field of the storage by handle.
+double get_double_at(int h) {
+    return handle_accessors<double>::get(h);
+}
+
+//! @brief Accesses an integer field of the storage by handle.
+int get_int_at(int h) {
+    return handle_accessors<int>::get(h);
+}
+
+//! @brief Accesses a boolean field of the storage by handle.
+int get_bool_at(int h) {
+    return handle_accessors<bool>::get(h);
+}
+
+//! @brief Reads many fields of the storage by handle as floating-point values, all from the same round.
+void read_snapshot(int const* hs, int count, double* out) {
+    snapshot_reader(hs, count, out);
+}
+
+//! @brief Subscribes to changes of fields of the storage by handle, returning the subscription identifier.
+int subscribe(int const* hs, int count) {
+    return subscriptions.subscribe(std::vector<int>(hs, hs + count));
+}
+
+//! @brief Drops a subscription to changes of fields of the storage.
+void unsubscribe(int id) {
+    subscriptions.unsubscribe(id);
+}
+
+//! @brief Reads the fields of a subscription, returning the mask of those changed since the previous call.
+long long take_changes(int id, double* out) {
+    return subscriptions.take(id, out);
+}
+
+//! @brief The event file descriptor readable after rounds changing subscribed fields.
+int change_event_fd() {
+    return change_event;
+}
+
+//! @brief Resets the event file descriptor after it became readable.
+void drain_change_event() {
+    uint64_t count;
+    read(change_event, &count, sizeof(count));
+}
+
+//! @brief The event file descriptor readable after rounds.
+int round_event_fd() {
+    return round_event;
+}
+
+//! @brief Resets the round event file descriptor after it became readable.
+void drain_round_event() {
+    uint64_t count;
+    read(round_event, &count, sizeof(count));
+}
+
+//! @brief Updates a floating-point field of the storage by handle.
+void set_double_at(int h, double val) {
+    handle_accessors<double>::set(h, val);
+    if (h == retain_time_handle) rxRetainTime = val;
+}
+
+//! @brief Updates an integer field of the storage by handle.
+void set_int_at(int h, int val) {
+    handle_accessors<int>::set(h, val);
+}
+
+//! @brief Updates a boolean field of the storage by handle.
+void set_bool_at(int h, bool val) {
+    handle_accessors<bool>::set(h, val);
 }
 
 //! @brief Generic initialisation values.
 auto init_v = common::make_tagged_tuple<option::nbr_lags, option::diameter, option::threshold, option::retain_time, option::round_period>(0, DIAMETER, (times_t)RETAIN_TIME, (times_t)RETAIN_TIME, ROUND_PERIOD);
 
 //! @brief Starts FCPP with a given experiment.
-void start(JNIEnv *env, jclass apclazz, int uid, char const* experiment) {
+void start(int uid, char const* experiment) {
     assert(running_experiment == "");
-    env->GetJavaVM(&jvm);
-    /* Cache some frequently used, expensive values: */
-    clazz = apclazz;
-    messageMe = env->GetStaticMethodID(clazz, "getNextMsg", "()[B");
-    assert (messageMe != NULL);
-    postMsg = env->GetStaticMethodID(clazz, "postMsg", "([BI)V");
-    assert (postMsg!=NULL);
-
     // Sets the id.
     os::m_uid = uid;
+    rxRetainTime = common::get<option::retain_time>(init_v);
     // Construct the network object and run the program until exit.
     running_experiment = experiment;
+    retain_time_handle = resolve("retain_time");
     applier(running_experiment, network, [](auto& n){
-        n = new std::remove_pointer_t<std::decay_t<decltype(n)>>(init_v);
+        using N = std::remove_pointer_t<std::decay_t<decltype(n)>>;
+        n = new N(init_v);
+        running_network = n;
+        set_handle_accessors<N, double>();
+        set_handle_accessors<N, int>();
+        set_handle_accessors<N, bool>();
+        snapshot_reader = &handle_snapshot<N>;
+        common::published<storage_t<N>>().on_publish(&storage_published);
         t = std::thread([&n]() {
+            round_thread = true;
             n->run();
         });
     });
@@ -190,13 +444,75 @@ void start(JNIEnv *env, jclass apclazz, int uid, char const* experiment) {
 
 //! @brief Stops FCPP.
 void stop() {
+    reset_handle_accessors();
     applier(running_experiment, network, [](auto& n){
         lock_type l;
         n->node_at(os::uid(), l).terminate();
         t.join();
+        common::published<storage_t<std::remove_pointer_t<std::decay_t<decltype(n)>>>>().on_publish(nullptr);
+        common::published<storage_t<std::remove_pointer_t<std::decay_t<decltype(n)>>>>().clear();
         delete n;
     });
+    subscriptions.clear();
+    running_network = nullptr;
     running_experiment = "";
 }
 
+//! @brief The ring of packets received from neighbours.
+common::packet_ring& rx_ring() {
+    return rxRing;
+}
+
+//! @brief The mailbox of the latest packet to be advertised.
+common::mailbox& tx_box() {
+    return txBox;
+}
+
+//! @brief The recorder of the latest packet events.
+common::flight_recorder& flight_recorder() {
+    return flightRecorder;
+}
+
+//! @brief The capture of outgoing exports.
+common::export_capture& export_capture() {
+    return txCapture;
+}
+
+//! @brief Count of received packets superseded by a newer one from the same sender.
+long long rx_coalesced() {
+    return rxCoalesced;
+}
+
+//! @brief Count of received packets discarded for being too old.
+long long rx_stale() {
+    return rxStale;
+}
+
+//! @brief Count of received packets discarded for not being decodable.
+long long rx_undecodable() {
+    return rxUndecodable;
+}
+
+//! @brief Count of received messages whose fragments did not all arrive in time.
+long long rx_incomplete() {
+    return rxIncomplete;
+}
+
+//! @brief Sets the largest advertisement data allowed by the controller (raised to fit a byte of a fragment).
+void set_max_payload(int size) {
+    int min_size = sizeof(device_t) + common::fragments::header_size + 1;
+    if (size < min_size) LOGI("Advertisement payload of %d bytes too small, using %d\n", size, min_size);
+    txMaxPayload = std::max(size, min_size);
+}
+
+//! @brief Count of outgoing packets split into fragments.
+long long tx_fragmented() {
+    return txFragmented;
+}
+
+//! @brief Count of outgoing packets dropped for not fitting in a slot.
+long long tx_dropped() {
+    return txDropped;
+}
+
 } // namespace fcpp
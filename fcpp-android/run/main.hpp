@@ -1,20 +1,26 @@
 // Copyright © 2022 Giorgio Audrito. All Rights Reserved.
 
-#include <jni.h>
 #include <stdint.h>
 
+#include "lib/common/export_capture.hpp"
+#include "lib/common/flight_recorder.hpp"
+#include "lib/common/mailbox.hpp"
+#include "lib/common/packet_ring.hpp"
+
 /**
  * @brief Namespace containing all the objects in the FCPP library.
  */
 namespace fcpp {
 
 //! @brief Starts FCPP.
-extern void start(JNIEnv *env, jclass apclass, int uid, char const* experiment);
+extern void start(int uid, char const* experiment);
 
 //! @brief Stops FCPP.
 extern void stop();
 
-extern char* get_storage();
+extern char const* get_storage();
+extern char const* get_storage_binary(int*);
+extern char const* get_storage_schema();
 
 extern char* get_string(char const*);
 extern double get_double(char const*);
@@ -26,4 +32,35 @@ extern void set_double(char const*, double);
 extern void set_int(char const*, int);
 extern void set_bool(char const*, bool);
 
+extern int resolve(char const*);
+
+extern double get_double_at(int);
+extern int get_int_at(int);
+extern int get_bool_at(int);
+extern void read_snapshot(int const*, int, double*);
+
+extern int subscribe(int const*, int);
+extern void unsubscribe(int);
+extern long long take_changes(int, double*);
+extern int change_event_fd();
+extern void drain_change_event();
+extern int round_event_fd();
+extern void drain_round_event();
+
+extern void set_double_at(int, double);
+extern void set_int_at(int, int);
+extern void set_bool_at(int, bool);
+
+extern common::packet_ring& rx_ring();
+extern common::mailbox& tx_box();
+extern common::flight_recorder& flight_recorder();
+extern common::export_capture& export_capture();
+extern long long rx_coalesced();
+extern long long rx_stale();
+extern long long rx_undecodable();
+extern long long rx_incomplete();
+extern void set_max_payload(int);
+extern long long tx_fragmented();
+extern long long tx_dropped();
+
 } // namespace fcpp
@@ -0,0 +1,95 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+/**
+ * @file storage_bench.cpp
+ * @brief Compares size and time per round of the storage serialisations, for every experiment.
+ *
+ * The storage has the type of the simulated nodes, with numeric fields set to arbitrary non-zero
+ * values (serialising zeros is cheaper than serialising the values of a running experiment).
+ * Compared are `common::to_json` (used up to now by `get_storage`) and the JSON and binary outputs
+ * of `common::storage_writer`.
+ */
+
+#define FCPP_SYSTEM FCPP_SYSTEM_EMBEDDED
+#define FCPP_EXPORT_NUM 2
+#define FCPP_TRACE 32
+
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <string>
+
+#include "lib/configuration.hpp"
+#include "lib/common/storage_writer.hpp"
+
+using namespace fcpp;
+
+//! @brief Type of the storage of the nodes of an experiment.
+template <typename E>
+using storage_t = std::decay_t<decltype(std::declval<typename component::batch_simulator<option::simulation<E>>::net&>().node_at(0).storage_tuple())>;
+
+//! @brief Sets a field to an arbitrary value (numeric overload).
+template <typename T>
+std::enable_if_t<std::is_arithmetic<T>::value> fill(T& x, int i) {
+    x = T(1234.5678 * (i + 1));
+}
+
+//! @brief Sets a field to an arbitrary value (non-numeric overload).
+template <typename T>
+std::enable_if_t<not std::is_arithmetic<T>::value> fill(T&, int) {}
+
+//! @brief Sets every field to an arbitrary value (empty case).
+template <typename T>
+void fill_all(T&, common::type_sequence<>, int) {}
+
+//! @brief Sets every field to an arbitrary value (recursive case).
+template <typename T, typename S, typename... Ss>
+void fill_all(T& t, common::type_sequence<S, Ss...>, int i) {
+    fill(common::get<S>(t), i);
+    fill_all(t, common::type_sequence<Ss...>{}, i+1);
+}
+
+//! @brief Times a serialisation, printing its size and time per round.
+template <typename F>
+void bench(char const* name, F&& f) {
+    constexpr int rounds = 100000;
+    size_t bytes = f();
+    auto t0 = std::chrono::steady_clock::now();
+    for (int r = 0; r < rounds; ++r) bytes = f();
+    auto t1 = std::chrono::steady_clock::now();
+    printf("%-16s %8zu %12.3f\n", name, bytes, std::chrono::duration<double, std::micro>(t1 - t0).count() / rounds);
+}
+
+//! @brief Benchmarks a sequence of experiments (empty case).
+void bench_experiment(common::type_sequence<>) {}
+
+//! @brief Benchmarks a sequence of experiments (general case).
+template <typename E, typename... Es>
+void bench_experiment(common::type_sequence<E, Es...>) {
+    using T = storage_t<E>;
+    T t;
+    fill_all(t, typename T::tags{}, 0);
+    common::storage_writer<T> w;
+    printf("%s: %zu fields\n", common::details::strip_namespaces(common::type_name<E>()).c_str(), w.keys().size());
+    printf("%-16s %8s %12s\n", "serialisation", "bytes", "round (us)");
+    bench("to_json", [&t](){
+        std::string s = common::to_json(t);
+        char* c = new char[s.size()+1];
+        strcpy(c, s.c_str());
+        size_t n = s.size();
+        delete[] c;
+        return n;
+    });
+    bench("writer json", [&](){
+        return w.json(t).size();
+    });
+    bench("writer binary", [&](){
+        return w.binary(t).size();
+    });
+    bench_experiment(common::type_sequence<Es...>{});
+}
+
+int main() {
+    bench_experiment(experiments{});
+    return 0;
+}
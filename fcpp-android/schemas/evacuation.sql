@@ -22,4 +22,16 @@ position_accuracy float(24)
 );
 
 grant insert on log.evacuation to fcpp_web_client;
-grant update on log.evacuation_id_seq to fcpp_web_client;
\ No newline at end of file
+grant update on log.evacuation_id_seq to fcpp_web_client;
+
+-- Inserts a batch of records as sent by the app: a JSON array of objects, with keys named after
+-- the columns (others are ignored), and "time" when the record was taken. The time is in UTC (ISO
+-- 8601 with a zone): it is read from the JSON as timestamptz, since populating the record as
+-- timestamp would drop the zone, and stored in the local time of the server as now() is.
+CREATE FUNCTION log.insert_evacuation(batch jsonb) RETURNS void AS $$
+INSERT INTO log.evacuation (time, diameter, evacuation_time, evacuation_group, evacuation_done, homogeneous_group, traitor_free, not_alone, round_period, retain_time, nbr_lags, round_count, global_clock, cur_msg, max_msg, uid, position_latitude, position_longitude, position_accuracy)
+SELECT coalesce((e->>'time')::timestamptz, now()), r.diameter, r.evacuation_time, r.evacuation_group, r.evacuation_done, r.homogeneous_group, r.traitor_free, r.not_alone, r.round_period, r.retain_time, r.nbr_lags, r.round_count, r.global_clock, r.cur_msg, r.max_msg, r.uid, r.position_latitude, r.position_longitude, r.position_accuracy
+FROM jsonb_array_elements(batch) AS e, jsonb_populate_record(null::log.evacuation, e) AS r;
+$$ LANGUAGE sql;
+
+grant execute on function log.insert_evacuation(jsonb) to fcpp_web_client;
@@ -27,3 +27,15 @@ position_accuracy float(24)
 
 grant insert on log.friendfinding to fcpp_web_client;
 grant update on log.friendfinding_id_seq to fcpp_web_client;
+
+-- Inserts a batch of records as sent by the app: a JSON array of objects, with keys named after
+-- the columns (others are ignored), and "time" when the record was taken. The time is in UTC (ISO
+-- 8601 with a zone): it is read from the JSON as timestamptz, since populating the record as
+-- timestamp would drop the zone, and stored in the local time of the server as now() is.
+CREATE FUNCTION log.insert_friendfinding(batch jsonb) RETURNS void AS $$
+INSERT INTO log.friendfinding (time, use_lags, degree, friend_requested, distance_score, hop_distance, not_alone, search_count, leader_dist, estimated_diam, flakiness, diameter, round_period, retain_time, nbr_lags, round_count, global_clock, cur_msg, max_msg, uid, position_latitude, position_longitude, position_accuracy)
+SELECT coalesce((e->>'time')::timestamptz, now()), r.use_lags, r.degree, r.friend_requested, r.distance_score, r.hop_distance, r.not_alone, r.search_count, r.leader_dist, r.estimated_diam, r.flakiness, r.diameter, r.round_period, r.retain_time, r.nbr_lags, r.round_count, r.global_clock, r.cur_msg, r.max_msg, r.uid, r.position_latitude, r.position_longitude, r.position_accuracy
+FROM jsonb_array_elements(batch) AS e, jsonb_populate_record(null::log.friendfinding, e) AS r;
+$$ LANGUAGE sql;
+
+grant execute on function log.insert_friendfinding(jsonb) to fcpp_web_client;
@@ -0,0 +1,72 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <cmath>
+
+#include "test/helper.hpp"
+
+#include "lib/common/change_notifier.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+//! @brief Field values by handle.
+double fields[8];
+
+//! @brief Reads fields by handle.
+void reader(int const* hs, int count, double* out) {
+    for (int i = 0; i < count; ++i) out[i] = fields[hs[i]];
+}
+
+TEST(ChangeNotifierTest, FirstRead) {
+    change_notifier c;
+    EXPECT_FALSE(c.update(reader));
+    int id = c.subscribe({3, 5});
+    double out[2];
+    EXPECT_EQ(c.take(id, out), 0u);
+    fields[3] = 1;
+    fields[5] = 2;
+    EXPECT_TRUE(c.update(reader));
+    EXPECT_EQ(c.take(id, out), 3u);
+    EXPECT_EQ(out[0], 1);
+    EXPECT_EQ(out[1], 2);
+    EXPECT_FALSE(c.update(reader));
+    EXPECT_EQ(c.take(id, out), 0u);
+}
+
+TEST(ChangeNotifierTest, Changes) {
+    change_notifier c;
+    int a = c.subscribe({0, 1, 2});
+    int b = c.subscribe({2});
+    c.update(reader);
+    c.take(a, nullptr);
+    c.take(b, nullptr);
+    fields[1] = 7;
+    EXPECT_TRUE(c.update(reader));
+    EXPECT_EQ(c.take(b, nullptr), 0u);
+    fields[2] = 8;
+    EXPECT_TRUE(c.update(reader));
+    // Changes accumulate until taken.
+    double out[3];
+    EXPECT_EQ(c.take(a, out), 6u);
+    EXPECT_EQ(out[1], 7);
+    EXPECT_EQ(out[2], 8);
+    EXPECT_EQ(c.take(b, out), 1u);
+    EXPECT_EQ(out[0], 8);
+    c.unsubscribe(a);
+    fields[0] = 9;
+    EXPECT_FALSE(c.update(reader));
+    EXPECT_EQ(c.take(a, out), 0u);
+    c.clear();
+    fields[2] = 10;
+    EXPECT_FALSE(c.update(reader));
+}
+
+TEST(ChangeNotifierTest, NaN) {
+    change_notifier c;
+    int id = c.subscribe({4});
+    fields[4] = NAN;
+    EXPECT_TRUE(c.update(reader));
+    EXPECT_EQ(c.take(id, nullptr), 1u);
+    EXPECT_FALSE(c.update(reader));
+    EXPECT_EQ(c.take(id, nullptr), 0u);
+}
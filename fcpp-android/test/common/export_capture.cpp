@@ -0,0 +1,48 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <cstdio>
+#include <string>
+#include <vector>
+
+#include "test/helper.hpp"
+
+#include "lib/common/export_capture.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+TEST(ExportCaptureTest, Inactive) {
+    export_capture c;
+    EXPECT_FALSE(c.active());
+    c.write("abc", 3);
+    EXPECT_EQ(c.close(), -1);
+    EXPECT_FALSE(c.open("/nonexistent/export_capture_test.bin"));
+    EXPECT_FALSE(c.active());
+}
+
+TEST(ExportCaptureTest, WriteRead) {
+    export_capture c;
+    char const* path = "export_capture_test.bin";
+    ASSERT_TRUE(c.open(path));
+    EXPECT_TRUE(c.active());
+    c.write("abc", 3);
+    c.write("", 0);
+    c.write(std::string("\0\1\0", 3).data(), 3);
+    EXPECT_EQ(c.close(), 3);
+    EXPECT_FALSE(c.active());
+    c.write("lost", 4);
+    std::vector<std::vector<char>> v;
+    EXPECT_TRUE(export_capture::read(path, v));
+    ASSERT_EQ(v.size(), 3u);
+    EXPECT_EQ(std::string(v[0].begin(), v[0].end()), "abc");
+    EXPECT_EQ(v[1].size(), 0u);
+    EXPECT_EQ(std::string(v[2].begin(), v[2].end()), std::string("\0\1\0", 3));
+    // Reopening starts a new file.
+    ASSERT_TRUE(c.open(path));
+    c.write("x", 1);
+    EXPECT_EQ(c.close(), 1);
+    EXPECT_TRUE(export_capture::read(path, v));
+    EXPECT_EQ(v.size(), 1u);
+    remove(path);
+    EXPECT_FALSE(export_capture::read(path, v));
+}
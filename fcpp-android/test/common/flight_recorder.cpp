@@ -0,0 +1,92 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <cstdio>
+#include <thread>
+#include <vector>
+
+#include "test/helper.hpp"
+
+#include "lib/common/flight_recorder.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+TEST(FlightRecorderTest, Disabled) {
+    flight_recorder r(8);
+    EXPECT_FALSE(r.enabled());
+    r.record(1, flight_recorder::rx_queued, 42, 100, 3, 7);
+    EXPECT_EQ(r.recorded(), 0u);
+    EXPECT_EQ(r.events().size(), 0u);
+}
+
+TEST(FlightRecorderTest, Record) {
+    flight_recorder r(8);
+    r.enable(true);
+    r.record(10, flight_recorder::rx_delivered, 42, 100, 3, 7);
+    r.record(20, flight_recorder::tx_published, 5, 70000, 300);
+    std::vector<flight_recorder::event> v = r.events();
+    ASSERT_EQ(v.size(), 2u);
+    EXPECT_EQ(v[0].time, 10);
+    EXPECT_EQ(v[0].stamp, 7);
+    EXPECT_EQ(v[0].uid, 42);
+    EXPECT_EQ(v[0].size, 100);
+    EXPECT_EQ(v[0].kind, flight_recorder::rx_delivered);
+    EXPECT_EQ(v[0].depth, 3);
+    EXPECT_EQ(v[1].stamp, 0);
+    // Sizes and depths saturate.
+    EXPECT_EQ(v[1].size, 65535);
+    EXPECT_EQ(v[1].depth, 255);
+}
+
+TEST(FlightRecorderTest, Wrap) {
+    flight_recorder r(4);
+    r.enable(true);
+    for (int i = 0; i < 10; ++i) r.record(i, flight_recorder::rx_queued, i, i, 0);
+    std::vector<flight_recorder::event> v = r.events();
+    ASSERT_EQ(v.size(), 4u);
+    for (int i = 0; i < 4; ++i) EXPECT_EQ(v[i].time, 6 + i);
+    EXPECT_EQ(r.recorded(), 10u);
+}
+
+TEST(FlightRecorderTest, Dump) {
+    flight_recorder r(4);
+    r.enable(true);
+    r.record(1, flight_recorder::tx_taken, 3, 50, 2);
+    char const* path = "flight_recorder_test.bin";
+    EXPECT_EQ(r.dump(path), 1);
+    FILE* f = fopen(path, "rb");
+    ASSERT_TRUE(f != nullptr);
+    char magic[8];
+    uint32_t header[2];
+    flight_recorder::event e;
+    EXPECT_EQ(fread(magic, 8, 1, f), 1u);
+    EXPECT_EQ(fread(header, sizeof(header), 1, f), 1u);
+    EXPECT_EQ(fread(&e, sizeof(e), 1, f), 1u);
+    fclose(f);
+    remove(path);
+    EXPECT_EQ(std::string(magic, 8), "FCPPFR01");
+    EXPECT_EQ(header[0], 24u);
+    EXPECT_EQ(header[1], 1u);
+    EXPECT_EQ(e.uid, 3);
+    EXPECT_EQ(e.kind, flight_recorder::tx_taken);
+    EXPECT_EQ(r.dump("/nonexistent/flight_recorder_test.bin"), -1);
+}
+
+TEST(FlightRecorderTest, Concurrent) {
+    // Events read while being written are either whole or skipped.
+    flight_recorder r(64);
+    r.enable(true);
+    std::vector<std::thread> writers;
+    for (int t = 0; t < 3; ++t)
+        writers.emplace_back([&r,t](){
+            for (int i = 0; i < 20000; ++i) r.record(i, t, i, i, t, i);
+        });
+    int torn = 0;
+    for (int k = 0; k < 200; ++k)
+        for (auto const& e : r.events())
+            if (e.time != e.uid or e.stamp != e.uid or e.kind != e.depth or e.size != uint16_t(e.uid)) ++torn;
+    for (auto& w : writers) w.join();
+    EXPECT_EQ(torn, 0);
+    EXPECT_EQ(r.recorded(), 60000u);
+    EXPECT_EQ(r.events().size(), 64u);
+}
@@ -0,0 +1,76 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include "test/helper.hpp"
+
+#include "lib/common/fragments.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+std::vector<std::vector<char>> split(std::string const& s, uint8_t seq, size_t max_fragment) {
+    size_t n = fragments::count(s.size(), max_fragment);
+    std::vector<std::vector<char>> v(n);
+    for (size_t i = 0; i < n; ++i) fragments::fragment(v[i], s.data(), s.size(), seq, i, n, max_fragment);
+    return v;
+}
+
+bool add(fragments::reassembler<double>& r, uint64_t sender, std::vector<char> const& f, double t, std::vector<char>& out) {
+    EXPECT_TRUE(fragments::is_fragment(f.data(), f.size()));
+    return r.add(sender, f.data(), f.size(), t, out);
+}
+
+TEST(FragmentsTest, Split) {
+    EXPECT_EQ(fragments::count(10, 8), 2u);
+    EXPECT_EQ(fragments::count(10, 13), 1u);
+    EXPECT_EQ(fragments::count(10, 3), fragments::max_count + 1);
+    std::vector<std::vector<char>> v = split("abcdefghij", 7, 7);
+    ASSERT_EQ(v.size(), 3u);
+    EXPECT_EQ(v[0].size(), 7u);
+    EXPECT_EQ(v[2].size(), 5u);
+    EXPECT_EQ(packet_codec::used(v[1][0]), fragments::marker);
+    EXPECT_EQ(v[1][1], 7);
+    EXPECT_EQ(v[1][2], char(0x12));
+}
+
+TEST(FragmentsTest, Reassemble) {
+    fragments::reassembler<double> r;
+    std::vector<std::vector<char>> v = split("abcdefghij", 1, 7);
+    std::vector<char> out;
+    // Any order, with repetitions.
+    EXPECT_FALSE(add(r, 1, v[2], 0, out));
+    EXPECT_FALSE(add(r, 1, v[0], 0, out));
+    EXPECT_FALSE(add(r, 1, v[0], 0, out));
+    EXPECT_EQ(r.size(), 1u);
+    EXPECT_TRUE(add(r, 1, v[1], 0, out));
+    EXPECT_EQ(std::string(out.begin(), out.end()), "abcdefghij");
+    EXPECT_EQ(r.size(), 0u);
+}
+
+TEST(FragmentsTest, NewMessage) {
+    fragments::reassembler<double> r;
+    std::vector<std::vector<char>> v = split("abcdefghij", 1, 7);
+    std::vector<std::vector<char>> w = split("ABCDEFGHIJ", 2, 7);
+    std::vector<char> out;
+    EXPECT_FALSE(add(r, 1, v[0], 0, out));
+    EXPECT_FALSE(add(r, 1, w[1], 0, out));
+    EXPECT_FALSE(add(r, 1, v[2], 0, out));
+    EXPECT_FALSE(add(r, 1, w[0], 0, out));
+    EXPECT_FALSE(add(r, 1, w[2], 0, out));
+    EXPECT_TRUE(add(r, 1, w[1], 0, out));
+    EXPECT_EQ(std::string(out.begin(), out.end()), "ABCDEFGHIJ");
+}
+
+TEST(FragmentsTest, Bounded) {
+    fragments::reassembler<double> r(2);
+    std::vector<std::vector<char>> v = split("abcdefghij", 1, 7);
+    std::vector<char> out;
+    EXPECT_FALSE(add(r, 1, v[0], 0, out));
+    EXPECT_FALSE(add(r, 2, v[0], 1, out));
+    EXPECT_FALSE(add(r, 3, v[0], 2, out));
+    EXPECT_EQ(r.size(), 2u);
+    // Sender 1 was evicted.
+    EXPECT_FALSE(add(r, 1, v[1], 3, out));
+    EXPECT_FALSE(add(r, 1, v[2], 3, out));
+    EXPECT_EQ(r.expire(2.5), 1u);
+    EXPECT_EQ(r.size(), 1u);
+}
@@ -0,0 +1,101 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <thread>
+
+#include "test/helper.hpp"
+
+#include "lib/common/mailbox.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+void post(mailbox& b, std::string const& s) {
+    memcpy(mailbox::packet(b.slot(b.back())), s.data(), s.size());
+    b.publish(s.size());
+}
+
+std::string read(mailbox& b, int i) {
+    char* s = b.slot(i);
+    return std::string(mailbox::packet(s), mailbox::length(s));
+}
+
+TEST(MailboxTest, Latest) {
+    mailbox b(16);
+    EXPECT_EQ(b.max_packet(), 14u);
+    EXPECT_EQ(b.take(), -1);
+    post(b, "foo");
+    int i = b.take();
+    ASSERT_GE(i, 0);
+    EXPECT_EQ(read(b, i), "foo");
+    EXPECT_EQ(b.sequence(i), 1u);
+    EXPECT_EQ(b.take(), -1);
+    EXPECT_EQ(b.overwritten(), 0u);
+}
+
+TEST(MailboxTest, Overwrite) {
+    mailbox b(16);
+    post(b, "a");
+    post(b, "b");
+    post(b, "c");
+    EXPECT_EQ(b.published(), 3u);
+    EXPECT_EQ(b.overwritten(), 2u);
+    int i = b.take();
+    EXPECT_EQ(read(b, i), "c");
+    EXPECT_EQ(b.sequence(i), 3u);
+    // The taken slot stays valid while the producer goes on.
+    post(b, "d");
+    post(b, "e");
+    EXPECT_EQ(read(b, i), "c");
+    EXPECT_EQ(read(b, b.take()), "e");
+}
+
+TEST(MailboxTest, WaitTake) {
+    mailbox b(16);
+    EXPECT_EQ(b.wait_take(std::chrono::milliseconds(1)), -1);
+    std::thread t([&b](){
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+        post(b, "late");
+    });
+    int i = b.wait_take(std::chrono::seconds(10));
+    t.join();
+    ASSERT_GE(i, 0);
+    EXPECT_EQ(read(b, i), "late");
+}
+
+TEST(MailboxTest, Wake) {
+    mailbox b(16);
+    std::thread t([&b](){
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+        b.wake();
+    });
+    auto start = std::chrono::steady_clock::now();
+    EXPECT_EQ(b.wait_take(std::chrono::seconds(10)), -1);
+    t.join();
+    EXPECT_LT(std::chrono::steady_clock::now() - start, std::chrono::seconds(5));
+    // A wake-up with nobody waiting is kept for the next wait, once.
+    b.wake();
+    EXPECT_EQ(b.wait_take(std::chrono::seconds(10)), -1);
+    EXPECT_EQ(b.wait_take(std::chrono::milliseconds(1)), -1);
+    // Packets are still delivered.
+    post(b, "foo");
+    b.wake();
+    EXPECT_EQ(read(b, b.wait_take(std::chrono::seconds(10))), "foo");
+}
+
+TEST(MailboxTest, Sequence) {
+    mailbox b(16);
+    std::thread t([&b](){
+        for (int k = 0; k < 10000; ++k) post(b, std::to_string(k));
+    });
+    uint64_t last = 0, taken = 0;
+    while (last < 10000) {
+        int i = b.wait_take(std::chrono::seconds(10));
+        ASSERT_GE(i, 0);
+        EXPECT_GT(b.sequence(i), last);
+        EXPECT_EQ(read(b, i), std::to_string(b.sequence(i) - 1));
+        last = b.sequence(i);
+        ++taken;
+    }
+    t.join();
+    EXPECT_EQ(taken + b.overwritten(), 10000u);
+}
@@ -0,0 +1,160 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include "test/helper.hpp"
+
+#include "lib/common/packet_codec.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+std::vector<char> bytes(std::string const& s) {
+    return std::vector<char>(s.begin(), s.end());
+}
+
+std::vector<char> encode(packet_codec::encoder& e, std::vector<char> const& v, int max_codec = packet_codec::version) {
+    std::vector<char> out;
+    e.encode(v.data(), v.size(), max_codec, out);
+    return out;
+}
+
+bool decode(packet_codec::decoder& d, std::vector<char> const& p, std::vector<char>& out) {
+    return d.decode(42, p.data(), p.size(), out);
+}
+
+TEST(PacketCodecTest, Varint) {
+    std::vector<char> buf;
+    for (size_t x : {0u, 1u, 127u, 128u, 300u, 65535u}) {
+        buf.clear();
+        packet_codec::put_varint(buf, x);
+        char const* p = buf.data();
+        size_t y;
+        EXPECT_TRUE(packet_codec::get_varint(p, buf.data() + buf.size(), y));
+        EXPECT_EQ(x, y);
+        EXPECT_EQ(p, buf.data() + buf.size());
+    }
+    char bad = char(200);
+    char const* p = &bad;
+    size_t y;
+    EXPECT_FALSE(packet_codec::get_varint(p, &bad + 1, y));
+}
+
+TEST(PacketCodecTest, Pack) {
+    std::vector<char> in = bytes(std::string("ab\0c", 4) + std::string(20, '\0') + "d" + std::string(3, '\0'));
+    std::vector<char> packed, out;
+    packet_codec::pack(packed, in.data(), in.size());
+    EXPECT_LT(packed.size(), in.size());
+    EXPECT_TRUE(packet_codec::unpack(packed.data(), packed.data() + packed.size(), out));
+    EXPECT_EQ(in, out);
+}
+
+TEST(PacketCodecTest, Negotiation) {
+    packet_codec::encoder e;
+    packet_codec::decoder d;
+    std::vector<char> in(40, 0), out;
+    std::vector<char> p = encode(e, in, packet_codec::raw);
+    EXPECT_EQ(packet_codec::used(p[0]), packet_codec::raw);
+    EXPECT_EQ(packet_codec::supported(p[0]), packet_codec::version);
+    EXPECT_EQ(p.size(), 42u);
+    EXPECT_TRUE(decode(d, p, out));
+    EXPECT_EQ(in, out);
+    p = encode(e, in);
+    EXPECT_EQ(packet_codec::used(p[0]), packet_codec::zero_runs);
+    EXPECT_LT(p.size(), 10u);
+    EXPECT_TRUE(decode(d, p, out));
+    EXPECT_EQ(in, out);
+    p[0] = char((packet_codec::version << 4) | 15);
+    EXPECT_FALSE(decode(d, p, out));
+}
+
+TEST(PacketCodecTest, Delta) {
+    packet_codec::encoder e(4);
+    packet_codec::decoder d;
+    std::vector<char> in = bytes("the quick brown fox jumps over the lazy dog"), out;
+    std::vector<char> key = encode(e, in);
+    EXPECT_TRUE(decode(d, key, out));
+    EXPECT_EQ(in, out);
+    // Repetitions are encoded identically.
+    EXPECT_EQ(encode(e, in), key);
+    std::vector<char> deltas[3];
+    for (int i = 0; i < 3; ++i) {
+        in[10 + i] = 'X';
+        deltas[i] = encode(e, in);
+        EXPECT_EQ(packet_codec::used(deltas[i][0]), packet_codec::delta);
+        EXPECT_LT(deltas[i].size(), in.size() / 2);
+    }
+    // Intermediate packets are not needed.
+    EXPECT_TRUE(decode(d, deltas[2], out));
+    EXPECT_EQ(in, out);
+    in.push_back('!');
+    std::vector<char> p = encode(e, in);
+    EXPECT_NE(packet_codec::used(p[0]), packet_codec::delta);
+    in.resize(in.size() - 2);
+    in[0] = 'T';
+    std::vector<char> q = encode(e, in);
+    EXPECT_EQ(packet_codec::used(q[0]), packet_codec::delta);
+    // The base keyframe was lost.
+    EXPECT_FALSE(decode(d, q, out));
+    EXPECT_TRUE(decode(d, p, out));
+    EXPECT_TRUE(decode(d, q, out));
+    EXPECT_EQ(in, out);
+}
+
+TEST(PacketCodecTest, Stable) {
+    packet_codec::encoder e;
+    std::vector<char> in = bytes("the quick brown fox jumps over the lazy dog"), out;
+    encode(e, in);
+    in[10] = 'X';
+    EXPECT_EQ(packet_codec::used(encode(e, in)[0]), packet_codec::delta);
+    // Once the content is stable, it goes on air as a keyframe.
+    std::vector<char> p = encode(e, in);
+    EXPECT_NE(packet_codec::used(p[0]), packet_codec::delta);
+    for (int i = 0; i < 50; ++i) EXPECT_EQ(encode(e, in), p);
+    // A newcomer decodes it.
+    packet_codec::decoder d;
+    EXPECT_TRUE(decode(d, p, out));
+    EXPECT_EQ(in, out);
+    // And the following changes are deltas again.
+    in[11] = 'Y';
+    std::vector<char> q = encode(e, in);
+    EXPECT_EQ(packet_codec::used(q[0]), packet_codec::delta);
+    EXPECT_TRUE(decode(d, q, out));
+    EXPECT_EQ(in, out);
+}
+
+TEST(PacketCodecTest, Legacy) {
+    packet_codec::encoder e;
+    packet_codec::decoder d;
+    // A bare export whose first byte would read as a `raw` header.
+    std::vector<char> in = bytes(std::string("\x20\x05", 2) + "the quick brown fox jumps over the lazy dog"), out;
+    std::vector<char> p = encode(e, in, packet_codec::legacy);
+    EXPECT_EQ(p, in);
+    EXPECT_EQ(encode(e, in, packet_codec::legacy), in);
+    d.decode_legacy(42, p.data(), p.size(), out);
+    EXPECT_EQ(in, out);
+    // Back to the codec, starting over from a keyframe.
+    in[6] = 'Q';
+    p = encode(e, in);
+    EXPECT_NE(packet_codec::used(p[0]), packet_codec::delta);
+    EXPECT_TRUE(decode(d, p, out));
+    EXPECT_EQ(in, out);
+    // Bare packets make the receiver forget the keyframe of the sender.
+    in[20] = 'X';
+    std::vector<char> q = encode(e, in);
+    EXPECT_EQ(packet_codec::used(q[0]), packet_codec::delta);
+    d.decode_legacy(42, in.data(), in.size(), out);
+    EXPECT_FALSE(decode(d, q, out));
+}
+
+TEST(PacketCodecTest, Negotiator) {
+    packet_codec::negotiator<double> n;
+    EXPECT_EQ(n.codec(packet_codec::version, 0), packet_codec::version);
+    n.heard(1, packet_codec::version, 1);
+    n.heard(2, packet_codec::zero_runs, 2);
+    EXPECT_EQ(n.codec(packet_codec::version, 0), packet_codec::zero_runs);
+    EXPECT_EQ(n.codec(packet_codec::raw, 0), packet_codec::raw);
+    n.heard(3, packet_codec::legacy, 3);
+    EXPECT_EQ(n.codec(packet_codec::version, 0), packet_codec::legacy);
+    // Neighbours not heard since are forgotten.
+    EXPECT_EQ(n.codec(packet_codec::version, 3.5), packet_codec::version);
+    EXPECT_EQ(n.codec(packet_codec::version, 0), packet_codec::version);
+}
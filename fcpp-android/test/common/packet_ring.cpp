@@ -0,0 +1,71 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <thread>
+
+#include "test/helper.hpp"
+
+#include "lib/common/packet_ring.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+void push(packet_ring& r, std::string const& s) {
+    int i = r.reserve();
+    ASSERT_GE(i, 0);
+    memcpy(packet_ring::packet(r.slot(i)), s.data(), s.size());
+    r.commit(s.size());
+}
+
+std::string read(packet_ring& r, int i) {
+    char* s = r.slot(i);
+    return std::string(packet_ring::packet(s), packet_ring::length(s));
+}
+
+TEST(PacketRingTest, Fifo) {
+    packet_ring r(4, 16);
+    EXPECT_EQ(r.max_packet(), 14u);
+    EXPECT_EQ(r.front(), -1);
+    push(r, "foo");
+    push(r, "barbaz");
+    EXPECT_EQ(r.count(), 2u);
+    EXPECT_EQ(read(r, r.front()), "foo");
+    r.pop();
+    EXPECT_EQ(read(r, r.front()), "barbaz");
+    r.pop();
+    EXPECT_EQ(r.front(), -1);
+    EXPECT_EQ(r.count(), 0u);
+}
+
+TEST(PacketRingTest, Full) {
+    packet_ring r(2, 16);
+    push(r, "a");
+    push(r, "b");
+    EXPECT_EQ(r.reserve(), -1);
+    r.pop();
+    push(r, "c");
+    EXPECT_EQ(read(r, r.front()), "b");
+    r.pop();
+    EXPECT_EQ(read(r, r.front()), "c");
+}
+
+TEST(PacketRingTest, WaitLatest) {
+    packet_ring r(4, 16);
+    EXPECT_EQ(r.wait_latest(std::chrono::milliseconds(1)), -1);
+    push(r, "old");
+    push(r, "new");
+    EXPECT_EQ(read(r, r.wait_latest(std::chrono::milliseconds(1))), "new");
+    r.pop();
+    EXPECT_EQ(r.count(), 0u);
+}
+
+TEST(PacketRingTest, WaitFront) {
+    packet_ring r(4, 16);
+    std::thread t([&r](){
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+        push(r, "late");
+    });
+    int i = r.wait_front(std::chrono::seconds(10));
+    t.join();
+    ASSERT_GE(i, 0);
+    EXPECT_EQ(read(r, i), "late");
+}
@@ -0,0 +1,71 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "test/helper.hpp"
+
+#include "lib/common/snapshot.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+TEST(SnapshotTest, Publish) {
+    snapshot<std::string> s;
+    EXPECT_TRUE(s.get() == nullptr);
+    EXPECT_EQ(s.version(), 0u);
+    s.publish("foo");
+    std::shared_ptr<std::string const> p = s.get();
+    EXPECT_EQ(*p, "foo");
+    s.publish("bar");
+    // Copies taken earlier are unaffected.
+    EXPECT_EQ(*p, "foo");
+    EXPECT_EQ(*s.get(), "bar");
+    EXPECT_EQ(s.version(), 2u);
+    s.clear();
+    EXPECT_TRUE(s.get() == nullptr);
+}
+
+TEST(SnapshotTest, Published) {
+    published<int>().publish(42);
+    EXPECT_EQ(*published<int>().get(), 42);
+    EXPECT_TRUE(published<double>().get() == nullptr);
+    published<int>().clear();
+}
+
+int publications = 0;
+
+TEST(SnapshotTest, OnPublish) {
+    snapshot<int> s;
+    s.on_publish([](){ ++publications; });
+    s.publish(1);
+    s.publish(2);
+    EXPECT_EQ(publications, 2);
+    s.on_publish(nullptr);
+    s.publish(3);
+    EXPECT_EQ(publications, 2);
+}
+
+TEST(SnapshotTest, Torn) {
+    // Every copy holds equal elements: a torn read would mix two of them.
+    snapshot<std::vector<int>> s;
+    s.publish(std::vector<int>(64, 0));
+    std::atomic<bool> done{false};
+    std::thread writer([&](){
+        for (int i = 1; i <= 20000; ++i) s.publish(std::vector<int>(64, i));
+        done = true;
+    });
+    int torn = 0, last = 0, backwards = 0;
+    while (not done) {
+        std::shared_ptr<std::vector<int> const> p = s.get();
+        for (int x : *p) if (x != p->front()) ++torn;
+        if (p->front() < last) ++backwards;
+        last = p->front();
+    }
+    writer.join();
+    EXPECT_EQ(torn, 0);
+    EXPECT_EQ(backwards, 0);
+    EXPECT_EQ(s.get()->front(), 20000);
+    EXPECT_EQ(s.version(), 20001u);
+}
@@ -0,0 +1,106 @@
+// Copyright © 2023 Giorgio Audrito and Volker Stolz. All Rights Reserved.
+
+#include <cstdlib>
+#include <cstring>
+#include <string>
+
+#include "test/helper.hpp"
+
+#include "lib/common/storage_writer.hpp"
+
+using namespace fcpp;
+using namespace common;
+
+namespace mess {
+    struct tag {};
+    struct gat {};
+}
+struct oth {};
+struct hto {};
+
+using tuple_type = tagged_tuple_t<mess::tag, int, mess::gat, std::string, oth, bool, hto, double>;
+using number_type = tagged_tuple_t<mess::tag, int, oth, bool, hto, short>;
+using real_type = tagged_tuple_t<mess::tag, double, oth, float>;
+
+TEST(StorageWriterTest, Keys) {
+    std::vector<std::string> keys = {"tag", "gat", "oth", "hto"};
+    EXPECT_EQ(storage_writer<tuple_type>::keys(), keys);
+    EXPECT_EQ(storage_writer<tagged_tuple_t<>>::keys().size(), 0u);
+}
+
+TEST(StorageWriterTest, Json) {
+    storage_writer<tuple_type> w;
+    tuple_type t(-42, "a \"quoted\"\nline", true, 0.5);
+    EXPECT_EQ(w.json(t), "{\"tag\": -42, \"gat\": \"a \\\"quoted\\\"\\u000aline\", \"oth\": true, \"hto\": 0.5}");
+    get<hto>(t) = 1.0 / 0.0;
+    get<oth>(t) = false;
+    EXPECT_EQ(w.json(t), "{\"tag\": -42, \"gat\": \"a \\\"quoted\\\"\\u000aline\", \"oth\": false, \"hto\": null}");
+    storage_writer<tagged_tuple_t<>> e;
+    EXPECT_EQ(e.json(tagged_tuple_t<>{}), "{}");
+}
+
+TEST(StorageWriterTest, ToJson) {
+    storage_writer<number_type> w;
+    number_type t(7, false, short(-3));
+    EXPECT_EQ(w.json(t), to_json(t));
+    // Floating point numbers are written so as to read back the same.
+    storage_writer<real_type> r;
+    EXPECT_EQ(r.json(real_type(0.5, 0.25f)), "{\"tag\": 0.5, \"oth\": 0.25}");
+#ifdef __cpp_lib_to_chars
+    // With the fewest digits doing so.
+    EXPECT_EQ(r.json(real_type(0.1, 0.1f)), "{\"tag\": 0.1, \"oth\": 0.1}");
+    EXPECT_EQ(r.json(real_type(1e-7, 1e20f)), "{\"tag\": 1e-07, \"oth\": 1e+20}");
+    EXPECT_EQ(r.json(real_type(1234.5678, -3.0f)), "{\"tag\": 1234.5678, \"oth\": -3}");
+#endif
+    for (double d : {1.0 / 3, 2.0 / 3, 0.1 + 0.2, 1e30 / 7, 5e-324, -123456789.123456789}) {
+        real_type t(d, float(d));
+        std::string s = r.json(t);
+        size_t i = s.find(' ') + 1, j = s.find(',');
+        EXPECT_EQ(strtod(s.c_str() + i, nullptr), d);
+        EXPECT_EQ(float(strtod(s.c_str() + s.rfind(' ') + 1, nullptr)), float(d));
+        EXPECT_LE(j - i, 24u);
+    }
+    // Same values as to_json, which keeps six decimals only.
+    real_type u(2.5, 0.125f);
+    EXPECT_EQ(strtod(r.json(u).c_str() + 8, nullptr), strtod(to_json(u).c_str() + 8, nullptr));
+}
+
+TEST(StorageWriterTest, Binary) {
+    storage_writer<tuple_type> w;
+    tuple_type t(-42, "abc", true, 0.5);
+    std::vector<char> const& b = w.binary(t);
+    ASSERT_EQ(b.size(), sizeof(int) + 2 + 3 + 1 + sizeof(double));
+    int i;
+    uint16_t len;
+    double d;
+    char const* p = b.data();
+    memcpy(&i, p, sizeof(int));
+    p += sizeof(int);
+    memcpy(&len, p, 2);
+    p += 2;
+    EXPECT_EQ(i, -42);
+    EXPECT_EQ(len, 3);
+    EXPECT_EQ(std::string(p, p+3), "abc");
+    p += 3;
+    EXPECT_EQ(*p++, 1);
+    memcpy(&d, p, sizeof(double));
+    EXPECT_EQ(d, 0.5);
+}
+
+TEST(StorageWriterTest, Schema) {
+    EXPECT_EQ(storage_writer<tuple_type>::schema(), "{\"tag\": \"i4\", \"gat\": \"s\", \"oth\": \"b\", \"hto\": \"f8\"}");
+    EXPECT_EQ(storage_writer<tagged_tuple_t<>>::schema(), "{}");
+}
+
+TEST(StorageWriterTest, Reuse) {
+    storage_writer<number_type> w;
+    number_type t(1, true, short(2));
+    char const* first = w.json(t).data();
+    get<mess::tag>(t) = 3;
+    // The buffer is overwritten in place.
+    EXPECT_EQ(w.json(t).data(), first);
+    EXPECT_EQ(w.json(t), "{\"tag\": 3, \"oth\": true, \"hto\": 2}");
+    std::vector<char> const& b = w.binary(t);
+    EXPECT_EQ(&w.binary(t), &b);
+    EXPECT_EQ(b.size(), sizeof(int) + 1 + sizeof(short));
+}
@@ -121,6 +121,30 @@ TEST(TemplateRemoverTest, Setter) {
     EXPECT_EQ(get<hto>(t), 17);
 }
 
+TEST(TemplateRemoverTest, TagIndex) {
+    EXPECT_EQ(tag_index<tuple_type>("tag"), 0);
+    EXPECT_EQ(tag_index<tuple_type>("gat"), 1);
+    EXPECT_EQ(tag_index<tuple_type const&>("hto"), 3);
+    EXPECT_EQ(tag_index<tuple_type>("mess::tag"), -1);
+    EXPECT_EQ(tag_index<tuple_type>("nope"), -1);
+}
+
+TEST(TemplateRemoverTest, IndexGetter) {
+    tuple_type t(24, "hi", none, 42);
+    EXPECT_EQ(getter<int>(tag_index<tuple_type>("tag"), t), 24);
+    EXPECT_EQ(getter<double>(tag_index<tuple_type>("hto"), t), 42.0);
+    EXPECT_EQ(getter<bool>(0, t), true);
+}
+
+TEST(TemplateRemoverTest, IndexSetter) {
+    tuple_type t(24, "hi", none, 42);
+    setter(tag_index<tuple_type>("tag"), t, 10);
+    setter(tag_index<tuple_type>("hto"), t, 17.0);
+    EXPECT_EQ(get<mess::tag>(t), 10);
+    EXPECT_EQ(get<mess::gat>(t), "hi");
+    EXPECT_EQ(get<hto>(t), 17);
+}
+
 TEST(TemplateRemoverTest, TaggedTupleUnite) {
     using t0 = tagged_tuple_t<mess::gat, bool, oth, std::string, hto, short>;
     using t1 = tagged_tuple_t<mess::tag, int, mess::gat, double>;